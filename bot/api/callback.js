@@ -5,6 +5,17 @@ export default function handler(req, res) {
   // Log the received parameters for debugging
   console.log("Callback received:", { code: code ? "present" : "missing", error: error || "none" });
 
+  // When the bot runs its own callback server, hand the code and the signed state
+  // straight to it so the login completes in one hop, without /setcode
+  const botCallbackUrl = process.env.BOT_CALLBACK_URL;
+  if (botCallbackUrl && code && state && !error) {
+    const target = new URL(botCallbackUrl);
+    target.searchParams.set("code", code);
+    target.searchParams.set("state", state);
+    res.redirect(302, target.toString());
+    return;
+  }
+
   // Create the response HTML
   let htmlResponse;
 
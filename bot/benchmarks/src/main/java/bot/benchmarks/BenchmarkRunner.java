@@ -0,0 +1,33 @@
+package bot.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Entry point of benchmarks.jar: the JMH command line, writing results as
+ * JSON to jmh-result.json unless -rf/-rff say otherwise, so runs from
+ * different releases can be compared.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar                 # everything
+ * java -jar target/benchmarks.jar Routing -prof gc # one benchmark, with allocation rates
+ * </pre>
+ */
+public final class BenchmarkRunner {
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> jmhArgs = new ArrayList<>(Arrays.asList(args));
+        if (!jmhArgs.contains("-rf")) {
+            jmhArgs.add("-rf");
+            jmhArgs.add("json");
+        }
+        if (!jmhArgs.contains("-rff")) {
+            jmhArgs.add("-rff");
+            jmhArgs.add("jmh-result.json");
+        }
+        org.openjdk.jmh.Main.main(jmhArgs.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,61 @@
+package bot.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bot.telegramBot.CallbackCodec;
+import bot.telegramBot.CallbackRefTable;
+
+/**
+ * Inline-button callback data: encoding when a track picker is built, and
+ * decoding plus resolving the track URI when a button is pressed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CallbackCodecBenchmark {
+    private static final int TRACKS = 64;
+
+    private final CallbackRefTable refs = new CallbackRefTable();
+    private final int[] handles = new int[TRACKS];
+    private final String[] encoded = new String[TRACKS];
+    private int next;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < TRACKS; i++) {
+            handles[i] = refs.intern("spotify:track:" + Integer.toString(0x5f3a9c + i * 7919, 36) + "4uLU6hMCjMI75M1A2tKUQC");
+            encoded[i] = CallbackCodec.encode(CallbackCodec.ACTION_PLAY, handles[i], 0);
+        }
+    }
+
+    @Benchmark
+    public String encode() {
+        int i = next++ & (TRACKS - 1);
+        return CallbackCodec.encode(CallbackCodec.ACTION_QUEUE, handles[i], i);
+    }
+
+    @Benchmark
+    public long decode() {
+        return CallbackCodec.decode(encoded[next++ & (TRACKS - 1)]);
+    }
+
+    @Benchmark
+    public String decodeAndResolve() {
+        long payload = CallbackCodec.decode(encoded[next++ & (TRACKS - 1)]);
+        return payload == CallbackCodec.INVALID ? null : refs.resolve(CallbackCodec.handle(payload));
+    }
+}
@@ -0,0 +1,170 @@
+package bot.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bot.shared.UserSessionManager;
+import bot.telegramBot.BotCommands;
+
+/**
+ * The path every command takes in SpotifyTelegramBot before any Spotify or
+ * Telegram call, run through the bot's own BotCommands: route the text,
+ * check the login of commands that need one, cut out the argument, then
+ * record the command's latency and debug event. Handlers are stubs that only
+ * keep the argument, so nothing leaves the process.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandRoutingBenchmark {
+    private static final long CHAT_ID = 1001;
+
+    // A mix of what users send: arguments, mixed case, @mentions, other bots and typos
+    private static final String[] MESSAGES = {
+            "/play never gonna give you up",
+            "/search daft punk",
+            "/PAUSE",
+            "/resume",
+            "/current",
+            "/next@SpotBot",
+            "/help",
+            "/queue@otherbot something",
+            "/plya typo",
+            "/login",
+    };
+
+    private BotCommands commands;
+    private String lastArgument;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        UserSessionManager sessions = UserSessionManager.getInstance();
+        sessions.getOrCreateSession(CHAT_ID).updateTokens("bench-access-token", "bench-refresh-token");
+        commands = new BotCommands("SpotBot", sessions, new StubHandlers());
+    }
+
+    @Benchmark
+    public Object route() {
+        String text = MESSAGES[next++ % MESSAGES.length];
+        return commands.getRouter().route(text);
+    }
+
+    @Benchmark
+    public Object handleCommand() {
+        String text = MESSAGES[next++ % MESSAGES.length];
+        commands.handle(text, CHAT_ID);
+        return lastArgument;
+    }
+
+    // Keeps the argument of commands that take one; everything else does nothing
+    private class StubHandlers implements BotCommands.Handlers {
+        @Override
+        public void start(long chatId) {
+        }
+
+        @Override
+        public void help(long chatId) {
+        }
+
+        @Override
+        public void login(long chatId) {
+        }
+
+        @Override
+        public void setCode(long chatId, String code) {
+            lastArgument = code;
+        }
+
+        @Override
+        public void logout(long chatId) {
+        }
+
+        @Override
+        public void status(long chatId) {
+        }
+
+        @Override
+        public void play(long chatId, String query) {
+            lastArgument = query;
+        }
+
+        @Override
+        public void search(long chatId, String query) {
+            lastArgument = query;
+        }
+
+        @Override
+        public void pause(long chatId) {
+        }
+
+        @Override
+        public void resume(long chatId) {
+        }
+
+        @Override
+        public void skip(long chatId) {
+        }
+
+        @Override
+        public void current(long chatId) {
+        }
+
+        @Override
+        public void devices(long chatId) {
+        }
+
+        @Override
+        public void follow(long chatId) {
+        }
+
+        @Override
+        public void unfollow(long chatId) {
+        }
+
+        @Override
+        public void resetSession(long chatId) {
+        }
+
+        @Override
+        public void authDebug(long chatId) {
+        }
+
+        @Override
+        public void stats(long chatId) {
+        }
+
+        @Override
+        public void sessions(long chatId) {
+        }
+
+        @Override
+        public void printSessions(long chatId) {
+        }
+
+        @Override
+        public void unknownCommand(long chatId) {
+        }
+
+        @Override
+        public void notAuthenticated(long chatId) {
+        }
+
+        @Override
+        public void notAdmin(long chatId) {
+        }
+    }
+}
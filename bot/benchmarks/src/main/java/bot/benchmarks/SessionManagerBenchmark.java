@@ -0,0 +1,64 @@
+package bot.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bot.shared.UserSessionManager;
+
+/**
+ * Session lookups and creation from several threads at once, as the update
+ * dispatcher, the Spotify workers and the refresh scheduler do. Half of the
+ * chat IDs have a session when the trial starts, so getOrCreate measures a
+ * mix of hits and first-time creation. Runs without SESSION_STORE_KEY, so no
+ * store is involved.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class SessionManagerBenchmark {
+    @Param({ "1000", "100000" })
+    public int users;
+
+    private UserSessionManager sessions;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        sessions = UserSessionManager.getInstance();
+        for (long chatId = 0; chatId < users; chatId += 2) {
+            sessions.getOrCreateSession(chatId).updateTokens("bench-access-token", "bench-refresh-token");
+        }
+    }
+
+    @Benchmark
+    public Object getSession() {
+        return sessions.getSession(ThreadLocalRandom.current().nextInt(users));
+    }
+
+    @Benchmark
+    public Object getOrCreateSession() {
+        return sessions.getOrCreateSession(ThreadLocalRandom.current().nextInt(users));
+    }
+
+    @Benchmark
+    public boolean isUserAuthenticated() {
+        return sessions.isUserAuthenticated(ThreadLocalRandom.current().nextInt(users));
+    }
+}
@@ -0,0 +1,63 @@
+package bot.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import bot.services.TrackSummary;
+import bot.telegramBot.TrackListFormatter;
+
+/**
+ * Formatting a page of search results: the /search reply and the button
+ * labels of the /play picker.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrackListFormatBenchmark {
+    private static final String QUERY = "daft punk";
+
+    private final List<TrackSummary> tracks = new ArrayList<>();
+
+    @Setup
+    public void setUp() {
+        String[][] samples = {
+                { "One More Time", "Daft Punk" },
+                { "Harder, Better, Faster, Stronger", "Daft Punk" },
+                { "Get Lucky (feat. Pharrell Williams and Nile Rodgers)", "Daft Punk" },
+                { "Around the World", "Daft Punk" },
+                { "Instant Crush (feat. Julian Casablancas)", "Daft Punk" },
+        };
+        for (int i = 0; i < 10; i++) {
+            String[] sample = samples[i % samples.length];
+            tracks.add(new TrackSummary("spotify:track:" + i, sample[0], sample[1], 240_000));
+        }
+    }
+
+    @Benchmark
+    public String searchResults() {
+        return TrackListFormatter.searchResults(QUERY, tracks);
+    }
+
+    @Benchmark
+    public void pickerLabels(Blackhole blackhole) {
+        for (TrackSummary track : tracks) {
+            blackhole.consume(TrackListFormatter.label(track));
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package bot.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Query parsing of the OAuth callback. In this package because
+ * {@link OAuthCallbackServer#parseQuery} is package-private.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseQueryBenchmark {
+    // Shaped like a real redirect: a long authorization code and a signed state token
+    private static final String SUCCESS = "code=AQBx7vYq3m0pZ-kLr9fT2sWcQeN4uHj8GdVbXa1oRiE6yUtMnKlJ5hPgFzDwCsA0qB"
+            + "7vYq3m0pZkLr9fT2sWcQeN4uHj8GdVbXa1oRiE6yUtMnKlJ5hPgFzDwCsA0qB7vYq3m0pZkLr9fT2sWcQeN4uHj8GdVb"
+            + "Xa1oRiE6yUtMnKlJ5hPgFzDwCsA0qB7vYq3m0pZkLr9fT2sWcQeN4uHj8GdVbXa1oRiE6yUtMnKlJ5hPgFzDwCs"
+            + "&state=AAAAAAAAA-kBm3vV9cQ2XzR7AAAAZ0Jx1kQ9oWcHt4Y2pLr8Vn3sEa";
+    private static final String DENIED = "error=access_denied&state=AAAAAAAAA-kBm3vV9cQ2XzR7AAAAZ0Jx1kQ9oWcHt4Y2pLr8Vn3sEa";
+
+    @Benchmark
+    public Object success() {
+        return OAuthCallbackServer.parseQuery(SUCCESS);
+    }
+
+    @Benchmark
+    public Object denied() {
+        return OAuthCallbackServer.parseQuery(DENIED);
+    }
+}
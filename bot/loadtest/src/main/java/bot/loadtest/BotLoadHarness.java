@@ -0,0 +1,320 @@
+package bot.loadtest;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * End-to-end load test: runs the fake Telegram and Spotify servers in this
+ * process, points a bot at them and drives it with synthetic users.
+ *
+ * Each user logs in (/login, then the OAuth callback with the state from the
+ * login button) and then sends a seeded mix of /play (followed by a tap on
+ * the first result), /search (followed by a tap on its next page button),
+ * /pause and /current. A command's latency is the time
+ * from posting the update to the bot's reply arriving at the fake Telegram
+ * server, so it covers the webhook, dispatch, Spotify calls and the outbound
+ * queue. Users wait think-ms between commands, because the bot paces each
+ * chat at one message a second.
+ *
+ * With --bot-classpath the bot is started as a child process wired to the
+ * fakes and stopped at the end; otherwise a bot must already be running in
+ * webhook mode with TELEGRAM_API_URL, SPOTIFY_API_URL and SPOTIFY_ACCOUNTS_URL
+ * pointing here and the given secret and ports.
+ *
+ * Options: --users (20), --commands (10 per user), --think-ms (1000),
+ * --timeout-ms (10000), --seed (42), --bot-classpath, --secret (load-test),
+ * --telegram-port (8090), --spotify-port (8091), --webhook-port (8081),
+ * --callback-port (8082), --telegram-latency-ms (0), --spotify-latency-ms (30),
+ * --spotify-jitter-ms (20), --spotify-error-rate (0), --spotify-rate-limit-rate (0),
+ * --spotify-retry-after (1)
+ */
+public class BotLoadHarness {
+    private static final Pattern LOGIN_STATE = Pattern.compile("state=([A-Za-z0-9_-]+)");
+    private static final Pattern CALLBACK_DATA = Pattern.compile("\"callback_data\"\\s*:\\s*\"([^\"]+)\"");
+    private static final Pattern TEXT = Pattern.compile("\"text\"\\s*:\\s*\"((?:[^\"\\\\]|\\\\.)*)\"");
+    private static final String[] QUERIES = { "daft punk", "bjork", "nina simone", "radiohead", "aphex twin" };
+    private static final long FIRST_CHAT_ID = 2_000_000L;
+
+    private final URI webhook;
+    private final URI callback;
+    private final String secret;
+    private final long timeoutMillis;
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+    private final AtomicLong updateIds = new AtomicLong();
+    private final Map<Long, BlockingQueue<String>> replies = new ConcurrentHashMap<>();
+    private final Map<String, LatencyStats> stats = new TreeMap<>();
+
+    private BotLoadHarness(URI webhook, URI callback, String secret, long timeoutMillis) {
+        this.webhook = webhook;
+        this.callback = callback;
+        this.secret = secret;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options(args);
+        int users = options.getInt("users", 20);
+        int commands = options.getInt("commands", 10);
+        long thinkMillis = options.getLong("think-ms", 1000);
+        long seed = options.getLong("seed", 42);
+        String secret = options.get("secret", "load-test");
+        int telegramPort = options.getInt("telegram-port", 8090);
+        int spotifyPort = options.getInt("spotify-port", 8091);
+        int webhookPort = options.getInt("webhook-port", 8081);
+        int callbackPort = options.getInt("callback-port", 8082);
+
+        FakeTelegramServer telegram = new FakeTelegramServer(options.getInt("telegram-latency-ms", 0), false);
+        FakeSpotifyServer spotify = FakeSpotifyServer.fromOptions(options, "spotify-");
+        HttpServer telegramServer = telegram.start(telegramPort);
+        HttpServer spotifyServer = spotify.start(spotifyPort);
+
+        BotLoadHarness harness = new BotLoadHarness(
+                URI.create("http://localhost:" + webhookPort + "/telegram/webhook"),
+                URI.create("http://localhost:" + callbackPort + "/callback"),
+                secret, options.getLong("timeout-ms", 10_000));
+        telegram.setListener(harness::onSend);
+
+        Process bot = null;
+        if (options.has("bot-classpath")) {
+            bot = startBot(options.get("bot-classpath", null), secret, telegramPort, spotifyPort, webhookPort, callbackPort);
+        }
+        try {
+            harness.awaitWebhook();
+            harness.run(users, commands, thinkMillis, seed);
+            System.out.println("Fake Telegram calls: " + telegram.snapshot());
+            System.out.println("Fake Spotify calls:  " + spotify.snapshot());
+        } finally {
+            if (bot != null) {
+                bot.destroy();
+                bot.waitFor(10, TimeUnit.SECONDS);
+            }
+            telegramServer.stop(0);
+            spotifyServer.stop(0);
+        }
+        System.exit(0);
+    }
+
+    private static Process startBot(String classpath, String secret, int telegramPort, int spotifyPort,
+                                    int webhookPort, int callbackPort) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", classpath, "bot.Main", "--webhook")
+                .redirectErrorStream(true)
+                .redirectOutput(new File("bot-load-test.log"));
+        Map<String, String> env = builder.environment();
+        env.put("BOT_MODE", "webhook");
+        env.put("WEBHOOK_SECRET", secret);
+        env.put("WEBHOOK_PORT", String.valueOf(webhookPort));
+        env.put("OAUTH_CALLBACK_PORT", String.valueOf(callbackPort));
+        env.put("TELEGRAM_API_URL", "http://localhost:" + telegramPort + "/bot");
+        env.put("SPOTIFY_API_URL", "http://localhost:" + spotifyPort);
+        env.put("SPOTIFY_ACCOUNTS_URL", "http://localhost:" + spotifyPort);
+        // Synthetic logins shouldn't end up in a real session store
+        env.remove("SESSION_STORE_KEY");
+        env.remove("WEBHOOK_URL");
+        System.out.println("Started bot, output in bot-load-test.log");
+        return builder.start();
+    }
+
+    // The webhook answers 401 to a request without the secret once it is up
+    private void awaitWebhook() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (System.nanoTime() < deadline) {
+            try {
+                HttpResponse<Void> response = client.send(HttpRequest.newBuilder(webhook)
+                        .POST(HttpRequest.BodyPublishers.ofString("{}")).build(), HttpResponse.BodyHandlers.discarding());
+                if (response.statusCode() == 401) {
+                    return;
+                }
+            } catch (IOException e) {
+                // Not listening yet
+            }
+            Thread.sleep(250);
+        }
+        throw new IllegalStateException("Bot webhook at " + webhook + " did not come up");
+    }
+
+    private void run(int users, int commands, long thinkMillis, long seed) throws InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(users);
+        Random seeds = new Random(seed);
+        long start = System.nanoTime();
+        for (int i = 0; i < users; i++) {
+            long chatId = FIRST_CHAT_ID + i;
+            long userSeed = seeds.nextLong();
+            replies.put(chatId, new LinkedBlockingQueue<>());
+            workers.execute(() -> runUser(chatId, new Random(userSeed), commands, thinkMillis));
+        }
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.HOURS);
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println("Bot load test: " + users + " users x " + commands + " commands");
+        synchronized (stats) {
+            stats.forEach((command, commandStats) -> commandStats.print(command, elapsed));
+        }
+    }
+
+    private void runUser(long chatId, Random random, int commands, long thinkMillis) {
+        try {
+            String loginReply = command("/login", chatId, message(chatId, "/login"));
+            Matcher state = loginReply != null ? LOGIN_STATE.matcher(loginReply) : null;
+            if (state == null || !state.find()) {
+                System.out.println("Chat " + chatId + ": no login link, skipping user");
+                return;
+            }
+            if (!login(chatId, state.group(1))) {
+                System.out.println("Chat " + chatId + ": login failed, skipping user");
+                return;
+            }
+
+            for (int i = 0; i < commands; i++) {
+                Thread.sleep(thinkMillis);
+                int pick = random.nextInt(4);
+                if (pick == 0) {
+                    String query = QUERIES[random.nextInt(QUERIES.length)];
+                    String picker = command("/play", chatId, message(chatId, "/play " + query));
+                    Matcher data = picker != null ? CALLBACK_DATA.matcher(picker) : null;
+                    if (data != null && data.find()) {
+                        Thread.sleep(thinkMillis);
+                        command("tap track", chatId, callbackQuery(chatId, data.group(1)));
+                    }
+                } else if (pick == 1) {
+                    String query = QUERIES[random.nextInt(QUERIES.length)];
+                    String results = command("/search", chatId, message(chatId, "/search " + query));
+                    String next = results != null ? lastCallbackData(results) : null;
+                    if (next != null) {
+                        Thread.sleep(thinkMillis);
+                        command("next page", chatId, callbackQuery(chatId, next));
+                    }
+                } else if (pick == 2) {
+                    command("/pause", chatId, message(chatId, "/pause"));
+                } else {
+                    command("/current", chatId, message(chatId, "/current"));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // The last button on a results page is "Next" when there is a next page
+    private static String lastCallbackData(String reply) {
+        Matcher data = CALLBACK_DATA.matcher(reply);
+        String last = null;
+        while (data.find()) {
+            last = data.group(1);
+        }
+        return last;
+    }
+
+    private boolean login(long chatId, String state) throws InterruptedException {
+        URI uri = URI.create(callback + "?code=load-" + chatId + "&state=" + state);
+        long sentAt = System.nanoTime();
+        try {
+            client.send(HttpRequest.newBuilder(uri).timeout(Duration.ofMillis(timeoutMillis)).GET().build(),
+                    HttpResponse.BodyHandlers.discarding());
+        } catch (IOException e) {
+            record("oauth callback", sentAt, e.getClass().getSimpleName());
+            return false;
+        }
+        String reply = awaitReply(chatId);
+        String outcome = outcome(reply);
+        record("oauth callback", sentAt, outcome);
+        return reply != null && reply.contains("Authentication successful");
+    }
+
+    /**
+     * Post an update and wait for the bot's reply to the chat.
+     *
+     * @return The body of the bot's sendMessage/editMessageText call, or null on timeout
+     */
+    private String command(String name, long chatId, String update) throws InterruptedException {
+        replies.get(chatId).clear();
+        HttpRequest request = HttpRequest.newBuilder(webhook)
+                .timeout(Duration.ofMillis(timeoutMillis))
+                .header("Content-Type", "application/json")
+                .header("X-Telegram-Bot-Api-Secret-Token", secret)
+                .POST(HttpRequest.BodyPublishers.ofString(update, StandardCharsets.UTF_8))
+                .build();
+
+        long sentAt = System.nanoTime();
+        try {
+            HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+            if (response.statusCode() != 200) {
+                record(name, sentAt, "HTTP " + response.statusCode());
+                return null;
+            }
+        } catch (IOException e) {
+            record(name, sentAt, e.getClass().getSimpleName());
+            return null;
+        }
+        String reply = awaitReply(chatId);
+        record(name, sentAt, outcome(reply));
+        return reply;
+    }
+
+    private String awaitReply(long chatId) throws InterruptedException {
+        return replies.get(chatId).poll(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static String outcome(String reply) {
+        if (reply == null) {
+            return "timeout";
+        }
+        Matcher text = TEXT.matcher(reply);
+        String shown = text.find() ? text.group(1) : reply;
+        return shown.contains("Failed") || shown.contains("No tracks") || shown.contains("Error") ? "failed" : "ok";
+    }
+
+    private void record(String name, long sentAt, String outcome) {
+        long latency = System.nanoTime() - sentAt;
+        LatencyStats commandStats;
+        synchronized (stats) {
+            commandStats = stats.computeIfAbsent(name, n -> new LatencyStats());
+        }
+        commandStats.record(latency, outcome);
+    }
+
+    private void onSend(long chatId, String method, String body) {
+        BlockingQueue<String> queue = replies.get(chatId);
+        if (queue != null) {
+            queue.offer(body);
+        }
+    }
+
+    private String message(long chatId, String text) {
+        return WebhookLoadDriver.updateJson(updateIds.incrementAndGet(), chatId, text);
+    }
+
+    private String callbackQuery(long chatId, String data) {
+        long updateId = updateIds.incrementAndGet();
+        long now = System.currentTimeMillis() / 1000;
+        return "{\"update_id\":" + updateId + ",\"callback_query\":{"
+                + "\"id\":\"" + updateId + "\",\"chat_instance\":\"" + chatId + "\",\"data\":\"" + data + "\","
+                + "\"from\":{\"id\":" + chatId + ",\"is_bot\":false,\"first_name\":\"Load\"},"
+                + "\"message\":{\"message_id\":" + updateId + ",\"date\":" + now + ","
+                + "\"chat\":{\"id\":" + chatId + ",\"type\":\"private\"},\"text\":\"Select a track to play:\"}}}";
+    }
+}
@@ -0,0 +1,259 @@
+package bot.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Local stand-in for the Spotify Web API and accounts service. Point the bot
+ * at it with SPOTIFY_API_URL=http://localhost:8091 and
+ * SPOTIFY_ACCOUNTS_URL=http://localhost:8091.
+ *
+ * Token requests always succeed. Web API requests take latency-ms plus up to
+ * jitter-ms, and a share of them fail with a 500 (error-rate) or a 429 with
+ * Retry-After (rate-limit-rate). Search results are derived from the query,
+ * so the same query always returns the same tracks, and the random draws
+ * come from a seeded generator.
+ *
+ * Options: --port (8091), --latency-ms (30), --jitter-ms (20), --error-rate (0),
+ * --rate-limit-rate (0), --retry-after (1 second), --seed (42)
+ */
+public class FakeSpotifyServer {
+    private static final int TOTAL_RESULTS = 100;
+    private static final String[] ARTISTS = { "Daft Punk", "Björk", "Nina Simone", "Radiohead", "Aphex Twin" };
+
+    private final int latencyMillis;
+    private final int jitterMillis;
+    private final double errorRate;
+    private final double rateLimitRate;
+    private final int retryAfterSeconds;
+    private final Random random;
+    private final AtomicLong tokens = new AtomicLong();
+    private final Map<String, LongAdder> calls = new ConcurrentHashMap<>();
+
+    public FakeSpotifyServer(int latencyMillis, int jitterMillis, double errorRate, double rateLimitRate,
+                             int retryAfterSeconds, long seed) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.errorRate = errorRate;
+        this.rateLimitRate = rateLimitRate;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.random = new Random(seed);
+    }
+
+    static FakeSpotifyServer fromOptions(Options options, String prefix) {
+        return new FakeSpotifyServer(options.getInt(prefix + "latency-ms", 30), options.getInt(prefix + "jitter-ms", 20),
+                options.getDouble(prefix + "error-rate", 0), options.getDouble(prefix + "rate-limit-rate", 0),
+                options.getInt(prefix + "retry-after", 1), options.getLong("seed", 42));
+    }
+
+    public static void main(String[] args) throws IOException {
+        Options options = new Options(args);
+        int port = options.getInt("port", 8091);
+        FakeSpotifyServer fake = fromOptions(options, "");
+        fake.start(port);
+        System.out.println("Fake Spotify API listening on http://localhost:" + port);
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        reporter.scheduleAtFixedRate(() -> System.out.println("Calls: " + fake.snapshot()), 5, 5, TimeUnit.SECONDS);
+    }
+
+    public HttpServer start(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(Executors.newFixedThreadPool(64));
+        server.start();
+        return server;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            try (InputStream in = exchange.getRequestBody()) {
+                in.readAllBytes();
+            }
+            String endpoint = method + " " + path;
+            calls.computeIfAbsent(endpoint, e -> new LongAdder()).increment();
+
+            int delay;
+            double draw;
+            synchronized (random) {
+                delay = latencyMillis + (jitterMillis > 0 ? random.nextInt(jitterMillis + 1) : 0);
+                draw = random.nextDouble();
+            }
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+
+            if (path.equals("/api/token")) {
+                long n = tokens.incrementAndGet();
+                respond(exchange, 200, "{\"access_token\":\"fake-access-" + n + "\",\"token_type\":\"Bearer\","
+                        + "\"scope\":\"user-read-playback-state user-modify-playback-state\",\"expires_in\":3600,"
+                        + "\"refresh_token\":\"fake-refresh-" + n + "\"}");
+                return;
+            }
+
+            if (draw < rateLimitRate) {
+                calls.computeIfAbsent("429", e -> new LongAdder()).increment();
+                exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+                respond(exchange, 429, error(429, "API rate limit exceeded"));
+                return;
+            }
+            if (draw < rateLimitRate + errorRate) {
+                calls.computeIfAbsent("500", e -> new LongAdder()).increment();
+                respond(exchange, 500, error(500, "Injected failure"));
+                return;
+            }
+
+            switch (endpoint) {
+                case "GET /v1/search":
+                    respond(exchange, 200, search(query.getOrDefault("q", ""),
+                            intParam(query, "offset", 0), intParam(query, "limit", 10)));
+                    break;
+                case "GET /v1/tracks":
+                    respond(exchange, 200, tracks(query.getOrDefault("ids", "")));
+                    break;
+                case "GET /v1/me/player/currently-playing":
+                    respond(exchange, 200, "{\"timestamp\":" + System.currentTimeMillis() + ",\"progress_ms\":42000,"
+                            + "\"is_playing\":true,\"currently_playing_type\":\"track\",\"item\":" + track("now", 0) + "}");
+                    break;
+                case "GET /v1/me/player":
+                    respond(exchange, 200, "{\"device\":" + DEVICE + ",\"repeat_state\":\"off\",\"shuffle_state\":false,"
+                            + "\"timestamp\":" + System.currentTimeMillis() + ",\"progress_ms\":42000,\"is_playing\":true,"
+                            + "\"currently_playing_type\":\"track\",\"item\":" + track("now", 0) + "}");
+                    break;
+                case "GET /v1/me/player/devices":
+                    respond(exchange, 200, "{\"devices\":[" + DEVICE + "]}");
+                    break;
+                case "PUT /v1/me/player":
+                case "PUT /v1/me/player/play":
+                case "PUT /v1/me/player/pause":
+                case "POST /v1/me/player/queue":
+                case "POST /v1/me/player/next":
+                    respond(exchange, 204, null);
+                    break;
+                default:
+                    respond(exchange, 404, error(404, "Service not found"));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final String DEVICE = "{\"id\":\"load-test-device\",\"is_active\":true,\"is_private_session\":false,"
+            + "\"is_restricted\":false,\"name\":\"Load test speaker\",\"type\":\"Computer\",\"volume_percent\":50}";
+
+    private static String search(String query, int offset, int limit) {
+        StringBuilder items = new StringBuilder();
+        int end = Math.min(TOTAL_RESULTS, offset + limit);
+        for (int i = offset; i < end; i++) {
+            if (items.length() > 0) {
+                items.append(',');
+            }
+            items.append(track(query, i));
+        }
+        return "{\"tracks\":{\"href\":\"http://localhost/v1/search\",\"items\":[" + items + "],\"limit\":" + limit
+                + ",\"next\":null,\"offset\":" + offset + ",\"previous\":null,\"total\":" + TOTAL_RESULTS + "}}";
+    }
+
+    // A track determined by the query and position, so repeated searches agree
+    private static String track(String query, int index) {
+        int hash = query.hashCode() * 31 + index;
+        String name = query.isEmpty() ? "Track " + index : query + " #" + (index + 1);
+        return track(String.format("%022x", hash & 0xFFFFFFFFL), name, hash, index + 1);
+    }
+
+    // GET /v1/tracks?ids=...; any ID is known and always gets the same details
+    private static String tracks(String ids) {
+        StringBuilder items = new StringBuilder();
+        for (String id : ids.split(",")) {
+            if (id.isEmpty()) {
+                continue;
+            }
+            if (items.length() > 0) {
+                items.append(',');
+            }
+            items.append(track(id, "Track " + id.substring(Math.max(0, id.length() - 6)), id.hashCode(), 1));
+        }
+        return "{\"tracks\":[" + items + "]}";
+    }
+
+    private static String track(String id, String name, int hash, int trackNumber) {
+        int artist = Math.floorMod(hash, ARTISTS.length);
+        return "{\"artists\":[{\"id\":\"artist" + artist + "\",\"name\":\"" + ARTISTS[artist] + "\","
+                + "\"type\":\"artist\",\"uri\":\"spotify:artist:" + artist + "\"}],"
+                + "\"disc_number\":1,\"duration_ms\":" + (150_000 + Math.floorMod(hash, 120_000)) + ",\"explicit\":false,"
+                + "\"id\":\"" + id + "\",\"is_local\":false,\"name\":\"" + jsonEscape(name) + "\",\"popularity\":50,"
+                + "\"track_number\":" + trackNumber + ",\"type\":\"track\",\"uri\":\"spotify:track:" + id + "\"}";
+    }
+
+    private static String error(int status, String message) {
+        return "{\"error\":{\"status\":" + status + ",\"message\":\"" + message + "\"}}";
+    }
+
+    private static String jsonEscape(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        if (body == null) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery != null) {
+            for (String pair : rawQuery.split("&")) {
+                String[] keyValue = pair.split("=", 2);
+                params.put(URLDecoder.decode(keyValue[0], StandardCharsets.UTF_8),
+                        keyValue.length == 2 ? URLDecoder.decode(keyValue[1], StandardCharsets.UTF_8) : "");
+            }
+        }
+        return params;
+    }
+
+    private static int intParam(Map<String, String> query, String name, int defaultValue) {
+        String value = query.get(name);
+        return value != null && !value.isEmpty() ? Integer.parseInt(value) : defaultValue;
+    }
+
+    Map<String, Long> snapshot() {
+        Map<String, Long> counts = new TreeMap<>();
+        calls.forEach((endpoint, count) -> counts.put(endpoint, count.sum()));
+        return counts;
+    }
+}
@@ -0,0 +1,154 @@
+package bot.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Local stand-in for the Telegram Bot API, so the bot can be load-tested
+ * without talking to Telegram. Point the bot at it with
+ * TELEGRAM_API_URL=http://localhost:8090/bot.
+ *
+ * Every method succeeds; sendMessage returns a message with a fresh ID so
+ * later edits work. With --enforce-limits it answers 429 like Telegram when
+ * a chat gets more than one message a second.
+ *
+ * Options: --port (8090), --latency-ms (0), --enforce-limits
+ */
+public class FakeTelegramServer {
+    /**
+     * Told about every message the bot sends or edits, so a driver can wait
+     * for the bot's reply to a chat.
+     */
+    public interface SendListener {
+        void onSend(long chatId, String method, String body);
+    }
+
+    private static final Pattern CHAT_ID = Pattern.compile("\"chat_id\"\\s*:\\s*\"?(-?\\d+)");
+    private static final long CHAT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final int latencyMillis;
+    private final boolean enforceLimits;
+    private final AtomicInteger messageIds = new AtomicInteger();
+    private final Map<String, LongAdder> calls = new ConcurrentHashMap<>();
+    private final Map<Long, Long> lastSendByChat = new ConcurrentHashMap<>();
+    private volatile SendListener listener;
+
+    public FakeTelegramServer(int latencyMillis, boolean enforceLimits) {
+        this.latencyMillis = latencyMillis;
+        this.enforceLimits = enforceLimits;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Options options = new Options(args);
+        int port = options.getInt("port", 8090);
+        FakeTelegramServer fake = new FakeTelegramServer(options.getInt("latency-ms", 0), options.has("enforce-limits"));
+        fake.start(port);
+        System.out.println("Fake Telegram API listening on http://localhost:" + port + "/bot");
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        reporter.scheduleAtFixedRate(() -> System.out.println("Calls: " + fake.snapshot()), 5, 5, TimeUnit.SECONDS);
+    }
+
+    public HttpServer start(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(Executors.newFixedThreadPool(32));
+        server.start();
+        return server;
+    }
+
+    public void setListener(SendListener listener) {
+        this.listener = listener;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String path = exchange.getRequestURI().getPath();
+            // The bot library sends method names lowercased
+            String method = path.substring(path.lastIndexOf('/') + 1).toLowerCase(Locale.ROOT);
+            String body;
+            try (InputStream in = exchange.getRequestBody()) {
+                body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            calls.computeIfAbsent(method, m -> new LongAdder()).increment();
+
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+
+            long chatId = chatId(body);
+            String response;
+            int status = 200;
+            if (enforceLimits && isSend(method) && !allowSend(chatId)) {
+                calls.computeIfAbsent("429", m -> new LongAdder()).increment();
+                status = 429;
+                response = "{\"ok\":false,\"error_code\":429,\"description\":\"Too Many Requests: retry after 1\","
+                        + "\"parameters\":{\"retry_after\":1}}";
+            } else if (isSend(method)) {
+                SendListener current = listener;
+                if (current != null) {
+                    current.onSend(chatId, method, body);
+                }
+                response = sendResult(method, chatId);
+            } else if (method.equals("getme")) {
+                response = "{\"ok\":true,\"result\":{\"id\":1,\"is_bot\":true,\"first_name\":\"Fake\","
+                        + "\"username\":\"mierzvoj_bot\"}}";
+            } else {
+                response = "{\"ok\":true,\"result\":true}";
+            }
+
+            byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length);
+            exchange.getResponseBody().write(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String sendResult(String method, long chatId) {
+        if (method.equals("sendmessage")) {
+            return "{\"ok\":true,\"result\":{\"message_id\":" + messageIds.incrementAndGet()
+                    + ",\"date\":" + System.currentTimeMillis() / 1000
+                    + ",\"chat\":{\"id\":" + chatId + ",\"type\":\"private\"}}}";
+        }
+        return "{\"ok\":true,\"result\":true}";
+    }
+
+    private static boolean isSend(String method) {
+        return method.equals("sendmessage") || method.equals("editmessagetext");
+    }
+
+    private boolean allowSend(long chatId) {
+        long now = System.nanoTime();
+        Long previous = lastSendByChat.put(chatId, now);
+        return previous == null || now - previous >= CHAT_INTERVAL_NANOS;
+    }
+
+    private static long chatId(String body) {
+        Matcher matcher = CHAT_ID.matcher(body);
+        return matcher.find() ? Long.parseLong(matcher.group(1)) : 0;
+    }
+
+    Map<String, Long> snapshot() {
+        Map<String, Long> counts = new TreeMap<>();
+        calls.forEach((method, count) -> counts.put(method, count.sum()));
+        return counts;
+    }
+}
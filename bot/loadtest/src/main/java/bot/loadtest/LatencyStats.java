@@ -0,0 +1,49 @@
+package bot.loadtest;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects request latencies and outcomes from many threads and prints a
+ * percentile summary.
+ */
+final class LatencyStats {
+    private long[] latencies = new long[1024];
+    private int count;
+    private final Map<String, Integer> outcomes = new TreeMap<>();
+
+    synchronized void record(long latencyNanos, String outcome) {
+        if (count == latencies.length) {
+            latencies = Arrays.copyOf(latencies, count * 2);
+        }
+        latencies[count++] = latencyNanos;
+        outcomes.merge(outcome, 1, Integer::sum);
+    }
+
+    synchronized void print(String title, long elapsedNanos) {
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        double seconds = elapsedNanos / 1e9;
+
+        System.out.println(title);
+        System.out.printf("  Requests:   %d in %.2f s (%.1f req/s)%n", count, seconds, count / seconds);
+        System.out.printf("  Latency ms: p50 %.2f  p90 %.2f  p99 %.2f  max %.2f%n",
+                millis(percentile(sorted, 0.50)), millis(percentile(sorted, 0.90)),
+                millis(percentile(sorted, 0.99)), millis(count > 0 ? sorted[count - 1] : 0));
+        System.out.println("  Outcomes:   " + outcomes);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
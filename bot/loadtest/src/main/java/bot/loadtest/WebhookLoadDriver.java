@@ -0,0 +1,81 @@
+package bot.loadtest;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Posts synthetic Telegram updates to a bot running in webhook mode and
+ * reports latency percentiles and throughput. Commands are ones that don't
+ * need Spotify, so only the webhook and dispatch path is measured. The
+ * random seed is fixed so runs are comparable.
+ *
+ * Options: --url (http://localhost:8081/telegram/webhook), --secret (required),
+ * --users (100), --messages (20 per user), --concurrency (64), --seed (42)
+ */
+public class WebhookLoadDriver {
+    private static final String[] COMMANDS = { "/help", "/start", "/status" };
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options(args);
+        URI url = URI.create(options.get("url", "http://localhost:8081/telegram/webhook"));
+        String secret = options.get("secret", null);
+        if (secret == null) {
+            throw new IllegalArgumentException("--secret is required");
+        }
+        int users = options.getInt("users", 100);
+        int messages = options.getInt("messages", 20);
+        Semaphore inFlight = new Semaphore(options.getInt("concurrency", 64));
+        Random random = new Random(options.getLong("seed", 42));
+
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+        LatencyStats stats = new LatencyStats();
+        AtomicLong updateIds = new AtomicLong();
+        int total = users * messages;
+        CountDownLatch done = new CountDownLatch(total);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < total; i++) {
+            long chatId = 1_000_000L + random.nextInt(users);
+            String command = COMMANDS[random.nextInt(COMMANDS.length)];
+            HttpRequest request = HttpRequest.newBuilder(url)
+                    .timeout(Duration.ofSeconds(10))
+                    .header("Content-Type", "application/json")
+                    .header("X-Telegram-Bot-Api-Secret-Token", secret)
+                    .POST(HttpRequest.BodyPublishers.ofString(updateJson(updateIds.incrementAndGet(), chatId, command)))
+                    .build();
+
+            inFlight.acquire();
+            long sentAt = System.nanoTime();
+            client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, error) -> {
+                stats.record(System.nanoTime() - sentAt,
+                        error != null ? error.getClass().getSimpleName() : "HTTP " + response.statusCode());
+                inFlight.release();
+                done.countDown();
+            });
+        }
+        done.await();
+
+        stats.print("Webhook load test: " + users + " users x " + messages + " messages", System.nanoTime() - start);
+    }
+
+    static String updateJson(long updateId, long chatId, String text) {
+        long now = System.currentTimeMillis() / 1000;
+        int commandLength = text.indexOf(' ') >= 0 ? text.indexOf(' ') : text.length();
+        return "{\"update_id\":" + updateId + ",\"message\":{"
+                + "\"message_id\":" + updateId + ",\"date\":" + now + ","
+                + "\"chat\":{\"id\":" + chatId + ",\"type\":\"private\"},"
+                + "\"from\":{\"id\":" + chatId + ",\"is_bot\":false,\"first_name\":\"Load\"},"
+                + "\"text\":\"" + text + "\","
+                + "\"entities\":[{\"type\":\"bot_command\",\"offset\":0,\"length\":" + text.length() + "}]}}";
+    }
+}
@@ -1,41 +1,94 @@
 package bot;
 
 
+import java.util.Arrays;
+
 import bot.shared.UserSessionManager;
 import org.telegram.telegrambots.meta.TelegramBotsApi;
+import org.telegram.telegrambots.meta.api.methods.updates.SetWebhook;
 import org.telegram.telegrambots.updatesreceivers.DefaultBotSession;
 import bot.server.OAuthCallbackServer;
+import bot.server.WebhookServer;
 import bot.services.SpotifyService;
+import bot.shared.Logger;
 import bot.shared.TokenRefreshScheduler;
 import bot.telegramBot.SpotifyTelegramBot;
 
 public class Main {
+    private static final Logger log = Logger.get(Main.class);
+
     public static void main(String[] args) {
         try {
-            System.out.println("Starting Spotify Telegram Bot...");
+            log.info("Starting Spotify Telegram Bot...");
 
             // Initialize the UserSessionManager first
             UserSessionManager sessionManager = UserSessionManager.getInstance();
-            System.out.println("UserSessionManager initialized: " + sessionManager);
+            log.debug("UserSessionManager initialized: {}", sessionManager);
+
+            // Flush persisted sessions so a redeploy doesn't log everyone out
+            Runtime.getRuntime().addShutdownHook(new Thread(sessionManager::close, "session-store-shutdown"));
 
             // Initialize Spotify service
             SpotifyService spotifyService = new SpotifyService();
-            System.out.println("SpotifyService initialized");
+            log.debug("SpotifyService initialized");
 
             // Start token refresh scheduler
             TokenRefreshScheduler tokenRefresher = new TokenRefreshScheduler(spotifyService);
             tokenRefresher.startScheduler();
-            System.out.println("TokenRefreshScheduler started");
+            log.debug("TokenRefreshScheduler started");
 
-            // Register Telegram bot
-            TelegramBotsApi botsApi = new TelegramBotsApi(DefaultBotSession.class);
             SpotifyTelegramBot bot = new SpotifyTelegramBot(spotifyService);
-            botsApi.registerBot(bot);
 
-            System.out.println("Spotify Telegram Bot started successfully!");
+            // Complete logins directly when Spotify redirects here (or the Vercel function forwards here)
+            String callbackPort = System.getenv("OAUTH_CALLBACK_PORT");
+            if (callbackPort != null && !callbackPort.isBlank()) {
+                OAuthCallbackServer callbackServer = new OAuthCallbackServer(spotifyService,
+                        Integer.parseInt(callbackPort), bot::onSpotifyLogin);
+                callbackServer.start();
+                Runtime.getRuntime().addShutdownHook(new Thread(callbackServer::stop, "oauth-callback-shutdown"));
+            }
+
+            if (isWebhookMode(args)) {
+                startWebhook(bot);
+            } else {
+                // Register Telegram bot for long polling
+                TelegramBotsApi botsApi = new TelegramBotsApi(DefaultBotSession.class);
+                botsApi.registerBot(bot);
+            }
+
+            log.info("Spotify Telegram Bot started successfully!");
         } catch (Exception e) {
-            System.err.println("Error starting bot: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error starting bot: {}", e.getMessage(), e);
+        }
+    }
+
+    // Webhook mode is chosen with --webhook or BOT_MODE=webhook; long polling is the default
+    private static boolean isWebhookMode(String[] args) {
+        return Arrays.asList(args).contains("--webhook") || "webhook".equalsIgnoreCase(System.getenv("BOT_MODE"));
+    }
+
+    /**
+     * Receive updates on the embedded webhook server. WEBHOOK_SECRET is
+     * required. If WEBHOOK_URL is set the webhook is registered with Telegram;
+     * otherwise it is assumed to be registered already (or a local stand-in
+     * is posting updates).
+     */
+    private static void startWebhook(SpotifyTelegramBot bot) throws Exception {
+        String secret = System.getenv("WEBHOOK_SECRET");
+        int port = Integer.parseInt(System.getenv().getOrDefault("WEBHOOK_PORT", "8081"));
+
+        WebhookServer webhookServer = new WebhookServer(bot::submitUpdate, secret, port);
+        webhookServer.start();
+        bot.setWebhookServer(webhookServer);
+        Runtime.getRuntime().addShutdownHook(new Thread(webhookServer::stop, "webhook-shutdown"));
+
+        String publicUrl = System.getenv("WEBHOOK_URL");
+        if (publicUrl != null && !publicUrl.isBlank()) {
+            SetWebhook setWebhook = new SetWebhook();
+            setWebhook.setUrl(publicUrl);
+            setWebhook.setSecretToken(secret);
+            bot.execute(setWebhook);
+            log.info("Webhook registered with Telegram: {}", publicUrl);
         }
     }
 }
\ No newline at end of file
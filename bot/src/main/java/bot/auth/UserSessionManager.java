@@ -1,67 +1,160 @@
 package bot.shared;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.time.Instant;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
 
 public class UserSessionManager {
-    // Initialize the map in the declaration to ensure it's never null
-    private final Map<Long, UserSession> sessions = new HashMap<>();
+    private static final Logger log = Logger.get(UserSessionManager.class);
 
-    // Singleton pattern implementation
-    private static UserSessionManager instance;
+    // Keyed by primitive chat ID; lookups never lock or box
+    private final ConcurrentLongMap<UserSession> sessions = new ConcurrentLongMap<>();
+
+    // Optional durable copy of the tokens; null when persistence is not configured
+    private final SessionStore store;
+
+    private final List<SessionListener> listeners = new CopyOnWriteArrayList<>();
 
     // Private constructor for singleton
     private UserSessionManager() {
-        System.out.println("UserSessionManager: New instance created with empty sessions map");
+        this.store = SessionStore.fromEnvironment();
+        log.debug("New instance created with empty sessions map");
+
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        metrics.gauge("bot_sessions_active", "Sessions held in memory", sessions::size);
+        metrics.gauge("bot_sessions_authenticated", "Sessions with an unexpired access token", this::countAuthenticated);
+    }
+
+    // Weakly consistent count; only read when metrics are scraped
+    private long countAuthenticated() {
+        long now = System.currentTimeMillis();
+        long[] count = new long[1];
+        sessions.forEach((userId, session) -> {
+            if (session.getTokens().isAuthenticated(now)) {
+                count[0]++;
+            }
+        });
+        return count[0];
+    }
+
+    // Lazy holder: the JVM initializes the instance once, and getInstance() never takes a lock
+    private static class InstanceHolder {
+        private static final UserSessionManager INSTANCE = new UserSessionManager();
     }
 
     // Static method to get the singleton instance
-    public static synchronized UserSessionManager getInstance() {
-        if (instance == null) {
-            instance = new UserSessionManager();
-        }
-        return instance;
+    public static UserSessionManager getInstance() {
+        return InstanceHolder.INSTANCE;
     }
 
     // Get a session for a chat ID
     public UserSession getSession(long chatId) {
-        UserSession session = sessions.get(chatId);
-        System.out.println("Getting session for user " + chatId + ": " + (session != null ? "found" : "not found"));
+        UserSession session = lookup(chatId);
+        log.debug("Getting session for user {}: {}", chatId, session != null ? "found" : "not found");
         return session;
     }
 
-    // Get or create a session
+    // Get or create a session; creation is atomic, so concurrent callers share one session
     public UserSession getOrCreateSession(long chatId) {
-        if (!sessions.containsKey(chatId)) {
-            System.out.println("Creating new session for user: " + chatId);
-            sessions.put(chatId, new UserSession());
-        } else {
-            System.out.println("Using existing session for user: " + chatId);
+        UserSession session = lookup(chatId);
+        if (session != null) {
+            return session;
         }
 
-        return sessions.get(chatId);
+        return sessions.computeIfAbsent(chatId, id -> {
+            log.debug("Creating new session for user: {}", id);
+            return new UserSession(id, this, Tokens.EMPTY);
+        });
     }
 
-    // Check if a user is authenticated
-    public boolean isUserAuthenticated(long chatId) {
+    // Find a session in memory, falling back to the store the first time a chat is seen after a restart.
+    // Chats with nothing stored (/start, /help, strangers' inline queries) are turned away without its lock.
+    private UserSession lookup(long chatId) {
         UserSession session = sessions.get(chatId);
-        boolean isAuth = session != null && session.isAuthenticated();
-        System.out.println("User " + chatId + " authentication status: " + isAuth);
+        if (session != null || store == null || !store.contains(chatId)) {
+            return session;
+        }
+
+        Tokens stored = store.load(chatId);
+        if (stored == null) {
+            return null;
+        }
+        UserSession restored = sessions.computeIfAbsent(chatId, id -> {
+            log.debug("Restored stored session for user: {}", id);
+            return new UserSession(id, this, stored);
+        });
+        for (SessionListener listener : listeners) {
+            listener.onTokensChanged(chatId, restored.getTokens());
+        }
+        return restored;
+    }
+
+    // Called by a session after each token change
+    private void persist(long chatId, Tokens tokens) {
+        if (store != null) {
+            store.save(chatId, tokens);
+        }
+        for (SessionListener listener : listeners) {
+            listener.onTokensChanged(chatId, tokens);
+        }
+    }
+
+    // Register a listener for token changes and logouts
+    public void addListener(SessionListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Notified when a session's tokens change (login, refresh, restore from
+     * the store) or when a session is removed. Called on the thread that
+     * made the change, so implementations must not block.
+     */
+    public interface SessionListener {
+        void onTokensChanged(long chatId, Tokens tokens);
+
+        void onSessionRemoved(long chatId);
+    }
+
+    /**
+     * Check if a user is logged in: their access token is live, or they hold
+     * a refresh token to get a new one. A session restored after a restart
+     * usually has an expired access token; SpotifyService refreshes it on the
+     * first call that needs it, through the single-flight refresher.
+     */
+    public boolean isUserAuthenticated(long chatId) {
+        UserSession session = lookup(chatId);
+        boolean isAuth = session != null && session.isLoggedIn();
+        log.debug("User {} authentication status: {}", chatId, isAuth);
         return isAuth;
     }
 
     // Log out a user (ADDED THIS MISSING METHOD)
     public void logoutUser(long chatId) {
-        if (sessions.containsKey(chatId)) {
-            System.out.println("Logging out user: " + chatId);
-            sessions.remove(chatId);
+        if (sessions.remove(chatId) != null) {
+            log.info("Logging out user: {}", chatId);
         } else {
-            System.out.println("Logout requested for non-existent session: " + chatId);
+            log.debug("Logout requested for non-existent session: {}", chatId);
+        }
+
+        if (store != null) {
+            store.delete(chatId);
+        }
+        for (SessionListener listener : listeners) {
+            listener.onSessionRemoved(chatId);
         }
     }
 
-    // Dump the state of all sessions for debugging
+    // Flush and close the session store; called on shutdown
+    public void close() {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    // Dump the state of all sessions for debugging; a weakly consistent scan that never blocks writers
     public String getDiagnostics() {
         StringBuilder sb = new StringBuilder();
         sb.append("UserSessionManager Diagnostics:\n");
@@ -71,80 +164,177 @@ public class UserSessionManager {
             sb.append("No active sessions found.");
         } else {
             sb.append("Active sessions:\n");
-            for (Map.Entry<Long, UserSession> entry : sessions.entrySet()) {
-                long userId = entry.getKey();
-                UserSession session = entry.getValue();
+            long now = System.currentTimeMillis();
+            sessions.forEach((userId, session) -> {
+                // Read one snapshot so the lines below describe a single consistent token state
+                Tokens tokens = session.getTokens();
 
                 sb.append("User ID: ").append(userId).append("\n");
-                sb.append("  Has access token: ").append(session.getAccessToken() != null).append("\n");
-                sb.append("  Has refresh token: ").append(session.getRefreshToken() != null).append("\n");
-                sb.append("  Authenticated: ").append(session.isAuthenticated()).append("\n");
-                sb.append("  Token expires: ").append(new Date(session.getTokenExpiry())).append("\n");
-                sb.append("  Token expired: ").append(session.isTokenExpired()).append("\n\n");
-            }
+                sb.append("  Has access token: ").append(tokens.getAccessToken() != null).append("\n");
+                sb.append("  Has refresh token: ").append(tokens.getRefreshToken() != null).append("\n");
+                sb.append("  Authenticated: ").append(tokens.isAuthenticated(now)).append("\n");
+                sb.append("  Token expires: ").append(new Date(tokens.getTokenExpiry())).append("\n");
+                sb.append("  Token expired: ").append(tokens.isExpired(now)).append("\n\n");
+            });
         }
 
         return sb.toString();
     }
 
+    /**
+     * Immutable token state of a session. A session publishes a new snapshot
+     * on every change, so readers always see a matching access token,
+     * refresh token and expiry.
+     */
+    public static final class Tokens {
+        static final Tokens EMPTY = new Tokens(null, null, 0, false);
+
+        private final String accessToken;
+        private final String refreshToken;
+        private final long tokenExpiry;
+        private final boolean authenticated;
+
+        private Tokens(String accessToken, String refreshToken, long tokenExpiry, boolean authenticated) {
+            this.accessToken = accessToken;
+            this.refreshToken = refreshToken;
+            this.tokenExpiry = tokenExpiry;
+            this.authenticated = authenticated;
+        }
+
+        public String getAccessToken() {
+            return accessToken;
+        }
+
+        public String getRefreshToken() {
+            return refreshToken;
+        }
+
+        public long getTokenExpiry() {
+            return tokenExpiry;
+        }
+
+        public boolean isAuthenticated(long now) {
+            return authenticated && accessToken != null && !accessToken.isEmpty() && now < tokenExpiry;
+        }
+
+        // Authenticated now, or able to refresh into it
+        public boolean isLoggedIn(long now) {
+            return isAuthenticated(now) || (authenticated && refreshToken != null && !refreshToken.isEmpty());
+        }
+
+        public boolean isExpired(long now) {
+            return tokenExpiry > 0 && now >= tokenExpiry;
+        }
+
+        // Rebuild a snapshot read back from the session store
+        static Tokens restore(String accessToken, String refreshToken, long tokenExpiry) {
+            return new Tokens(accessToken, refreshToken, tokenExpiry, accessToken != null);
+        }
+
+        private Tokens withAccessToken(String newAccessToken) {
+            if (newAccessToken == null || newAccessToken.isEmpty()) {
+                return new Tokens(newAccessToken, refreshToken, tokenExpiry, authenticated);
+            }
+            // Set token expiry to 50 minutes from now (Spotify tokens last 60 mins)
+            return new Tokens(newAccessToken, refreshToken, System.currentTimeMillis() + (50 * 60 * 1000), true);
+        }
+
+        private Tokens withRefreshToken(String newRefreshToken) {
+            return new Tokens(accessToken, newRefreshToken, tokenExpiry, authenticated);
+        }
+
+        private Tokens withAuthenticated(boolean newAuthenticated) {
+            return new Tokens(accessToken, refreshToken, tokenExpiry, newAuthenticated);
+        }
+    }
+
     // User session class
     public static class UserSession {
-        private String accessToken;
-        private String refreshToken;
-        private boolean authenticated = false;
-        private long tokenExpiry = 0;
+        private final long chatId;
+        private final UserSessionManager owner;
+        private final AtomicReference<Tokens> tokens;
+
+        private UserSession(long chatId, UserSessionManager owner, Tokens initial) {
+            this.chatId = chatId;
+            this.owner = owner;
+            this.tokens = new AtomicReference<>(initial);
+        }
+
+        /**
+         * Publish a token change and hand the new snapshot to the store.
+         * Updates are serialised per session so snapshots reach the store in
+         * the order they were published; otherwise a login racing a refresh
+         * could leave the older snapshot last in the log, and a restart would
+         * bring back a refresh token Spotify has already rotated out. Readers
+         * never take the lock.
+         */
+        private synchronized Tokens update(UnaryOperator<Tokens> change) {
+            Tokens updated = change.apply(tokens.get());
+            tokens.set(updated);
+            owner.persist(chatId, updated);
+            return updated;
+        }
+
+        // Current token snapshot; use this when more than one field is needed
+        public Tokens getTokens() {
+            return tokens.get();
+        }
 
         public String getAccessToken() {
-            return accessToken;
+            return tokens.get().getAccessToken();
         }
 
         public void setAccessToken(String accessToken) {
-            this.accessToken = accessToken;
+            Tokens updated = update(current -> current.withAccessToken(accessToken));
             if (accessToken != null && !accessToken.isEmpty()) {
-                this.authenticated = true;
-                // Set token expiry to 50 minutes from now (Spotify tokens last 60 mins)
-                this.tokenExpiry = System.currentTimeMillis() + (50 * 60 * 1000);
-                System.out.println("Access token set - authenticated=true, expires at: " +
-                        new Date(tokenExpiry));
+                log.debug("Access token set for user {} - expires at: {}", chatId, Instant.ofEpochMilli(updated.getTokenExpiry()));
             }
         }
 
         public String getRefreshToken() {
-            return refreshToken;
+            return tokens.get().getRefreshToken();
         }
 
         public void setRefreshToken(String refreshToken) {
-            this.refreshToken = refreshToken;
+            update(current -> current.withRefreshToken(refreshToken));
         }
 
-        public boolean isAuthenticated() {
-            boolean hasToken = accessToken != null && !accessToken.isEmpty();
-            boolean notExpired = System.currentTimeMillis() < tokenExpiry;
+        /**
+         * Publish a new access token, and optionally a new refresh token, as
+         * one atomic update.
+         *
+         * @param accessToken  The new access token
+         * @param refreshToken The new refresh token, or null to keep the current one
+         */
+        public void updateTokens(String accessToken, String refreshToken) {
+            Tokens updated = update(current -> {
+                Tokens next = current.withAccessToken(accessToken);
+                return refreshToken != null ? next.withRefreshToken(refreshToken) : next;
+            });
+            log.debug("Tokens updated for user {} - expires at: {}", chatId, Instant.ofEpochMilli(updated.getTokenExpiry()));
+        }
 
-            // Log the check for debugging
-            System.out.println("isAuthenticated check: hasToken=" + hasToken +
-                    ", notExpired=" + notExpired + ", flag=" + authenticated);
+        public boolean isAuthenticated() {
+            Tokens current = tokens.get();
+            return current.isAuthenticated(System.currentTimeMillis());
+        }
 
-            return authenticated && hasToken && notExpired;
+        public boolean isLoggedIn() {
+            return tokens.get().isLoggedIn(System.currentTimeMillis());
         }
 
         public void setAuthenticated(boolean authenticated) {
-            this.authenticated = authenticated;
-            System.out.println("Explicitly setting authenticated=" + authenticated);
+            update(current -> current.withAuthenticated(authenticated));
+            log.debug("Explicitly setting authenticated={} for user {}", authenticated, chatId);
         }
 
-        // ADDED THIS MISSING METHOD
         public boolean isTokenExpired() {
-            boolean expired = tokenExpiry > 0 && System.currentTimeMillis() >= tokenExpiry;
-            System.out.println("isTokenExpired check: expired=" + expired +
-                    ", current time=" + new Date(System.currentTimeMillis()) +
-                    ", expiry time=" + new Date(tokenExpiry));
-            return expired;
+            return tokens.get().isExpired(System.currentTimeMillis());
         }
 
         // Getter for tokenExpiry (for diagnostics)
         public long getTokenExpiry() {
-            return tokenExpiry;
+            return tokens.get().getTokenExpiry();
         }
     }
-}
\ No newline at end of file
+}
@@ -5,72 +5,180 @@ import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
 import bot.services.SpotifyService;
+import bot.shared.Logger;
+import bot.shared.MetricsRegistry;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.OptionalLong;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Receives Spotify's OAuth redirect. The state parameter identifies the
+ * Telegram chat that started the login, so the tokens go straight into that
+ * chat's session and the user is told in Telegram, with no /setcode step.
+ *
+ * Each callback makes a blocking token exchange, so requests run on a pool
+ * of threads and at most MAX_CONCURRENT_EXCHANGES run at once; beyond that
+ * the server answers 503 straight away instead of queueing behind slow
+ * Spotify responses.
+ *
+ * The same server exposes the bot's metrics at /metrics.
+ */
 public class OAuthCallbackServer {
+    private static final Logger log = Logger.get(OAuthCallbackServer.class);
+
+    private static final int HANDLER_THREADS = 32;
+    private static final int MAX_QUEUED_REQUESTS = 128;
+    private static final int MAX_CONCURRENT_EXCHANGES = 16;
+
+    // Rendered once; the byte length is what goes in Content-Length
+    private static final byte[] SUCCESS_PAGE = page("✅ Logged in to Spotify",
+            "You can close this page and return to the Telegram bot.");
+    private static final byte[] DENIED_PAGE = page("Spotify login cancelled",
+            "Return to the Telegram bot and use /login to try again.");
+    private static final byte[] EXPIRED_PAGE = page("Login link expired",
+            "This login link has expired or was already used. Use /login in the Telegram bot to get a new one.");
+    private static final byte[] FAILED_PAGE = page("Spotify login failed",
+            "Spotify didn't accept the login. Please use /login in the Telegram bot to try again.");
+    private static final byte[] BUSY_PAGE = page("Too many logins right now",
+            "Please reload this page in a few seconds.");
+
+    public interface LoginListener {
+        void onLoginCompleted(long chatId);
+    }
+
     private final SpotifyService spotifyService;
     private final int port;
+    private final LoginListener listener;
+    private final Semaphore exchanges = new Semaphore(MAX_CONCURRENT_EXCHANGES);
     private HttpServer server;
+    private ExecutorService executor;
 
-    public OAuthCallbackServer(SpotifyService spotifyService, int port) {
+    public OAuthCallbackServer(SpotifyService spotifyService, int port, LoginListener listener) {
         this.spotifyService = spotifyService;
         this.port = port;
+        this.listener = listener;
     }
 
     public void start() throws IOException {
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(HANDLER_THREADS, HANDLER_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(MAX_QUEUED_REQUESTS), runnable -> {
+                    Thread thread = new Thread(runnable, "oauth-callback-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
         server = HttpServer.create(new InetSocketAddress(port), 0);
         server.createContext("/callback", new CallbackHandler());
-        server.setExecutor(Executors.newSingleThreadExecutor());
+        server.createContext("/metrics", new MetricsHandler());
+        server.setExecutor(executor);
         server.start();
-        System.out.println("Callback server started on port " + port);
+        log.info("Callback server started on port {}", port);
     }
 
     public void stop() {
         if (server != null) {
             server.stop(0);
         }
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    private static byte[] page(String title, String message) {
+        String html = "<!DOCTYPE html><html><head><meta charset=\"utf-8\"><title>" + title + "</title>"
+                + "<style>body { font-family: Arial, sans-serif; max-width: 600px; margin: 0 auto; padding: 20px; text-align: center; }</style>"
+                + "</head><body><h1>" + title + "</h1><p>" + message + "</p></body></html>";
+        return html.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Prometheus scrape endpoint; served next to the callback so the bot needs only one open port
+    private static class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            byte[] body = MetricsRegistry.getInstance().scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        }
     }
 
     private class CallbackHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
-            String query = exchange.getRequestURI().getQuery();
-            Map<String, String> params = parseQuery(query);
-
-            String response;
-            if (params.containsKey("code")) {
-                String code = params.get("code");
-                spotifyService.setAuthorizationCode(code);
-                response = "Authorization successful! You can now return to the Telegram bot.";
-            } else {
-                response = "Authorization failed!";
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            String code = params.get("code");
+            String state = params.get("state");
+
+            if (code == null || state == null) {
+                respond(exchange, params.containsKey("error") ? 200 : 400, DENIED_PAGE);
+                return;
+            }
+
+            if (!exchanges.tryAcquire()) {
+                exchange.getResponseHeaders().set("Retry-After", "2");
+                respond(exchange, 503, BUSY_PAGE);
+                return;
+            }
+
+            OptionalLong chatId;
+            try {
+                chatId = spotifyService.completeLogin(state, code);
+            } catch (IOException e) {
+                log.warn("OAuth callback failed: {}", e.getMessage());
+                respond(exchange, 502, FAILED_PAGE);
+                return;
+            } finally {
+                exchanges.release();
             }
 
-            exchange.sendResponseHeaders(200, response.length());
-            OutputStream os = exchange.getResponseBody();
-            os.write(response.getBytes());
-            os.close();
+            if (chatId.isEmpty()) {
+                respond(exchange, 400, EXPIRED_PAGE);
+                return;
+            }
+
+            respond(exchange, 200, SUCCESS_PAGE);
+            listener.onLoginCompleted(chatId.getAsLong());
+        }
+
+        private void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+            exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
         }
+    }
 
-        private Map<String, String> parseQuery(String query) {
-            Map<String, String> params = new HashMap<>();
-            if (query != null) {
-                String[] pairs = query.split("&");
-                for (String pair : pairs) {
-                    String[] keyValue = pair.split("=");
-                    if (keyValue.length == 2) {
-                        params.put(keyValue[0], keyValue[1]);
-                    }
+    // Package-private and static so it can be benchmarked on its own
+    static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query != null) {
+            String[] pairs = query.split("&");
+            for (String pair : pairs) {
+                String[] keyValue = pair.split("=", 2);
+                if (keyValue.length == 2) {
+                    params.put(URLDecoder.decode(keyValue[0], StandardCharsets.UTF_8),
+                            URLDecoder.decode(keyValue[1], StandardCharsets.UTF_8));
+                } else {
+                    params.put(URLDecoder.decode(keyValue[0], StandardCharsets.UTF_8), "");
                 }
             }
-            return params;
         }
+        return params;
     }
-}
\ No newline at end of file
+}
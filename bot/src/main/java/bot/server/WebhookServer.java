@@ -0,0 +1,157 @@
+package bot.server;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bot.shared.Logger;
+import bot.shared.MetricsRegistry;
+
+/**
+ * Receives Telegram updates pushed to a webhook, as an alternative to long
+ * polling getUpdates.
+ *
+ * Each request must carry the secret token given to setWebhook in the
+ * X-Telegram-Bot-Api-Secret-Token header. The body is parsed straight from
+ * the request stream into an {@link Update} and handed to the same dispatch
+ * pipeline as polled updates. If the pipeline is saturated the request is
+ * answered 503 so Telegram delivers the update again later.
+ */
+public class WebhookServer {
+    private static final Logger log = Logger.get(WebhookServer.class);
+
+    public static final String PATH = "/telegram/webhook";
+    private static final String SECRET_HEADER = "X-Telegram-Bot-Api-Secret-Token";
+    private static final int HANDLER_THREADS = 4;
+    private static final int MAX_QUEUED_REQUESTS = 256;
+
+    // Readers are immutable and thread-safe, so one is shared by all requests
+    private static final ObjectReader UPDATE_READER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .readerFor(Update.class);
+
+    public interface UpdateSink {
+        /**
+         * @return False if the update couldn't be accepted and should be redelivered
+         */
+        boolean accept(Update update);
+    }
+
+    private final UpdateSink sink;
+    private final byte[] secret;
+    private final int port;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong unauthorized = new AtomicLong();
+    private final AtomicLong malformed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public WebhookServer(UpdateSink sink, String secret, int port) {
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException("A webhook secret token is required");
+        }
+        this.sink = sink;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.port = port;
+
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        metrics.counter("bot_webhook_updates_received_total", "Updates parsed from webhook requests", received::get);
+        String help = "Webhook requests answered with an error";
+        metrics.counter("bot_webhook_requests_refused_total", help, unauthorized::get, "reason", "unauthorized");
+        metrics.counter("bot_webhook_requests_refused_total", help, malformed::get, "reason", "malformed");
+        // Answered 503 because the dispatcher was saturated; Telegram redelivers these
+        metrics.counter("bot_webhook_requests_refused_total", help, rejected::get, "reason", "saturated");
+    }
+
+    public void start() throws IOException {
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(HANDLER_THREADS, HANDLER_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(MAX_QUEUED_REQUESTS), runnable -> {
+                    Thread thread = new Thread(runnable, "webhook-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext(PATH, new UpdateHandler());
+        server.setExecutor(executor);
+        server.start();
+        log.info("Webhook server started on port {} at {}", port, PATH);
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    public String getStats() {
+        return "Webhook:\n" +
+                "  Received: " + received.get() + "\n" +
+                "  Unauthorized: " + unauthorized.get() + "\n" +
+                "  Malformed: " + malformed.get() + "\n" +
+                "  Rejected (503): " + rejected.get();
+    }
+
+    private boolean hasValidSecret(HttpExchange exchange) {
+        String header = exchange.getRequestHeaders().getFirst(SECRET_HEADER);
+        // Constant-time comparison so the secret can't be guessed byte by byte
+        return header != null && MessageDigest.isEqual(secret, header.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private class UpdateHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try (exchange) {
+                if (!"POST".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                if (!hasValidSecret(exchange)) {
+                    unauthorized.incrementAndGet();
+                    exchange.sendResponseHeaders(401, -1);
+                    return;
+                }
+
+                Update update;
+                try (InputStream body = exchange.getRequestBody()) {
+                    update = UPDATE_READER.readValue(body);
+                } catch (JsonProcessingException e) {
+                    malformed.incrementAndGet();
+                    exchange.sendResponseHeaders(400, -1);
+                    return;
+                }
+
+                received.incrementAndGet();
+                if (sink.accept(update)) {
+                    exchange.sendResponseHeaders(200, -1);
+                } else {
+                    rejected.incrementAndGet();
+                    exchange.sendResponseHeaders(503, -1);
+                }
+            }
+        }
+    }
+}
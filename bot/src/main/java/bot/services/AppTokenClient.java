@@ -0,0 +1,49 @@
+package bot.services;
+
+import org.apache.hc.core5.http.ParseException;
+import se.michaelthelin.spotify.SpotifyApi;
+import se.michaelthelin.spotify.exceptions.SpotifyWebApiException;
+import se.michaelthelin.spotify.model_objects.credentials.ClientCredentials;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * A client authorized as the app itself (client credentials flow), for
+ * requests that don't act for a user, such as inline search by someone who
+ * never logged in. The token is fetched on first use and renewed shortly
+ * before it expires; concurrent callers share one renewal.
+ */
+class AppTokenClient {
+    private static final long RENEW_BEFORE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final SpotifyApi credentialsApi;
+    private final Supplier<SpotifyApi.Builder> builder;
+
+    // Guarded by this
+    private SpotifyApi client;
+    private long expiresAt;
+
+    /**
+     * @param credentialsApi A client carrying the app's ID and secret
+     * @param builder        Makes builders aimed at the right endpoints and HTTP manager
+     */
+    AppTokenClient(SpotifyApi credentialsApi, Supplier<SpotifyApi.Builder> builder) {
+        this.credentialsApi = credentialsApi;
+        this.builder = builder;
+    }
+
+    synchronized SpotifyApi get() throws IOException, SpotifyWebApiException, ParseException {
+        long now = System.currentTimeMillis();
+        if (client != null && now < expiresAt) {
+            return client;
+        }
+
+        ClientCredentials credentials = credentialsApi.clientCredentials().build().execute();
+        long lifetime = TimeUnit.SECONDS.toMillis(credentials.getExpiresIn() != null ? credentials.getExpiresIn() : 3600);
+        client = builder.get().setAccessToken(credentials.getAccessToken()).build();
+        expiresAt = now + Math.max(0, lifetime - RENEW_BEFORE_MILLIS);
+        return client;
+    }
+}
@@ -0,0 +1,225 @@
+package bot.services;
+
+import bot.shared.MetricsRegistry;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Each user's Spotify devices and the device their playback commands should
+ * target.
+ *
+ * The target is the device the user picked with /devices, or else the one
+ * last seen active, so commands can name it with device_id rather than fail
+ * when Spotify has no active device. Picking the target never calls
+ * Spotify: the list is only fetched again when a command on the target
+ * fails because the device is gone, and a picked device the fresh list no
+ * longer has stops being the target. Lists asked for directly are fresh for
+ * ttl; a stale or missing one returns what is known and reloads it in the
+ * background, one load per user at a time. A now-playing poll that sees a
+ * change marks the list stale and records the active device, but never
+ * replaces the user's pick.
+ */
+public class DeviceCache {
+    private static final long DEFAULT_TTL_MILLIS = 60 * 1000;
+
+    public interface Fetcher {
+        CompletableFuture<List<DeviceSummary>> fetch(long userId);
+    }
+
+    private final Fetcher fetcher;
+    private final long ttlMillis;
+    private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+
+    private final MetricsRegistry.Counter loads;
+    private final MetricsRegistry.Counter retargets;
+
+    public DeviceCache(Fetcher fetcher) {
+        this(fetcher, DEFAULT_TTL_MILLIS);
+    }
+
+    public DeviceCache(Fetcher fetcher, long ttlMillis) {
+        this.fetcher = fetcher;
+        this.ttlMillis = ttlMillis;
+
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        this.loads = metrics.counter("spotify_device_list_loads_total", "Device lists fetched from Spotify");
+        this.retargets = metrics.counter("spotify_device_retargets_total",
+                "Playback commands retried on another device after Spotify found no active device");
+        metrics.gauge("spotify_device_cache_users", "Users with a cached device list", entries::size);
+    }
+
+    /**
+     * The user's devices, reloaded first only if none are known yet. A stale
+     * list is returned as-is and reloaded in the background.
+     */
+    public CompletableFuture<List<DeviceSummary>> devices(long userId) {
+        Entry entry = entries.computeIfAbsent(userId, id -> new Entry());
+        List<DeviceSummary> known = entry.devices;
+        if (known == null) {
+            return load(userId, entry);
+        }
+        if (isStale(entry)) {
+            load(userId, entry);
+        }
+        return CompletableFuture.completedFuture(known);
+    }
+
+    // Reload now, e.g. when the user opens the device picker
+    public CompletableFuture<List<DeviceSummary>> reload(long userId) {
+        return load(userId, entries.computeIfAbsent(userId, id -> new Entry()));
+    }
+
+    private CompletableFuture<List<DeviceSummary>> load(long userId, Entry entry) {
+        synchronized (entry) {
+            if (entry.loading != null) {
+                return entry.loading;
+            }
+            CompletableFuture<List<DeviceSummary>> loading;
+            try {
+                loading = fetcher.fetch(userId);
+            } catch (RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            loads.increment();
+            entry.loading = loading;
+            loading.whenComplete((devices, error) -> {
+                synchronized (entry) {
+                    entry.loading = null;
+                    if (devices != null) {
+                        entry.devices = devices;
+                        entry.loadedAt = System.currentTimeMillis();
+                    }
+                }
+            });
+            return loading;
+        }
+    }
+
+    /**
+     * The device a playback command should name, from what is already known;
+     * never calls Spotify.
+     *
+     * @return A device ID, or null to let Spotify use the active device
+     */
+    public String target(long userId) {
+        Entry entry = entries.get(userId);
+        if (entry == null) {
+            return null;
+        }
+        String chosen = entry.chosenId;
+        return chosen != null ? chosen : entry.activeId;
+    }
+
+    /**
+     * Pick a device to retry on after a command on the target failed because
+     * Spotify found no such or no active device: the user's pick if it is
+     * listed, else the active device, else the first one that accepts
+     * commands. A pick that isn't listed any more is forgotten, so later
+     * commands don't fail on it first.
+     *
+     * @param devices A freshly fetched list, which also replaces the cached one
+     * @return A device ID, or null if no listed device can be targeted
+     */
+    public String fallback(long userId, List<DeviceSummary> devices) {
+        Entry entry = entries.computeIfAbsent(userId, id -> new Entry());
+        synchronized (entry) {
+            entry.devices = devices;
+            entry.loadedAt = System.currentTimeMillis();
+        }
+
+        String chosen = entry.chosenId;
+        DeviceSummary pick = null;
+        boolean chosenListed = false;
+        for (DeviceSummary device : devices) {
+            if (!device.isTargetable()) {
+                continue;
+            }
+            if (device.getId().equals(chosen)) {
+                pick = device;
+                chosenListed = true;
+                break;
+            }
+            if (pick == null || (device.isActive() && !pick.isActive())) {
+                pick = device;
+            }
+        }
+        if (chosen != null && !chosenListed) {
+            entry.chosenId = null;
+        }
+        if (pick != null) {
+            retargets.increment();
+        }
+        return pick != null ? pick.getId() : null;
+    }
+
+    // Target this device from now on, until it disappears from the user's devices (picked with /devices)
+    public void select(long userId, String deviceId) {
+        entries.computeIfAbsent(userId, id -> new Entry()).chosenId = deviceId;
+    }
+
+    // The device playback is on now (a retry that worked); targeted when the user hasn't picked one
+    public void setActive(long userId, String deviceId) {
+        entries.computeIfAbsent(userId, id -> new Entry()).activeId = deviceId;
+    }
+
+    /**
+     * Mark the user's list stale after their playback changed. The user's
+     * pick stays the target.
+     *
+     * @param activeDeviceId The device now playing, if known
+     */
+    public void invalidate(long userId, String activeDeviceId) {
+        Entry entry = entries.get(userId);
+        if (entry == null) {
+            return;
+        }
+        entry.loadedAt = 0;
+        if (activeDeviceId != null) {
+            entry.activeId = activeDeviceId;
+        }
+    }
+
+    // Forget the user's devices (logout)
+    public void remove(long userId) {
+        entries.remove(userId);
+    }
+
+    // A device from the user's cached list, e.g. to name it in a reply
+    public DeviceSummary find(long userId, String deviceId) {
+        Entry entry = entries.get(userId);
+        List<DeviceSummary> devices = entry != null ? entry.devices : null;
+        if (devices != null) {
+            for (DeviceSummary device : devices) {
+                if (deviceId.equals(device.getId())) {
+                    return device;
+                }
+            }
+        }
+        return null;
+    }
+
+    private boolean isStale(Entry entry) {
+        return System.currentTimeMillis() - entry.loadedAt >= ttlMillis;
+    }
+
+    public String getStats() {
+        return "Devices:\n" +
+                "  Users cached: " + entries.size() + "\n" +
+                "  List loads: " + loads.get() + "\n" +
+                "  Retried on another device: " + retargets.get();
+    }
+
+    private static final class Entry {
+        private volatile List<DeviceSummary> devices;
+        private volatile long loadedAt;
+        // Picked by the user; kept until Spotify no longer lists it
+        private volatile String chosenId;
+        // Last seen playing, by the poller or a retry
+        private volatile String activeId;
+        // Guarded by the entry
+        private CompletableFuture<List<DeviceSummary>> loading;
+    }
+}
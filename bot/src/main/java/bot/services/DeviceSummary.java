@@ -0,0 +1,55 @@
+package bot.services;
+
+import se.michaelthelin.spotify.model_objects.miscellaneous.Device;
+
+/**
+ * The fields of a Spotify playback device the bot needs to list it and
+ * target it.
+ */
+public final class DeviceSummary {
+    private final String id;
+    private final String name;
+    private final String type;
+    private final boolean active;
+    private final boolean restricted;
+
+    public DeviceSummary(String id, String name, String type, boolean active, boolean restricted) {
+        this.id = id;
+        this.name = name;
+        this.type = type;
+        this.active = active;
+        this.restricted = restricted;
+    }
+
+    public static DeviceSummary of(Device device) {
+        return new DeviceSummary(device.getId(), device.getName(), device.getType(),
+                Boolean.TRUE.equals(device.getIs_active()), Boolean.TRUE.equals(device.getIs_restricted()));
+    }
+
+    // Null for some devices, which then can't be targeted
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // e.g. "Computer", "Smartphone", "Speaker"
+    public String getType() {
+        return type;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    // Restricted devices don't accept Web API commands
+    public boolean isRestricted() {
+        return restricted;
+    }
+
+    boolean isTargetable() {
+        return id != null && !restricted;
+    }
+}
@@ -0,0 +1,142 @@
+package bot.services;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.OptionalLong;
+
+import bot.shared.Logger;
+
+/**
+ * Signed OAuth state tokens that tie a Spotify login to the Telegram chat
+ * that started it.
+ *
+ * A token is [chatId:8][nonce:8][expiry seconds:4] followed by the first 16
+ * bytes of an HMAC-SHA256 over those fields, base64url encoded (48 chars).
+ * Any process holding the key can verify it without a lookup table. The only
+ * state kept is a small bounded cache of nonces already used, so a callback
+ * URL can't be replayed while its token is still valid.
+ */
+public class LoginStateTokens {
+    private static final Logger log = Logger.get(LoginStateTokens.class);
+
+    private static final int PAYLOAD_BYTES = 20;
+    private static final int MAC_BYTES = 16;
+    private static final long DEFAULT_TTL_SECONDS = 10 * 60;
+    private static final int MAX_USED_NONCES = 10_000;
+
+    private final SecretKeySpec key;
+    private final long ttlSeconds;
+    private final SecureRandom random = new SecureRandom();
+
+    // nonce -> expiry in seconds, in insertion (so roughly expiry) order; guarded by this
+    private final LinkedHashMap<Long, Long> usedNonces = new LinkedHashMap<>();
+
+    public LoginStateTokens(byte[] key) {
+        this(key, DEFAULT_TTL_SECONDS);
+    }
+
+    public LoginStateTokens(byte[] key, long ttlSeconds) {
+        this.key = new SecretKeySpec(key, "HmacSHA256");
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    /**
+     * Use the base64 key in OAUTH_STATE_KEY, so the bot and any separately
+     * deployed callback can verify each other's tokens. Without it a random
+     * key is generated and login links only work until the bot restarts.
+     */
+    public static LoginStateTokens fromEnvironment() {
+        String encodedKey = System.getenv("OAUTH_STATE_KEY");
+        if (encodedKey != null && !encodedKey.isEmpty()) {
+            try {
+                return new LoginStateTokens(Base64.getDecoder().decode(encodedKey));
+            } catch (IllegalArgumentException e) {
+                log.warn("Ignoring invalid OAUTH_STATE_KEY: {}", e.getMessage());
+            }
+        } else {
+            log.info("OAUTH_STATE_KEY is not set; login links will stop working after a restart");
+        }
+
+        byte[] generated = new byte[32];
+        new SecureRandom().nextBytes(generated);
+        return new LoginStateTokens(generated);
+    }
+
+    public String issue(long chatId) {
+        ByteBuffer token = ByteBuffer.allocate(PAYLOAD_BYTES + MAC_BYTES);
+        token.putLong(chatId);
+        token.putLong(random.nextLong());
+        token.putInt((int) (System.currentTimeMillis() / 1000 + ttlSeconds));
+        token.put(mac(token.array()), 0, MAC_BYTES);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token.array());
+    }
+
+    /**
+     * Check a token's signature and expiry and mark it used.
+     *
+     * @return The chat ID it was issued for (negative for groups), or empty if
+     *         the token is malformed, forged, expired or was already used
+     */
+    public OptionalLong verify(String state) {
+        byte[] token;
+        try {
+            token = state != null ? Base64.getUrlDecoder().decode(state) : null;
+        } catch (IllegalArgumentException e) {
+            return OptionalLong.empty();
+        }
+        if (token == null || token.length != PAYLOAD_BYTES + MAC_BYTES) {
+            return OptionalLong.empty();
+        }
+
+        byte[] expected = mac(token);
+        byte[] actual = new byte[MAC_BYTES];
+        System.arraycopy(token, PAYLOAD_BYTES, actual, 0, MAC_BYTES);
+        byte[] truncated = new byte[MAC_BYTES];
+        System.arraycopy(expected, 0, truncated, 0, MAC_BYTES);
+        if (!MessageDigest.isEqual(truncated, actual)) {
+            return OptionalLong.empty();
+        }
+
+        ByteBuffer payload = ByteBuffer.wrap(token, 0, PAYLOAD_BYTES);
+        long chatId = payload.getLong();
+        long nonce = payload.getLong();
+        long expiry = payload.getInt() & 0xFFFFFFFFL;
+        long now = System.currentTimeMillis() / 1000;
+        if (now >= expiry || !markUsed(nonce, expiry, now)) {
+            return OptionalLong.empty();
+        }
+        return OptionalLong.of(chatId);
+    }
+
+    private synchronized boolean markUsed(long nonce, long expiry, long now) {
+        Iterator<Map.Entry<Long, Long>> oldest = usedNonces.entrySet().iterator();
+        while (oldest.hasNext()) {
+            Map.Entry<Long, Long> entry = oldest.next();
+            if (entry.getValue() > now && usedNonces.size() < MAX_USED_NONCES) {
+                break;
+            }
+            oldest.remove();
+        }
+        return usedNonces.putIfAbsent(nonce, expiry) == null;
+    }
+
+    // HMAC over the payload bytes only
+    private byte[] mac(byte[] token) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            mac.update(token, 0, PAYLOAD_BYTES);
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 unavailable", e);
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package bot.services;
+
+import se.michaelthelin.spotify.exceptions.detailed.TooManyRequestsException;
+import se.michaelthelin.spotify.model_objects.IPlaylistItem;
+import se.michaelthelin.spotify.model_objects.miscellaneous.CurrentlyPlayingContext;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bot.shared.Logger;
+import bot.shared.UserSessionManager;
+
+/**
+ * Watches the playback of users who opted in with /follow and reports when
+ * it really changes: a new track, pause/resume, the same track starting
+ * over, or playback stopping.
+ *
+ * Each follower has one poll deadline in a DelayQueue. While a track plays
+ * the next poll is timed for just after it should end, but at most
+ * MAX_INTERVAL (30 s) away so skips are noticed: a listening follower costs
+ * about two calls a minute (about 8 for a 4-minute track) rather than one
+ * every few seconds, and a paused or idle one fewer. Polls are background work in
+ * the Spotify request scheduler and at most MAX_IN_FLIGHT run at once, so
+ * thousands of followers never take more than a bounded share of threads or
+ * quota. A poll the bot itself couldn't run (scheduler full, timed out or
+ * the app rate limited) is retried later and never ends a follow.
+ */
+public class NowPlayingPoller {
+    private static final Logger log = Logger.get(NowPlayingPoller.class);
+
+    public enum Change {
+        TRACK_CHANGED,
+        PAUSED,
+        RESUMED,
+        RESTARTED,
+        STOPPED,
+        // Spotify kept refusing the polls (or the user logged out), so the user is no longer followed
+        FOLLOW_ENDED
+    }
+
+    public interface Listener {
+        /**
+         * @param track The track the change is about; null for STOPPED and FOLLOW_ENDED
+         */
+        void onNowPlayingChanged(long chatId, Change change, TrackSummary track);
+    }
+
+    private static final long MIN_INTERVAL_MILLIS = 3 * 1000;
+    private static final long MAX_INTERVAL_MILLIS = 30 * 1000;
+    private static final long PAUSED_INTERVAL_MILLIS = 20 * 1000;
+    private static final long IDLE_INTERVAL_MILLIS = 30 * 1000;
+    private static final long ERROR_INTERVAL_MILLIS = 60 * 1000;
+    // Poll this long after a track should have ended, so the next one has started
+    private static final long END_OF_TRACK_SLACK_MILLIS = 1500;
+    // A track back near its start this far behind where it should be was restarted, not seeked
+    private static final long RESTART_TOLERANCE_MILLIS = 10 * 1000;
+    private static final int MAX_FAILURES = 5;
+    private static final int MAX_IN_FLIGHT = 32;
+
+    private final SpotifyService spotifyService;
+    private final Listener listener;
+    private final Map<Long, Follow> follows = new ConcurrentHashMap<>();
+    private final DelayQueue<PollTask> due = new DelayQueue<>();
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+    private final Thread pollerThread;
+
+    private final AtomicLong polls = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong deferred = new AtomicLong();
+    private final AtomicLong notifications = new AtomicLong();
+
+    public NowPlayingPoller(SpotifyService spotifyService, Listener listener) {
+        this.spotifyService = spotifyService;
+        this.listener = listener;
+        this.pollerThread = new Thread(this::runPolls, "now-playing-poller");
+        this.pollerThread.setDaemon(true);
+        this.pollerThread.start();
+    }
+
+    /**
+     * Start following a user's playback. The first poll reports what is
+     * playing right now.
+     *
+     * @return False if the user was already followed
+     */
+    public boolean follow(long chatId) {
+        Follow follow = new Follow(chatId);
+        if (follows.putIfAbsent(chatId, follow) != null) {
+            return false;
+        }
+        schedule(follow, 0);
+        return true;
+    }
+
+    /**
+     * @return False if the user wasn't followed
+     */
+    public boolean unfollow(long chatId) {
+        // A poll already queued or in flight finds the follow gone and is dropped
+        return follows.remove(chatId) != null;
+    }
+
+    public boolean isFollowing(long chatId) {
+        return follows.containsKey(chatId);
+    }
+
+    private void schedule(Follow follow, long delayMillis) {
+        PollTask task = new PollTask(follow, System.currentTimeMillis() + delayMillis);
+        follow.task = task;
+        due.put(task);
+    }
+
+    private void runPolls() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                PollTask task = due.take();
+                Follow follow = task.follow;
+                if (follows.get(follow.chatId) != follow || follow.task != task) {
+                    continue;
+                }
+
+                inFlight.acquire();
+                polls.incrementAndGet();
+                spotifyService.getPlaybackStateAsync(follow.chatId).whenComplete((state, error) -> {
+                    inFlight.release();
+                    onPolled(follow, state, error);
+                });
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void onPolled(Follow follow, CurrentlyPlayingContext state, Throwable error) {
+        if (follows.get(follow.chatId) != follow) {
+            return;
+        }
+
+        if (error != null && isOverload(error)) {
+            // The bot was too busy to ask Spotify; says nothing about the user, so try again later
+            deferred.incrementAndGet();
+            schedule(follow, ERROR_INTERVAL_MILLIS);
+            return;
+        }
+        if (error != null) {
+            failures.incrementAndGet();
+            follow.failures++;
+            boolean loggedOut = UserSessionManager.getInstance().getSession(follow.chatId) == null;
+            if (loggedOut || follow.failures >= MAX_FAILURES) {
+                if (follows.remove(follow.chatId, follow)) {
+                    notify(follow.chatId, Change.FOLLOW_ENDED, null);
+                }
+            } else {
+                schedule(follow, ERROR_INTERVAL_MILLIS * follow.failures);
+            }
+            return;
+        }
+        follow.failures = 0;
+
+        IPlaylistItem item = state != null ? state.getItem() : null;
+        String uri = item != null ? item.getUri() : null;
+        boolean playing = item != null && Boolean.TRUE.equals(state.getIs_playing());
+        long progress = state != null && state.getProgress_ms() != null ? state.getProgress_ms() : 0;
+        long now = System.currentTimeMillis();
+
+        Change change = detectChange(follow, uri, playing, progress, now);
+        follow.uri = uri;
+        follow.playing = playing;
+        follow.progressMs = progress;
+        follow.observedAt = now;
+        follow.initialized = true;
+
+        if (change != null) {
+            // Playback may have moved to another device
+            spotifyService.onPlaybackChanged(follow.chatId,
+                    state != null && state.getDevice() != null ? state.getDevice().getId() : null);
+            notify(follow.chatId, change, item != null ? TrackSummary.of(item) : null);
+        }
+        schedule(follow, nextInterval(item, playing, progress));
+    }
+
+    // Rejected by a full request scheduler, not run before the timeout, or still 429 after the
+    // scheduler's retries: the app's quota is spent, which is no fault of this user's
+    private static boolean isOverload(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        return cause instanceof RejectedExecutionException
+                || cause instanceof TimeoutException
+                || cause instanceof CancellationException
+                || cause instanceof TooManyRequestsException;
+    }
+
+    private static Change detectChange(Follow follow, String uri, boolean playing, long progress, long now) {
+        if (!follow.initialized) {
+            return uri != null ? (playing ? Change.TRACK_CHANGED : Change.PAUSED) : null;
+        }
+        if (!Objects.equals(uri, follow.uri)) {
+            return uri == null ? Change.STOPPED : Change.TRACK_CHANGED;
+        }
+        if (playing != follow.playing) {
+            return playing ? Change.RESUMED : Change.PAUSED;
+        }
+        if (playing) {
+            long expected = follow.progressMs + (now - follow.observedAt);
+            if (progress < RESTART_TOLERANCE_MILLIS && expected - progress > RESTART_TOLERANCE_MILLIS) {
+                return Change.RESTARTED;
+            }
+        }
+        return null;
+    }
+
+    private static long nextInterval(IPlaylistItem item, boolean playing, long progress) {
+        if (item == null) {
+            return IDLE_INTERVAL_MILLIS;
+        }
+        if (!playing) {
+            return PAUSED_INTERVAL_MILLIS;
+        }
+        Integer duration = item.getDurationMs();
+        if (duration == null) {
+            return MAX_INTERVAL_MILLIS;
+        }
+        long remaining = duration - progress + END_OF_TRACK_SLACK_MILLIS;
+        return Math.max(MIN_INTERVAL_MILLIS, Math.min(MAX_INTERVAL_MILLIS, remaining));
+    }
+
+    private void notify(long chatId, Change change, TrackSummary track) {
+        notifications.incrementAndGet();
+        try {
+            listener.onNowPlayingChanged(chatId, change, track);
+        } catch (RuntimeException e) {
+            log.error("Now-playing listener failed for user {}: {}", chatId, e.getMessage(), e);
+        }
+    }
+
+    public String getStats() {
+        return "Now playing:\n" +
+                "  Followers: " + follows.size() + "\n" +
+                "  Polls: " + polls.get() + " (in flight " + (MAX_IN_FLIGHT - inFlight.availablePermits()) + ")\n" +
+                "  Failed polls: " + failures.get() + "\n" +
+                "  Deferred polls (bot busy): " + deferred.get() + "\n" +
+                "  Notifications: " + notifications.get();
+    }
+
+    public void shutdown() {
+        pollerThread.interrupt();
+    }
+
+    // Per-follower state; touched by one poll at a time, since the next poll is only scheduled after it completes
+    private static final class Follow {
+        private final long chatId;
+        private volatile PollTask task;
+        private String uri;
+        private boolean playing;
+        private long progressMs;
+        private long observedAt;
+        private boolean initialized;
+        private int failures;
+
+        private Follow(long chatId) {
+            this.chatId = chatId;
+        }
+    }
+
+    private static final class PollTask implements Delayed {
+        private final Follow follow;
+        private final long dueAt;
+
+        private PollTask(Follow follow, long dueAt) {
+            this.follow = follow;
+            this.dueAt = dueAt;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(dueAt, ((PollTask) other).dueAt);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package bot.services;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process cache of track search results.
+ *
+ * Keys are the normalized query plus the market and the page (offset and
+ * limit), so "Daft  Punk" and "daft punk" share an entry. The market is the
+ * configured one; with none configured, keys carry no market and entries
+ * are shared across users' countries. A sorted index of
+ * the keys lets callers find results for a longer query that starts with
+ * what the user has typed so far. Entries are evicted least-recently-used once
+ * the estimated size passes the memory budget. An entry is fresh for ttl;
+ * after that it is still served for staleWindow while a background reload
+ * replaces it, so popular queries never wait on Spotify. A failed load is
+ * never cached; its error reaches the caller.
+ */
+public class SearchCache {
+    private static final long DEFAULT_MAX_BYTES = 8L * 1024 * 1024;
+    private static final long DEFAULT_TTL_MILLIS = 10 * 60 * 1000;
+    private static final long DEFAULT_STALE_WINDOW_MILLIS = 30 * 60 * 1000;
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final long staleWindowMillis;
+
+    // Access-ordered, so iteration starts at the least recently used entry; guarded by this
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long usedBytes;
+    // The same keys, sorted for prefix lookups; guarded by this
+    private final TreeSet<String> sortedKeys = new TreeSet<>();
+
+    private final Set<String> revalidating = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Fetches one page of results from Spotify.
+     */
+    @FunctionalInterface
+    public interface Loader {
+        /**
+         * @param revalidating True when reloading a stale entry that is being
+         *                     served meanwhile, so nobody waits on the result
+         * @return The results; fails if Spotify couldn't be asked or answered
+         *         with an error
+         */
+        CompletableFuture<List<TrackSummary>> load(boolean revalidating);
+    }
+
+    public SearchCache() {
+        this(DEFAULT_MAX_BYTES, DEFAULT_TTL_MILLIS, DEFAULT_STALE_WINDOW_MILLIS);
+    }
+
+    public SearchCache(long maxBytes, long ttlMillis, long staleWindowMillis) {
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+        this.staleWindowMillis = staleWindowMillis;
+    }
+
+    /**
+     * Case-fold the query and collapse runs of whitespace, without regex.
+     */
+    public static String normalize(String query) {
+        StringBuilder sb = new StringBuilder(query.length());
+        boolean pendingSpace = false;
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = sb.length() > 0;
+            } else {
+                if (pendingSpace) {
+                    sb.append(' ');
+                    pendingSpace = false;
+                }
+                sb.append(c);
+            }
+        }
+        return sb.toString().toLowerCase(Locale.ROOT);
+    }
+
+    public static String key(String normalizedQuery, String market, int offset, int limit) {
+        return prefixKey(normalizedQuery, market) + pageSuffix(offset, limit);
+    }
+
+    // The start of every key for queries beginning with normalizedQuery
+    public static String prefixKey(String normalizedQuery, String market) {
+        return (market != null ? market : "") + '|' + normalizedQuery;
+    }
+
+    private static String pageSuffix(int offset, int limit) {
+        return "#" + offset + "+" + limit;
+    }
+
+    /**
+     * Cached results for a key, fresh or stale, without loading anything.
+     *
+     * @return The results, or null if the key isn't cached
+     */
+    public List<TrackSummary> peek(String key) {
+        long now = System.currentTimeMillis();
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry == null || now - entry.loadedAt >= ttlMillis + staleWindowMillis) {
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.tracks;
+    }
+
+    // True if the key has fresh results; doesn't count as a hit
+    public boolean contains(String key) {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            return entry != null && now - entry.loadedAt < ttlMillis;
+        }
+    }
+
+    /**
+     * The first page of results for some cached query that starts with the
+     * given one, e.g. "daft punk" for "daft pu". Meant for answering while
+     * the user is still typing.
+     *
+     * @param prefixKey A key from {@link #prefixKey(String, String)}
+     * @param limit     The page size the results must have been fetched with
+     * @return The results, or null if no such query is cached
+     */
+    public List<TrackSummary> peekPrefix(String prefixKey, int limit) {
+        String suffix = pageSuffix(0, limit);
+        String match = null;
+        synchronized (this) {
+            // Keys sharing the prefix are adjacent; only look at a few of them
+            int checked = 0;
+            for (String key : sortedKeys.tailSet(prefixKey)) {
+                if (!key.startsWith(prefixKey) || ++checked > 16) {
+                    break;
+                }
+                if (key.endsWith(suffix)) {
+                    match = key;
+                    break;
+                }
+            }
+        }
+        return match != null ? peek(match) : null;
+    }
+
+    /**
+     * Return cached results for a key, loading them on a miss. A hit, fresh
+     * or stale, completes at once without calling the loader on the
+     * caller's behalf; a stale hit also starts one background reload.
+     *
+     * @param key    A key from {@link #key(String, String, int, int)}
+     * @param loader Fetches fresh results from Spotify
+     * @return The results; on a miss, the loader's future, which fails if
+     *         loading failed, in which case nothing is cached
+     */
+    public CompletableFuture<List<TrackSummary>> get(String key, Loader loader) {
+        long now = System.currentTimeMillis();
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+
+        if (entry != null && now - entry.loadedAt < ttlMillis) {
+            hits.incrementAndGet();
+            return CompletableFuture.completedFuture(entry.tracks);
+        }
+
+        if (entry != null && now - entry.loadedAt < ttlMillis + staleWindowMillis) {
+            staleHits.incrementAndGet();
+            revalidate(key, loader);
+            return CompletableFuture.completedFuture(entry.tracks);
+        }
+
+        misses.incrementAndGet();
+        // Returned as is, so cancelling it still cancels the load
+        CompletableFuture<List<TrackSummary>> loading = loader.load(false);
+        loading.thenAccept(tracks -> put(key, tracks));
+        return loading;
+    }
+
+    private void revalidate(String key, Loader loader) {
+        if (!revalidating.add(key)) {
+            return;
+        }
+        // Best effort: if the reload fails, the stale entry is simply served again
+        loader.load(true).whenComplete((tracks, error) -> {
+            if (error == null) {
+                put(key, tracks);
+            }
+            revalidating.remove(key);
+        });
+    }
+
+    private synchronized void put(String key, List<TrackSummary> tracks) {
+        Entry entry = new Entry(List.copyOf(tracks), System.currentTimeMillis(), estimateBytes(key, tracks));
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            usedBytes -= previous.bytes;
+        } else {
+            sortedKeys.add(key);
+        }
+        usedBytes += entry.bytes;
+
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (usedBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Entry> victim = eldest.next();
+            if (victim.getValue() == entry) {
+                break;
+            }
+            usedBytes -= victim.getValue().bytes;
+            sortedKeys.remove(victim.getKey());
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private static int estimateBytes(String key, List<TrackSummary> tracks) {
+        int bytes = ENTRY_OVERHEAD_BYTES + 2 * key.length();
+        for (TrackSummary track : tracks) {
+            bytes += track.estimatedBytes();
+        }
+        return bytes;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public String getStats() {
+        int size;
+        long bytes;
+        synchronized (this) {
+            size = entries.size();
+            bytes = usedBytes;
+        }
+        return "Search cache:\n" +
+                "  Entries: " + size + " (" + bytes / 1024 + " / " + maxBytes / 1024 + " KiB)\n" +
+                "  Hits: " + hits.get() + " (stale " + staleHits.get() + ")\n" +
+                "  Misses: " + misses.get() + "\n" +
+                "  Evictions: " + evictions.get();
+    }
+
+    private static class Entry {
+        private final List<TrackSummary> tracks;
+        private final long loadedAt;
+        private final int bytes;
+
+        private Entry(List<TrackSummary> tracks, long loadedAt, int bytes) {
+            this.tracks = tracks;
+            this.loadedAt = loadedAt;
+            this.bytes = bytes;
+        }
+    }
+}
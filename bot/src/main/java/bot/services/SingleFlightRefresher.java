@@ -0,0 +1,130 @@
+package bot.services;
+
+import bot.shared.UserSessionManager;
+import se.michaelthelin.spotify.model_objects.credentials.AuthorizationCodeCredentials;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent token refreshes for the same user.
+ *
+ * The first caller runs the refresh request; anyone arriving while it is in
+ * flight waits on the same future and gets the same credentials, so Spotify
+ * sees one refresh and the rotated refresh token is never raced. A caller
+ * that arrives just after a refresh finished sees that the access token has
+ * changed and doesn't refresh again. A failed
+ * refresh is remembered briefly so a revoked refresh token isn't retried on
+ * every message.
+ */
+public class SingleFlightRefresher {
+    private static final long FAILURE_TTL_MILLIS = 30 * 1000;
+
+    private final SpotifyClientPool clientPool;
+    private final Map<Long, CompletableFuture<AuthorizationCodeCredentials>> inFlight = new ConcurrentHashMap<>();
+    private final Map<Long, RecentFailure> recentFailures = new ConcurrentHashMap<>();
+
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong suppressed = new AtomicLong();
+    private final AtomicLong alreadyRefreshed = new AtomicLong();
+
+    public SingleFlightRefresher(SpotifyClientPool clientPool) {
+        this.clientPool = clientPool;
+    }
+
+    /**
+     * Refresh a user's tokens, or join the refresh already in flight for them.
+     * The session is updated before the returned future completes.
+     *
+     * @param userId         The Telegram chat ID of the user
+     * @param session        The user's session, which must hold a refresh token
+     * @param oldAccessToken The access token the caller wants replaced; if the
+     *                       session has moved on from it, no refresh is made
+     * @return The new credentials, or a failed future
+     */
+    public CompletableFuture<AuthorizationCodeCredentials> refresh(long userId, UserSessionManager.UserSession session,
+                                                                   String oldAccessToken) {
+        // Only suppress while the session still holds the refresh token that failed; a new login clears it
+        RecentFailure failure = recentFailures.get(userId);
+        if (failure != null) {
+            if (failure.refreshToken.equals(session.getRefreshToken()) && System.currentTimeMillis() < failure.until) {
+                suppressed.incrementAndGet();
+                return CompletableFuture.failedFuture(failure.cause);
+            }
+            recentFailures.remove(userId, failure);
+        }
+
+        CompletableFuture<AuthorizationCodeCredentials> mine = new CompletableFuture<>();
+        CompletableFuture<AuthorizationCodeCredentials> current = inFlight.putIfAbsent(userId, mine);
+        if (current != null) {
+            coalesced.incrementAndGet();
+            return current;
+        }
+
+        // Read the tokens only once the slot is ours, so they can't be from before a refresh that just ended
+        UserSessionManager.Tokens tokens = session.getTokens();
+        String refreshToken = tokens.getRefreshToken();
+        if (!Objects.equals(tokens.getAccessToken(), oldAccessToken)) {
+            alreadyRefreshed.incrementAndGet();
+            inFlight.remove(userId, mine);
+            mine.complete(new AuthorizationCodeCredentials.Builder()
+                    .setAccessToken(tokens.getAccessToken())
+                    .setRefreshToken(refreshToken)
+                    .build());
+            return mine;
+        }
+
+        started.incrementAndGet();
+        try {
+            AuthorizationCodeCredentials credentials = clientPool.refreshClient(refreshToken)
+                    .authorizationCodeRefresh()
+                    .build()
+                    .execute();
+
+            // Publish the new access token, and the rotated refresh token if provided, in one step
+            session.updateTokens(credentials.getAccessToken(), credentials.getRefreshToken());
+            mine.complete(credentials);
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            recentFailures.put(userId, new RecentFailure(refreshToken, System.currentTimeMillis() + FAILURE_TTL_MILLIS, e));
+            mine.completeExceptionally(e);
+        } finally {
+            inFlight.remove(userId, mine);
+        }
+        return mine;
+    }
+
+    public long getStarted() {
+        return started.get();
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public String getStats() {
+        return "Token refreshes:\n" +
+                "  Started: " + started.get() + "\n" +
+                "  Coalesced: " + coalesced.get() + "\n" +
+                "  Already refreshed: " + alreadyRefreshed.get() + "\n" +
+                "  Failed: " + failed.get() + "\n" +
+                "  Suppressed after failure: " + suppressed.get();
+    }
+
+    private static class RecentFailure {
+        private final String refreshToken;
+        private final long until;
+        private final Exception cause;
+
+        private RecentFailure(String refreshToken, long until, Exception cause) {
+            this.refreshToken = refreshToken;
+            this.until = until;
+            this.cause = cause;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package bot.services;
+
+import se.michaelthelin.spotify.IHttpManager;
+import se.michaelthelin.spotify.SpotifyApi;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded cache of per-user SpotifyApi clients keyed by Telegram chat ID.
+ *
+ * Every client is built once from the user's tokens and never mutated
+ * afterwards, so calls for different users can run in parallel without
+ * sharing a token. A client is rebuilt when the user's access token changes
+ * (e.g. after a refresh) and dropped on logout or after being idle. All
+ * clients share one HTTP manager, so building a client never opens a
+ * connection of its own.
+ */
+public class SpotifyClientPool {
+    private static final int DEFAULT_MAX_CLIENTS = 1024;
+    private static final long DEFAULT_IDLE_MILLIS = 30 * 60 * 1000;
+
+    private final SpotifyEndpoints endpoints;
+    private final IHttpManager httpManager;
+    private final String clientId;
+    private final String clientSecret;
+    private final URI redirectUri;
+    private final int maxClients;
+    private final long idleMillis;
+
+    private final Map<Long, PooledClient> clients = new ConcurrentHashMap<>();
+    private volatile long lastSweep = System.currentTimeMillis();
+
+    public SpotifyClientPool(SpotifyEndpoints endpoints, IHttpManager httpManager, String clientId,
+                             String clientSecret, URI redirectUri) {
+        this(endpoints, httpManager, clientId, clientSecret, redirectUri, DEFAULT_MAX_CLIENTS, DEFAULT_IDLE_MILLIS);
+    }
+
+    public SpotifyClientPool(SpotifyEndpoints endpoints, IHttpManager httpManager, String clientId,
+                             String clientSecret, URI redirectUri, int maxClients, long idleMillis) {
+        this.endpoints = endpoints;
+        this.httpManager = httpManager;
+        this.clientId = clientId;
+        this.clientSecret = clientSecret;
+        this.redirectUri = redirectUri;
+        this.maxClients = maxClients;
+        this.idleMillis = idleMillis;
+    }
+
+    /**
+     * Get the client for a user, building a new one if the cached client was
+     * built from a different access token.
+     *
+     * @param chatId       The Telegram chat ID of the user
+     * @param accessToken  The user's current access token
+     * @param refreshToken The user's current refresh token
+     * @return A client bound to the given tokens
+     */
+    public SpotifyApi acquire(long chatId, String accessToken, String refreshToken) {
+        long now = System.currentTimeMillis();
+        sweepIdle(now);
+
+        PooledClient pooled = clients.get(chatId);
+        if (pooled == null || !pooled.accessToken.equals(accessToken)) {
+            PooledClient fresh = new PooledClient(accessToken, build(accessToken, refreshToken));
+            pooled = clients.compute(chatId, (id, current) ->
+                    current != null && current.accessToken.equals(accessToken) ? current : fresh);
+            if (clients.size() > maxClients) {
+                evictIdlest(chatId);
+            }
+        }
+
+        pooled.lastUsed = now;
+        return pooled.api;
+    }
+
+    /**
+     * Build a throwaway client that only carries a refresh token, for use with
+     * the authorization code refresh request.
+     */
+    public SpotifyApi refreshClient(String refreshToken) {
+        return endpoints.builder(httpManager)
+                .setClientId(clientId)
+                .setClientSecret(clientSecret)
+                .setRefreshToken(refreshToken)
+                .build();
+    }
+
+    // Drop the cached client for a user (logout)
+    public void evict(long chatId) {
+        clients.remove(chatId);
+    }
+
+    public int size() {
+        return clients.size();
+    }
+
+    private SpotifyApi build(String accessToken, String refreshToken) {
+        return endpoints.builder(httpManager)
+                .setClientId(clientId)
+                .setClientSecret(clientSecret)
+                .setRedirectUri(redirectUri)
+                .setAccessToken(accessToken)
+                .setRefreshToken(refreshToken)
+                .build();
+    }
+
+    // Remove clients that have not been used for idleMillis; runs at most every idleMillis / 4
+    private void sweepIdle(long now) {
+        if (now - lastSweep < idleMillis / 4) {
+            return;
+        }
+        lastSweep = now;
+        clients.entrySet().removeIf(entry -> now - entry.getValue().lastUsed > idleMillis);
+    }
+
+    // Only called when the pool is over capacity, so the linear scan is rare
+    private void evictIdlest(long keep) {
+        Long idlest = null;
+        long oldest = Long.MAX_VALUE;
+        for (Map.Entry<Long, PooledClient> entry : clients.entrySet()) {
+            if (entry.getKey() != keep && entry.getValue().lastUsed < oldest) {
+                oldest = entry.getValue().lastUsed;
+                idlest = entry.getKey();
+            }
+        }
+        if (idlest != null) {
+            clients.remove(idlest);
+        }
+    }
+
+    private static class PooledClient {
+        private final String accessToken;
+        private final SpotifyApi api;
+        private volatile long lastUsed;
+
+        private PooledClient(String accessToken, SpotifyApi api) {
+            this.accessToken = accessToken;
+            this.api = api;
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+}
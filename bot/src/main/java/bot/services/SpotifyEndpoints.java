@@ -0,0 +1,118 @@
+package bot.services;
+
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.ParseException;
+import se.michaelthelin.spotify.IHttpManager;
+import se.michaelthelin.spotify.SpotifyApi;
+import se.michaelthelin.spotify.exceptions.SpotifyWebApiException;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * Where the bot sends Spotify requests: the real Web API and accounts
+ * service by default, or local stand-ins when SPOTIFY_API_URL and
+ * SPOTIFY_ACCOUNTS_URL are set (e.g. http://localhost:8091 for the load-test
+ * fake).
+ *
+ * The Web API address is set on each SpotifyApi with setScheme/setHost/
+ * setPort. Token requests ignore those and always build
+ * https://accounts.spotify.com URIs, so an overridden accounts address is
+ * applied by an HTTP manager that rewrites them.
+ */
+public final class SpotifyEndpoints {
+    private final URI api;
+    private final URI accounts;
+
+    public SpotifyEndpoints(URI api, URI accounts) {
+        this.api = api;
+        this.accounts = accounts;
+    }
+
+    public static SpotifyEndpoints fromEnvironment() {
+        return new SpotifyEndpoints(uriFromEnvironment("SPOTIFY_API_URL"), uriFromEnvironment("SPOTIFY_ACCOUNTS_URL"));
+    }
+
+    private static URI uriFromEnvironment(String name) {
+        String value = System.getenv(name);
+        return value != null && !value.isBlank() ? URI.create(value) : null;
+    }
+
+    /**
+     * A SpotifyApi builder aimed at these endpoints.
+     *
+     * @param httpManager The HTTP manager the requests should go through
+     */
+    public SpotifyApi.Builder builder(IHttpManager httpManager) {
+        SpotifyApi.Builder builder = new SpotifyApi.Builder()
+                .setHttpManager(accounts != null ? new AccountsRedirect(httpManager, accounts) : httpManager);
+        if (api != null) {
+            builder.setScheme(api.getScheme())
+                    .setHost(api.getHost())
+                    .setPort(api.getPort() != -1 ? api.getPort() : defaultPort(api.getScheme()));
+        }
+        return builder;
+    }
+
+    private static int defaultPort(String scheme) {
+        return "http".equalsIgnoreCase(scheme) ? 80 : 443;
+    }
+
+    public boolean isDefault() {
+        return api == null && accounts == null;
+    }
+
+    @Override
+    public String toString() {
+        return "api=" + (api != null ? api : "https://" + SpotifyApi.DEFAULT_HOST)
+                + ", accounts=" + (accounts != null ? accounts : "https://" + SpotifyApi.DEFAULT_AUTHENTICATION_HOST);
+    }
+
+    // Sends requests for accounts.spotify.com to another address; everything else passes through
+    private static final class AccountsRedirect implements IHttpManager {
+        private final IHttpManager delegate;
+        private final URI target;
+
+        private AccountsRedirect(IHttpManager delegate, URI target) {
+            this.delegate = delegate;
+            this.target = target;
+        }
+
+        private URI rewrite(URI uri) {
+            if (!SpotifyApi.DEFAULT_AUTHENTICATION_HOST.equalsIgnoreCase(uri.getHost())) {
+                return uri;
+            }
+            try {
+                return new URI(target.getScheme(), null, target.getHost(), target.getPort(),
+                        uri.getPath(), uri.getQuery(), null);
+            } catch (URISyntaxException e) {
+                throw new IllegalArgumentException("Can't redirect " + uri + " to " + target, e);
+            }
+        }
+
+        @Override
+        public String get(URI uri, Header[] headers) throws IOException, SpotifyWebApiException, ParseException {
+            return delegate.get(rewrite(uri), headers);
+        }
+
+        @Override
+        public String post(URI uri, Header[] headers, HttpEntity body)
+                throws IOException, SpotifyWebApiException, ParseException {
+            return delegate.post(rewrite(uri), headers, body);
+        }
+
+        @Override
+        public String put(URI uri, Header[] headers, HttpEntity body)
+                throws IOException, SpotifyWebApiException, ParseException {
+            return delegate.put(rewrite(uri), headers, body);
+        }
+
+        @Override
+        public String delete(URI uri, Header[] headers, HttpEntity body)
+                throws IOException, SpotifyWebApiException, ParseException {
+            return delegate.delete(rewrite(uri), headers, body);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package bot.services;
+
+import bot.shared.MetricsRegistry;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.impl.io.ManagedHttpClientConnectionFactory;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.io.ManagedHttpClientConnection;
+import org.apache.hc.core5.http.io.HttpConnectionFactory;
+import org.apache.hc.core5.http.io.SocketConfig;
+import org.apache.hc.core5.pool.PoolStats;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import se.michaelthelin.spotify.IHttpManager;
+import se.michaelthelin.spotify.SpotifyHttpManager;
+
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The one HTTP connection pool every SpotifyApi client is built on, so
+ * connections to api.spotify.com and accounts.spotify.com are kept alive and
+ * reused across users and token refreshes instead of each request paying for
+ * a new TCP and TLS handshake.
+ *
+ * The library's default manager also gets HttpClient's default pool of five
+ * connections per route, no timeouts and no idle reaping. Here the limits
+ * are sized to the request scheduler's concurrency, and a background task
+ * closes connections that have been idle longer than the server is likely
+ * to keep them.
+ */
+public class SpotifyHttpPool {
+    private static final long REAP_INTERVAL_SECONDS = 10;
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final SpotifyHttpManager httpManager;
+    private final long idleSeconds;
+    private final AtomicLong opened = new AtomicLong();
+    private final ScheduledExecutorService reaper;
+
+    /**
+     * @param maxPerRoute          Connections kept per host (api and accounts each get this many)
+     * @param maxTotal             Connections across all hosts
+     * @param connectTimeoutMillis Time allowed for TCP connect and TLS handshake
+     * @param socketTimeoutMillis  Time allowed waiting for response bytes
+     * @param leaseTimeoutMillis   Time a request may wait for a free pooled connection
+     * @param idleSeconds          Idle connections older than this are closed
+     * @param ttlSeconds           Connections are retired after this, so DNS changes are picked up
+     */
+    public SpotifyHttpPool(int maxPerRoute, int maxTotal, int connectTimeoutMillis, int socketTimeoutMillis,
+                           int leaseTimeoutMillis, long idleSeconds, long ttlSeconds) {
+        this.idleSeconds = idleSeconds;
+        this.connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+                .setMaxConnPerRoute(maxPerRoute)
+                .setMaxConnTotal(maxTotal)
+                .setConnectionFactory(new CountingConnectionFactory())
+                .setDefaultSocketConfig(SocketConfig.custom()
+                        .setSoKeepAlive(true)
+                        .setTcpNoDelay(true)
+                        .setSoTimeout(Timeout.ofMilliseconds(socketTimeoutMillis))
+                        .build())
+                .setDefaultConnectionConfig(ConnectionConfig.custom()
+                        .setConnectTimeout(Timeout.ofMilliseconds(connectTimeoutMillis))
+                        .setSocketTimeout(Timeout.ofMilliseconds(socketTimeoutMillis))
+                        .setTimeToLive(TimeValue.ofSeconds(ttlSeconds))
+                        // Check a connection that sat idle for a while before reusing it
+                        .setValidateAfterInactivity(TimeValue.ofSeconds(2))
+                        .build())
+                .build();
+        this.httpManager = new SpotifyHttpManager.Builder()
+                .setConnectionManager(connectionManager)
+                .setConnectionRequestTimeout(leaseTimeoutMillis)
+                .setSocketTimeout(socketTimeoutMillis)
+                .build();
+
+        this.reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "spotify-http-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reaper.scheduleWithFixedDelay(this::closeIdle, REAP_INTERVAL_SECONDS, REAP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        registerMetrics();
+    }
+
+    /**
+     * Create a pool configured from system properties:
+     * bot.spotify.http.maxPerRoute (default 20), bot.spotify.http.maxTotal (50),
+     * bot.spotify.http.connectTimeoutMillis (3000),
+     * bot.spotify.http.socketTimeoutMillis (10000),
+     * bot.spotify.http.leaseTimeoutMillis (2000), bot.spotify.http.idleSeconds (30)
+     * and bot.spotify.http.ttlSeconds (300).
+     */
+    public static SpotifyHttpPool fromSystemProperties() {
+        return new SpotifyHttpPool(
+                Integer.getInteger("bot.spotify.http.maxPerRoute", 20),
+                Integer.getInteger("bot.spotify.http.maxTotal", 50),
+                Integer.getInteger("bot.spotify.http.connectTimeoutMillis", 3000),
+                Integer.getInteger("bot.spotify.http.socketTimeoutMillis", 10000),
+                Integer.getInteger("bot.spotify.http.leaseTimeoutMillis", 2000),
+                Long.getLong("bot.spotify.http.idleSeconds", 30),
+                Long.getLong("bot.spotify.http.ttlSeconds", 300));
+    }
+
+    private void registerMetrics() {
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        metrics.counter("spotify_http_connections_opened_total",
+                "Connections opened to Spotify; compare with spotify_request_seconds_count for reuse", opened::get);
+        metrics.gauge("spotify_http_connections_leased", "Pooled Spotify connections in use",
+                () -> connectionManager.getTotalStats().getLeased());
+        metrics.gauge("spotify_http_connections_available", "Idle pooled Spotify connections ready for reuse",
+                () -> connectionManager.getTotalStats().getAvailable());
+        metrics.gauge("spotify_http_connections_pending", "Requests waiting for a pooled Spotify connection",
+                () -> connectionManager.getTotalStats().getPending());
+    }
+
+    // The manager every SpotifyApi should be built with
+    public IHttpManager getHttpManager() {
+        return httpManager;
+    }
+
+    private void closeIdle() {
+        connectionManager.closeExpired();
+        connectionManager.closeIdle(TimeValue.ofSeconds(idleSeconds));
+    }
+
+    public void close() {
+        reaper.shutdownNow();
+        connectionManager.close();
+    }
+
+    public String getStats() {
+        PoolStats stats = connectionManager.getTotalStats();
+        return "Spotify connections:\n" +
+                "  Leased: " + stats.getLeased() + " / " + stats.getMax() + "\n" +
+                "  Idle: " + stats.getAvailable() + "\n" +
+                "  Waiting: " + stats.getPending() + "\n" +
+                "  Opened: " + opened.get();
+    }
+
+    // Counts every new connection the pool opens
+    private class CountingConnectionFactory implements HttpConnectionFactory<ManagedHttpClientConnection> {
+        private final HttpConnectionFactory<ManagedHttpClientConnection> delegate = ManagedHttpClientConnectionFactory.INSTANCE;
+
+        @Override
+        public ManagedHttpClientConnection createConnection(Socket socket) throws IOException {
+            opened.incrementAndGet();
+            return delegate.createConnection(socket);
+        }
+
+        @Override
+        public ManagedHttpClientConnection createConnection(SSLSocket sslSocket, Socket socket) throws IOException {
+            opened.incrementAndGet();
+            return delegate.createConnection(sslSocket, socket);
+        }
+    }
+}
@@ -0,0 +1,428 @@
+package bot.services;
+
+import se.michaelthelin.spotify.exceptions.detailed.TooManyRequestsException;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import bot.shared.Logger;
+import bot.shared.MetricsRegistry;
+
+/**
+ * Single gate every Spotify Web API call goes through.
+ *
+ * Calls are started no faster than a token bucket sized to the app's quota.
+ * When Spotify answers 429 the whole scheduler pauses for Retry-After and the
+ * call is put back at the front of its queue. Interactive calls (a user
+ * waiting on a command) always start before background work such as token
+ * refreshes, and within a priority users are served round-robin, so one busy
+ * chat can't starve the others.
+ */
+public class SpotifyRequestScheduler {
+    private static final Logger log = Logger.get(SpotifyRequestScheduler.class);
+
+    public enum Priority {
+        INTERACTIVE,
+        BACKGROUND
+    }
+
+    private static final int MAX_RATE_LIMIT_RETRIES = 3;
+    private static final long DEFAULT_RETRY_AFTER_MILLIS = 1000;
+
+    private final int maxConcurrent;
+    private final int maxQueuedPerUser;
+    private final int maxQueued;
+
+    private final double permitsPerNano;
+    private final double burst;
+    // Token bucket state; guarded by bucketLock
+    private final Object bucketLock = new Object();
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+    private volatile long pausedUntilNanos;
+
+    // Queues; guarded by lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Lane[] lanes = { new Lane(), new Lane() };
+    private int queued;
+
+    private final Semaphore running;
+    private final ExecutorService workers;
+    private final Thread dispatcherThread;
+    private volatile boolean stopped;
+
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param ratePerSecond    Sustained calls per second
+     * @param burst            Calls that may start back to back after an idle period
+     * @param maxConcurrent    Calls in flight at once
+     * @param maxQueuedPerUser Calls a single user may have waiting
+     * @param maxQueued        Calls waiting across all users
+     */
+    public SpotifyRequestScheduler(double ratePerSecond, int burst, int maxConcurrent, int maxQueuedPerUser, int maxQueued) {
+        this.permitsPerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+        this.tokens = burst;
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueuedPerUser = maxQueuedPerUser;
+        this.maxQueued = maxQueued;
+        this.running = new Semaphore(maxConcurrent);
+        this.pausedUntilNanos = System.nanoTime();
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(maxConcurrent, runnable -> {
+            Thread thread = new Thread(runnable, "spotify-io-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.dispatcherThread = new Thread(this::dispatchLoop, "spotify-scheduler");
+        this.dispatcherThread.setDaemon(true);
+        this.dispatcherThread.start();
+
+        registerMetrics();
+    }
+
+    private void registerMetrics() {
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        metrics.counter("spotify_scheduler_executed_total", "Spotify calls started by the scheduler", executed::get);
+        metrics.counter("spotify_scheduler_rate_limited_total", "429 responses that paused the scheduler", rateLimited::get);
+        metrics.counter("spotify_scheduler_rejected_total", "Spotify calls rejected because a queue was full", rejected::get);
+        metrics.gauge("spotify_scheduler_in_flight", "Spotify calls running now",
+                () -> maxConcurrent - running.availablePermits());
+        metrics.gauge("spotify_scheduler_queued", "Spotify calls waiting to start", () -> {
+            lock.lock();
+            try {
+                return queued;
+            } finally {
+                lock.unlock();
+            }
+        });
+    }
+
+    /**
+     * Create a scheduler configured from system properties:
+     * bot.spotify.ratePerSecond (default 10), bot.spotify.burst (20),
+     * bot.spotify.maxConcurrent (16), bot.spotify.maxQueuedPerUser (20) and
+     * bot.spotify.maxQueued (1000).
+     */
+    public static SpotifyRequestScheduler fromSystemProperties() {
+        double rate = Double.parseDouble(System.getProperty("bot.spotify.ratePerSecond", "10"));
+        return new SpotifyRequestScheduler(rate,
+                Integer.getInteger("bot.spotify.burst", 20),
+                Integer.getInteger("bot.spotify.maxConcurrent", 16),
+                Integer.getInteger("bot.spotify.maxQueuedPerUser", 20),
+                Integer.getInteger("bot.spotify.maxQueued", 1000));
+    }
+
+    /**
+     * Queue a call. The returned future completes with its result. Completing
+     * or cancelling the future first (e.g. with orTimeout) drops the call if
+     * it hasn't started and interrupts it if it has.
+     *
+     * @throws RejectedExecutionException if the user's queue or the scheduler is full
+     */
+    public <T> CompletableFuture<T> submit(long userId, Priority priority, Callable<T> call) {
+        Job<T> job = new Job<>(userId, priority, call);
+
+        lock.lock();
+        try {
+            if (stopped) {
+                throw new RejectedExecutionException("Spotify request scheduler is shut down");
+            }
+            if (queued >= maxQueued || !lanes[priority.ordinal()].offer(job, maxQueuedPerUser)) {
+                rejected.incrementAndGet();
+                throw new RejectedExecutionException("Too many Spotify requests queued for user " + userId);
+            }
+            queued++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        job.future.whenComplete((value, error) -> job.interruptIfRunning());
+        return job.future;
+    }
+
+    private void dispatchLoop() {
+        try {
+            while (!stopped) {
+                awaitWork();
+                running.acquire();
+                awaitPermit();
+
+                Job<?> job = nextJob();
+                if (job == null) {
+                    running.release();
+                    continue;
+                }
+                takeToken();
+                workers.execute(() -> run(job));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void awaitWork() throws InterruptedException {
+        lock.lock();
+        try {
+            while (queued == 0 && !stopped) {
+                notEmpty.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Wait out any Retry-After pause and for a token, without taking it yet
+    private void awaitPermit() throws InterruptedException {
+        while (!stopped) {
+            long now = System.nanoTime();
+            long wait = Math.max(pausedUntilNanos - now, nanosUntilToken(now));
+            if (wait <= 0) {
+                return;
+            }
+            TimeUnit.NANOSECONDS.sleep(Math.min(wait, TimeUnit.MILLISECONDS.toNanos(100)));
+        }
+    }
+
+    // Picked only once a permit is available, so an interactive call queued meanwhile goes first
+    private Job<?> nextJob() {
+        lock.lock();
+        try {
+            for (Lane lane : lanes) {
+                Job<?> job;
+                while ((job = lane.poll()) != null) {
+                    queued--;
+                    if (!job.future.isDone()) {
+                        return job;
+                    }
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private <T> void run(Job<T> job) {
+        boolean requeued = false;
+        try {
+            if (!job.start()) {
+                return;
+            }
+            T value;
+            try {
+                value = job.call.call();
+            } finally {
+                job.finish();
+            }
+            executed.incrementAndGet();
+            job.future.complete(value);
+        } catch (TooManyRequestsException e) {
+            rateLimited.incrementAndGet();
+            pauseFor(e.getRetryAfter() > 0 ? TimeUnit.SECONDS.toMillis(e.getRetryAfter()) : DEFAULT_RETRY_AFTER_MILLIS);
+            requeued = job.attempts++ < MAX_RATE_LIMIT_RETRIES && requeue(job);
+            if (!requeued) {
+                job.future.completeExceptionally(e);
+            }
+        } catch (Exception e) {
+            job.future.completeExceptionally(e);
+        } finally {
+            running.release();
+        }
+    }
+
+    private boolean requeue(Job<?> job) {
+        lock.lock();
+        try {
+            if (stopped || job.future.isDone()) {
+                return false;
+            }
+            lanes[job.priority.ordinal()].offerFirst(job);
+            queued++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop starting calls for a while, e.g. after a 429. Overlapping pauses
+     * extend to the latest deadline.
+     */
+    public void pauseFor(long millis) {
+        long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        synchronized (bucketLock) {
+            if (until - pausedUntilNanos > 0) {
+                pausedUntilNanos = until;
+            }
+            // Restart from an empty bucket so the calls held back don't all fire at once
+            tokens = 0;
+            lastRefill = pausedUntilNanos;
+        }
+        log.warn("Spotify rate limit hit; pausing requests for {} ms", millis);
+    }
+
+    private long nanosUntilToken(long now) {
+        synchronized (bucketLock) {
+            refill(now);
+            return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / permitsPerNano);
+        }
+    }
+
+    private void takeToken() {
+        synchronized (bucketLock) {
+            refill(System.nanoTime());
+            tokens -= 1;
+        }
+    }
+
+    private void refill(long now) {
+        if (now - lastRefill > 0) {
+            tokens = Math.min(burst, tokens + (now - lastRefill) * permitsPerNano);
+            lastRefill = now;
+        }
+    }
+
+    public boolean isPaused() {
+        return pausedUntilNanos - System.nanoTime() > 0;
+    }
+
+    public long getRateLimited() {
+        return rateLimited.get();
+    }
+
+    public String getStats() {
+        int interactive;
+        int background;
+        lock.lock();
+        try {
+            interactive = lanes[Priority.INTERACTIVE.ordinal()].size;
+            background = lanes[Priority.BACKGROUND.ordinal()].size;
+        } finally {
+            lock.unlock();
+        }
+        return "Spotify requests:\n" +
+                "  In flight: " + (maxConcurrent - running.availablePermits()) + " / " + maxConcurrent + "\n" +
+                "  Queued: " + interactive + " interactive, " + background + " background\n" +
+                "  Executed: " + executed.get() + "\n" +
+                "  Rate limited (429): " + rateLimited.get() + (isPaused() ? " (paused)" : "") + "\n" +
+                "  Rejected: " + rejected.get();
+    }
+
+    public void shutdown() {
+        lock.lock();
+        try {
+            stopped = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        dispatcherThread.interrupt();
+        workers.shutdownNow();
+    }
+
+    /**
+     * Round-robin over users with waiting calls. A user is in the ready ring
+     * exactly while their queue is non-empty.
+     */
+    private static final class Lane {
+        private final Map<Long, ArrayDeque<Job<?>>> queues = new HashMap<>();
+        private final ArrayDeque<ArrayDeque<Job<?>>> ready = new ArrayDeque<>();
+        private int size;
+
+        boolean offer(Job<?> job, int maxPerUser) {
+            ArrayDeque<Job<?>> queue = queues.computeIfAbsent(job.userId, id -> new ArrayDeque<>());
+            if (queue.size() >= maxPerUser) {
+                return false;
+            }
+            if (queue.isEmpty()) {
+                ready.addLast(queue);
+            }
+            queue.addLast(job);
+            size++;
+            return true;
+        }
+
+        // Retries go to the front of the user's queue and the front of the ring
+        void offerFirst(Job<?> job) {
+            ArrayDeque<Job<?>> queue = queues.computeIfAbsent(job.userId, id -> new ArrayDeque<>());
+            if (queue.isEmpty()) {
+                ready.addFirst(queue);
+            }
+            queue.addFirst(job);
+            size++;
+        }
+
+        Job<?> poll() {
+            ArrayDeque<Job<?>> queue = ready.pollFirst();
+            if (queue == null) {
+                return null;
+            }
+            Job<?> job = queue.pollFirst();
+            size--;
+            if (queue.isEmpty()) {
+                queues.remove(job.userId);
+            } else {
+                ready.addLast(queue);
+            }
+            return job;
+        }
+    }
+
+    private static final class Job<T> {
+        private final long userId;
+        private final Priority priority;
+        private final Callable<T> call;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private int attempts;
+
+        // The worker running this call, so cancellation can interrupt it; guarded by this
+        private Thread runner;
+
+        private Job(long userId, Priority priority, Callable<T> call) {
+            this.userId = userId;
+            this.priority = priority;
+            this.call = call;
+        }
+
+        synchronized boolean start() {
+            if (future.isDone()) {
+                return false;
+            }
+            runner = Thread.currentThread();
+            return true;
+        }
+
+        synchronized void finish() {
+            runner = null;
+            // Clear an interrupt that arrived as the call returned, so it can't hit the next job
+            Thread.interrupted();
+        }
+
+        synchronized void interruptIfRunning() {
+            if (runner != null) {
+                runner.interrupt();
+            }
+        }
+    }
+}
@@ -1,332 +1,742 @@
 package bot.services;
 
+import bot.shared.Logger;
+import bot.shared.MetricsRegistry;
 import bot.shared.UserSessionManager;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonParser;
+import com.neovisionaries.i18n.CountryCode;
 
 
 
 import org.apache.hc.core5.http.ParseException;
 import se.michaelthelin.spotify.SpotifyApi;
 import se.michaelthelin.spotify.exceptions.SpotifyWebApiException;
+import se.michaelthelin.spotify.exceptions.detailed.NotFoundException;
+import se.michaelthelin.spotify.exceptions.detailed.TooManyRequestsException;
 import se.michaelthelin.spotify.model_objects.credentials.AuthorizationCodeCredentials;
 import se.michaelthelin.spotify.model_objects.miscellaneous.CurrentlyPlaying;
 import se.michaelthelin.spotify.model_objects.miscellaneous.CurrentlyPlayingContext;
+import se.michaelthelin.spotify.model_objects.miscellaneous.Device;
 import se.michaelthelin.spotify.model_objects.specification.Paging;
 import se.michaelthelin.spotify.model_objects.specification.Track;
-import se.michaelthelin.spotify.requests.authorization.authorization_code.AuthorizationCodeRefreshRequest;
 import se.michaelthelin.spotify.requests.authorization.authorization_code.AuthorizationCodeRequest;
 import se.michaelthelin.spotify.requests.authorization.authorization_code.AuthorizationCodeUriRequest;
+import se.michaelthelin.spotify.requests.data.player.AddItemToUsersPlaybackQueueRequest;
 import se.michaelthelin.spotify.requests.data.player.GetInformationAboutUsersCurrentPlaybackRequest;
+import se.michaelthelin.spotify.requests.data.player.PauseUsersPlaybackRequest;
+import se.michaelthelin.spotify.requests.data.player.SkipUsersPlaybackToNextTrackRequest;
+import se.michaelthelin.spotify.requests.data.player.StartResumeUsersPlaybackRequest;
 import se.michaelthelin.spotify.requests.data.search.simplified.SearchTracksRequest;
 
 import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 public class SpotifyService {
+    private static final Logger log = Logger.get(SpotifyService.class);
+
     private static final String CLIENT_ID = "";
     private static final String CLIENT_SECRET = "";
-    URI redirectUri = URI.create("https://spotbot3-6nzlbranf-mierzvojs-projects.vercel.app/api/callback");
+    URI redirectUri = URI.create(System.getenv().getOrDefault("SPOTIFY_REDIRECT_URI",
+            "https://spotbot3-6nzlbranf-mierzvojs-projects.vercel.app/api/callback"));
 
     private final SpotifyApi spotifyApi;
+    private final SpotifyClientPool clientPool;
+    private final AppTokenClient appClient;
+    private final LoginStateTokens loginStates = LoginStateTokens.fromEnvironment();
+    // Playback-state calls in flight, shared by everyone asking for the same user
+    private final Map<Long, CompletableFuture<CurrentlyPlayingContext>> playbackStatePolls = new ConcurrentHashMap<>();
+    private final SingleFlightRefresher refresher;
+
+    private static final long PLAYBACK_TIMEOUT_MILLIS = 5000;
+    private static final long READ_TIMEOUT_MILLIS = 8000;
+    // Results shown for /play and /search
+    private static final int COMMAND_SEARCH_LIMIT = 5;
+
+    // One keep-alive connection pool under every SpotifyApi this service builds
+    private final SpotifyHttpPool httpPool = SpotifyHttpPool.fromSystemProperties();
+    // Every Web API call goes through here, so the app stays under Spotify's rate limit
+    private final SpotifyRequestScheduler scheduler = SpotifyRequestScheduler.fromSystemProperties();
+    private final SearchCache searchCache = new SearchCache();
+
+    // Track details by URI, batched across chats and cached; primed from search results. A batch
+    // mixes chats, so it is sent with the app's token rather than whichever user's opened it.
+    private final TrackMetadataLoader trackLoader = new TrackMetadataLoader((userId, trackIds) ->
+            callAsync(userId, Endpoint.TRACKS, READ_TIMEOUT_MILLIS, SpotifyRequestScheduler.Priority.INTERACTIVE,
+                    this::appClientFor, client -> fetchSeveralTracks(client, trackIds)));
+
+    // Each user's devices and the one playback commands should name
+    private final DeviceCache deviceCache = new DeviceCache(userId ->
+            callAsync(userId, Endpoint.DEVICES, READ_TIMEOUT_MILLIS, SpotifyRequestScheduler.Priority.BACKGROUND,
+                    SpotifyService::fetchDevices));
+
+    // Market for search results (SPOTIFY_MARKET, e.g. "PL"). When null, no market is sent and Spotify
+    // picks one from each token's country, but search cache keys carry no market: the cache is then
+    // market-agnostic and may serve one country's results to a user in another.
+    private final CountryCode market = marketFromEnvironment();
 
     public SpotifyService() {
-        this.spotifyApi = new SpotifyApi.Builder()
+        this(SpotifyEndpoints.fromEnvironment());
+    }
+
+    public SpotifyService(SpotifyEndpoints endpoints) {
+        this.spotifyApi = endpoints.builder(httpPool.getHttpManager())
                 .setClientId(CLIENT_ID)
                 .setClientSecret(CLIENT_SECRET)
                 .setRedirectUri(redirectUri)
                 .build();
-        System.out.println("SpotifyService initialized with redirect URI: " + redirectUri);
+        this.appClient = new AppTokenClient(spotifyApi, () -> endpoints.builder(httpPool.getHttpManager()));
+        this.clientPool = new SpotifyClientPool(endpoints, httpPool.getHttpManager(), CLIENT_ID, CLIENT_SECRET, redirectUri);
+        if (!endpoints.isDefault()) {
+            log.info("Using Spotify endpoints {}", endpoints);
+        }
+        this.refresher = new SingleFlightRefresher(clientPool);
+        log.info("SpotifyService initialized with redirect URI: {}", redirectUri);
     }
 
-    public String getAuthorizationUrl() {
+    private static CountryCode marketFromEnvironment() {
+        String code = System.getenv("SPOTIFY_MARKET");
+        return code != null && !code.isEmpty() ? CountryCode.getByCode(code.toUpperCase()) : null;
+    }
+
+    /**
+     * Build the Spotify login link for a chat. The state parameter identifies
+     * the chat, so the callback can store the tokens in its session directly.
+     */
+    public String getAuthorizationUrl(long chatId) {
         try {
             AuthorizationCodeUriRequest authorizationCodeUriRequest = spotifyApi.authorizationCodeUri()
                     .scope("user-read-playback-state user-modify-playback-state user-read-currently-playing user-read-private")
                     .show_dialog(true) // Force consent screen to show
-                    .state(String.valueOf(System.currentTimeMillis())) // Prevent caching
+                    .state(loginStates.issue(chatId))
                     .build();
 
             URI uri = authorizationCodeUriRequest.execute();
-            System.out.println("Generated authorization URL: " + uri);
+            log.debug("Generated authorization URL for user {}", chatId);
             return uri.toString();
         } catch (Exception e) {
-            System.err.println("Error generating authorization URL: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error generating authorization URL: {}", e.getMessage(), e);
             return null;
         }
     }
 
-    public void setAuthorizationCode(String code) {
+    /**
+     * Finish a login started with {@link #getAuthorizationUrl(long)}: find the
+     * chat the state belongs to, exchange the code and store the tokens in
+     * that chat's session.
+     *
+     * @param state The state parameter from the callback
+     * @param code  The authorization code from the callback
+     * @return The chat ID that was logged in (negative for groups), or empty if
+     *         the state is invalid, expired or reused
+     * @throws IOException if the code exchange fails
+     */
+    public OptionalLong completeLogin(String state, String code) throws IOException {
+        OptionalLong verified = loginStates.verify(state);
+        if (verified.isEmpty()) {
+            return verified;
+        }
+        long chatId = verified.getAsLong();
+
+        AuthorizationCodeCredentials credentials;
         try {
-            AuthorizationCodeRequest authorizationCodeRequest = spotifyApi.authorizationCode(code).build();
-            final AuthorizationCodeCredentials credentials = authorizationCodeRequest.execute();
-
-            // Set access and refresh tokens
-            spotifyApi.setAccessToken(credentials.getAccessToken());
-            spotifyApi.setRefreshToken(credentials.getRefreshToken());
-
-            System.out.println("Expires in: " + credentials.getExpiresIn());
-        } catch (IOException | SpotifyWebApiException e) {
-            System.out.println("Error: " + e.getMessage());
-        } catch (ParseException e) {
-            throw new RuntimeException(e);
+            credentials = exchangeAuthorizationCode(code);
+        } catch (SpotifyWebApiException | ParseException e) {
+            throw new IOException("Token exchange failed: " + e.getMessage(), e);
         }
+
+        UserSessionManager.getInstance().getOrCreateSession(chatId)
+                .updateTokens(credentials.getAccessToken(), credentials.getRefreshToken());
+        return verified;
     }
 
+
     /**
-     * Search for tracks on Spotify
+     * Search for tracks on Spotify. Results are served from the search cache
+     * when the same normalized query was made recently.
      * 
-     * @param query The search query
+     * @param userId The Telegram chat ID of the user searching
+     * @param query  The search query
      * @return List of tracks found
      */
-    public List<Track> searchTracks(String query) {
-        try {
-            SearchTracksRequest searchRequest = spotifyApi.searchTracks(query)
-                    .limit(5) // Limit to 5 results for simplicity
-                    .build();
+    public List<TrackSummary> searchTracks(long userId, String query) {
+        return await(searchTracksAsync(userId, query), new ArrayList<>());
+    }
 
-            Paging<Track> results = searchRequest.execute();
-            return Arrays.asList(results.getItems());
-        } catch (IOException | SpotifyWebApiException | ParseException e) {
-            System.out.println("Error searching tracks: " + e.getMessage());
-            return new ArrayList<>();
+    public CompletableFuture<List<TrackSummary>> searchTracksAsync(long userId, String query) {
+        return searchTracksAsync(userId, query, 0, COMMAND_SEARCH_LIMIT);
+    }
+
+    /**
+     * One page of search results. Users who haven't logged in search with
+     * the app's own token.
+     *
+     * @param offset Index of the first result (Spotify allows up to 1000)
+     * @param limit  Results per page, at most 50
+     */
+    public CompletableFuture<List<TrackSummary>> searchTracksAsync(long userId, String query, int offset, int limit) {
+        return search(userId, query, offset, limit, SpotifyRequestScheduler.Priority.INTERACTIVE);
+    }
+
+    // Load a page into the search cache in the background, e.g. the one after the page on screen
+    public void prefetchSearchPage(long userId, String query, int offset, int limit) {
+        String normalized = SearchCache.normalize(query);
+        if (!normalized.isEmpty() && !searchCache.contains(searchKey(normalized, offset, limit))) {
+            search(userId, query, offset, limit, SpotifyRequestScheduler.Priority.BACKGROUND);
         }
     }
 
+    // A cached page, fresh or stale, without calling Spotify; null if it isn't cached
+    public List<TrackSummary> cachedSearch(String query, int offset, int limit) {
+        return searchCache.peek(searchKey(SearchCache.normalize(query), offset, limit));
+    }
+
+    // The cached first page of a longer query starting with this one, e.g. while the user is still typing
+    public List<TrackSummary> cachedSearchByPrefix(String query, int limit) {
+        String normalized = SearchCache.normalize(query);
+        if (normalized.isEmpty()) {
+            return null;
+        }
+        return searchCache.peekPrefix(SearchCache.prefixKey(normalized, marketCode()), limit);
+    }
+
+    private CompletableFuture<List<TrackSummary>> search(long userId, String query, int offset, int limit,
+                                                         SpotifyRequestScheduler.Priority priority) {
+        String normalized = SearchCache.normalize(query);
+        if (normalized.isEmpty()) {
+            return CompletableFuture.completedFuture(new ArrayList<>());
+        }
+
+        // Only a miss or a stale entry's reload goes through the scheduler, so cache hits never wait on it
+        return searchCache.get(searchKey(normalized, offset, limit), revalidating ->
+                callAsync(userId, Endpoint.SEARCH, READ_TIMEOUT_MILLIS,
+                        revalidating ? SpotifyRequestScheduler.Priority.BACKGROUND : priority,
+                        this::searchClientFor, client -> fetchTracks(client, normalized, offset, limit)));
+    }
+
+    private String searchKey(String normalized, int offset, int limit) {
+        return SearchCache.key(normalized, marketCode(), offset, limit);
+    }
+
+    private String marketCode() {
+        return market != null ? market.getAlpha2() : null;
+    }
+
+    // Failures are thrown to the scheduler, which pauses and retries on a 429, and are never cached
+    private List<TrackSummary> fetchTracks(SpotifyApi client, String query, int offset, int limit)
+            throws IOException, SpotifyWebApiException, ParseException {
+        SearchTracksRequest.Builder builder = client.searchTracks(query)
+                .offset(offset)
+                .limit(limit);
+        if (market != null) {
+            builder.market(market);
+        }
+        SearchTracksRequest searchRequest = builder.build();
+
+        Paging<Track> results = searchRequest.execute();
+        List<TrackSummary> tracks = new ArrayList<>(results.getItems().length);
+        for (Track track : results.getItems()) {
+            TrackSummary summary = TrackSummary.of(track);
+            trackLoader.prime(summary);
+            tracks.add(summary);
+        }
+        return tracks;
+    }
+
+    public String getSearchCacheStats() {
+        return searchCache.getStats();
+    }
+
+    /**
+     * Get a track's name and artist. Lookups from all chats within a few
+     * milliseconds are sent as one request, and known tracks are answered
+     * from a cache.
+     *
+     * @param userId   The Telegram chat ID of the user asking
+     * @param trackUri The Spotify URI of the track
+     * @return The track, or null if it isn't a known track
+     */
+    public CompletableFuture<TrackSummary> getTrackAsync(long userId, String trackUri) {
+        return trackLoader.load(userId, trackUri);
+    }
+
+    public String getTrackLoaderStats() {
+        return trackLoader.getStats();
+    }
+
+    private static List<TrackSummary> fetchSeveralTracks(SpotifyApi client, List<String> trackIds)
+            throws IOException, SpotifyWebApiException, ParseException {
+        Track[] found = client.getSeveralTracks(trackIds.toArray(new String[0])).build().execute();
+        List<TrackSummary> tracks = new ArrayList<>(found.length);
+        for (Track track : found) {
+            if (track != null) {
+                tracks.add(TrackSummary.of(track));
+            }
+        }
+        return tracks;
+    }
+
     /**
      * Play a track on the user's active device
      * 
+     * @param userId   The Telegram chat ID of the user
      * @param trackUri The Spotify URI of the track
      * @return True if successful, false otherwise
      */
-    // In SpotifyService.java
-public boolean playTrack(long userId, String trackUri) {
-    // Get user session from UserSessionManager
-    UserSessionManager.UserSession session = UserSessionManager.getInstance().getSession(userId);
-    
-    if (session == null || !session.isAuthenticated()) {
-        System.err.println("User " + userId + " not authenticated");
-        return false;
-    }
-    
-    try {
-        // Check if token is expired and refresh if needed
-        if (session.isTokenExpired()) {
-            boolean refreshed = refreshAccessToken(userId);
-            if (!refreshed) {
-                System.err.println("Failed to refresh token for user " + userId);
-                return false;
+    public boolean playTrack(long userId, String trackUri) {
+        return await(playTrackAsync(userId, trackUri).thenApply(done -> true), false);
+    }
+
+    public CompletableFuture<Void> playTrackAsync(long userId, String trackUri) {
+        return callAsync(userId, Endpoint.PLAY, PLAYBACK_TIMEOUT_MILLIS, client -> onDevice(userId, client, deviceId -> {
+            JsonArray urisArray = JsonParser.parseString("[\"" + trackUri + "\"]").getAsJsonArray();
+            StartResumeUsersPlaybackRequest.Builder request = client.startResumeUsersPlayback()
+                    .uris(urisArray);
+            if (deviceId != null) {
+                request.device_id(deviceId);
             }
+            request.build().execute();
+        }));
+    }
+
+    // Refresh token for a specific user; concurrent callers share one refresh request
+    public boolean refreshAccessToken(long userId) {
+        UserSessionManager.UserSession session = UserSessionManager.getInstance().getSession(userId);
+        if (session == null) {
+            log.warn("No refresh token available for user {}", userId);
+            return false;
         }
-        
-        // Set the user's access token for this request
-        spotifyApi.setAccessToken(session.getAccessToken());
-        
-        // Make the API call
-        JsonArray urisArray = JsonParser.parseString("[\"" + trackUri + "\"]").getAsJsonArray();
-        spotifyApi.startResumeUsersPlayback()
-                .uris(urisArray)
-                .build()
-                .execute();
-                
-        return true;
-    } catch (Exception e) {
-        System.err.println("Error playing track for user " + userId + ": " + e.getMessage());
-        return false;
-    }
-}
-
-// Refresh token for a specific user
-public boolean refreshAccessToken(long userId) {
-    UserSessionManager.UserSession session = UserSessionManager.getInstance().getSession(userId);
-    
-    if (session == null || session.getRefreshToken() == null) {
-        System.err.println("No refresh token available for user " + userId);
-        return false;
-    }
-    
-    try {
-        // Set the refresh token for this request
-        spotifyApi.setRefreshToken(session.getRefreshToken());
-        
-        // Refresh the token
-        AuthorizationCodeRefreshRequest refreshRequest = spotifyApi.authorizationCodeRefresh()
-                .build();
-                
-        AuthorizationCodeCredentials credentials = refreshRequest.execute();
-        
-        // Update the session with new token
-        session.setAccessToken(credentials.getAccessToken());
-        
-        // Update refresh token if provided
-        if (credentials.getRefreshToken() != null) {
-            session.setRefreshToken(credentials.getRefreshToken());
-        }
-        
-        System.out.println("Refreshed token for user " + userId);
-        return true;
-    } catch (Exception e) {
-        System.err.println("Error refreshing token for user " + userId + ": " + e.getMessage());
-        return false;
-    }
-}
+        return refreshAccessToken(userId, session, session.getAccessToken());
+    }
+
     /**
-     * Pause the user's playback
-     * 
-     * @return True if successful, false otherwise
+     * @param oldAccessToken The token the caller wants replaced; if another
+     *                       refresh has already replaced it, nothing is sent
      */
-    public boolean pausePlayback() {
+    private boolean refreshAccessToken(long userId, UserSessionManager.UserSession session, String oldAccessToken) {
+        if (session.getRefreshToken() == null) {
+            log.warn("No refresh token available for user {}", userId);
+            return false;
+        }
+
         try {
-            spotifyApi.pauseUsersPlayback()
-                    .build()
-                    .execute();
+            refresher.refresh(userId, session, oldAccessToken).join();
+            log.debug("Refreshed token for user {}", userId);
             return true;
-        } catch (IOException | SpotifyWebApiException | ParseException e) {
-            System.out.println("Error pausing playback: " + e.getMessage());
+        } catch (CompletionException e) {
+            log.warn("Error refreshing token for user {}: {}", userId, e.getCause().getMessage());
             return false;
         }
     }
 
     /**
-     * Resume the user's playback
-     * 
-     * @return True if successful, false otherwise
+     * Refresh a user's token as background work, behind any interactive
+     * Spotify calls waiting in the scheduler.
      */
-    public boolean resumePlayback() {
+    public boolean refreshAccessTokenInBackground(long userId) {
         try {
-            spotifyApi.startResumeUsersPlayback()
-                    .build()
-                    .execute();
-            return true;
-        } catch (IOException | SpotifyWebApiException | ParseException e) {
-            System.out.println("Error resuming playback: " + e.getMessage());
+            return await(scheduler.submit(userId, SpotifyRequestScheduler.Priority.BACKGROUND,
+                    () -> refreshAccessToken(userId)), false);
+        } catch (RejectedExecutionException e) {
+            log.warn("Token refresh for user {} not queued: {}", userId, e.getMessage());
             return false;
         }
     }
 
+    public String getRefreshStats() {
+        return refresher.getStats();
+    }
+
+    public String getSchedulerStats() {
+        return scheduler.getStats();
+    }
+
+    public String getConnectionStats() {
+        return httpPool.getStats();
+    }
+
+    /**
+     * Get the pooled client for an authenticated user, refreshing the token
+     * first if it has expired. The pool rebuilds the client whenever the
+     * session's access token has changed.
+     *
+     * @param userId The Telegram chat ID of the user
+     * @return The user's client, or null if the user is not authenticated
+     */
+    private SpotifyApi clientFor(long userId) {
+        UserSessionManager.UserSession session = UserSessionManager.getInstance().getSession(userId);
+
+        // An expired session (e.g. restored after a restart) is still logged in and is refreshed below
+        if (session == null || !session.isLoggedIn()) {
+            log.debug("User {} not authenticated", userId);
+            return null;
+        }
+
+        UserSessionManager.Tokens seen = session.getTokens();
+        if (seen.isExpired(System.currentTimeMillis()) && !refreshAccessToken(userId, session, seen.getAccessToken())) {
+            log.warn("Failed to refresh token for user {}", userId);
+            return null;
+        }
+
+        UserSessionManager.Tokens tokens = session.getTokens();
+        return clientPool.acquire(userId, tokens.getAccessToken(), tokens.getRefreshToken());
+    }
+
+    // The user's own client if they are logged in, otherwise the app's
+    private SpotifyApi searchClientFor(long userId) throws Exception {
+        SpotifyApi client = clientFor(userId);
+        return client != null ? client : appClient.get();
+    }
+
+    // The app's own client, for requests that don't act for any one user
+    private SpotifyApi appClientFor(long userId) throws Exception {
+        return appClient.get();
+    }
+
+    /**
+     * Drop the cached client for a user, e.g. on logout
+     *
+     * @param userId The Telegram chat ID of the user
+     */
+    public void releaseClient(long userId) {
+        clientPool.evict(userId);
+        deviceCache.remove(userId);
+    }
+
+    /**
+     * Add a track to the end of the user's playback queue
+     * 
+     * @param userId   The Telegram chat ID of the user
+     * @param trackUri The Spotify URI of the track
+     * @return True if successful, false otherwise
+     */
+    public boolean addToQueue(long userId, String trackUri) {
+        return await(addToQueueAsync(userId, trackUri).thenApply(done -> true), false);
+    }
+
+    public CompletableFuture<Void> addToQueueAsync(long userId, String trackUri) {
+        return callAsync(userId, Endpoint.QUEUE, PLAYBACK_TIMEOUT_MILLIS, client -> onDevice(userId, client, deviceId -> {
+            AddItemToUsersPlaybackQueueRequest.Builder request = client.addItemToUsersPlaybackQueue(trackUri);
+            if (deviceId != null) {
+                request.device_id(deviceId);
+            }
+            request.build().execute();
+        }));
+    }
+
+    /**
+     * Pause the user's playback
+     * 
+     * @param userId The Telegram chat ID of the user
+     * @return True if successful, false otherwise
+     */
+    public boolean pausePlayback(long userId) {
+        return await(pausePlaybackAsync(userId).thenApply(done -> true), false);
+    }
+
+    public CompletableFuture<Void> pausePlaybackAsync(long userId) {
+        return callAsync(userId, Endpoint.PAUSE, PLAYBACK_TIMEOUT_MILLIS, client -> onDevice(userId, client, deviceId -> {
+            PauseUsersPlaybackRequest.Builder request = client.pauseUsersPlayback();
+            if (deviceId != null) {
+                request.device_id(deviceId);
+            }
+            request.build().execute();
+        }));
+    }
+
+    /**
+     * Resume the user's playback
+     * 
+     * @param userId The Telegram chat ID of the user
+     * @return True if successful, false otherwise
+     */
+    public boolean resumePlayback(long userId) {
+        return await(resumePlaybackAsync(userId).thenApply(done -> true), false);
+    }
+
+    public CompletableFuture<Void> resumePlaybackAsync(long userId) {
+        return callAsync(userId, Endpoint.RESUME, PLAYBACK_TIMEOUT_MILLIS, client -> onDevice(userId, client, deviceId -> {
+            StartResumeUsersPlaybackRequest.Builder request = client.startResumeUsersPlayback();
+            if (deviceId != null) {
+                request.device_id(deviceId);
+            }
+            request.build().execute();
+        }));
+    }
+
     /**
      * Skip to the next track
      * 
+     * @param userId The Telegram chat ID of the user
      * @return True if successful, false otherwise
      */
-    public boolean skipToNextTrack() {
-        try {
-            spotifyApi.skipUsersPlaybackToNextTrack()
+    public boolean skipToNextTrack(long userId) {
+        return await(skipToNextTrackAsync(userId).thenApply(done -> true), false);
+    }
+
+    public CompletableFuture<Void> skipToNextTrackAsync(long userId) {
+        return callAsync(userId, Endpoint.NEXT, PLAYBACK_TIMEOUT_MILLIS, client -> onDevice(userId, client, deviceId -> {
+            SkipUsersPlaybackToNextTrackRequest.Builder request = client.skipUsersPlaybackToNextTrack();
+            if (deviceId != null) {
+                request.device_id(deviceId);
+            }
+            request.build().execute();
+        }));
+    }
+
+    /**
+     * The user's Spotify devices. A list loaded in the last minute is served
+     * from the cache; pass reload to always ask Spotify.
+     */
+    public CompletableFuture<List<DeviceSummary>> getDevicesAsync(long userId, boolean reload) {
+        return reload ? deviceCache.reload(userId) : deviceCache.devices(userId);
+    }
+
+    // A device from the user's last loaded list, or null
+    public DeviceSummary findDevice(long userId, String deviceId) {
+        return deviceCache.find(userId, deviceId);
+    }
+
+    /**
+     * Move the user's playback to a device, and target it with later
+     * playback commands.
+     */
+    public CompletableFuture<Void> transferPlaybackAsync(long userId, String deviceId) {
+        return callAsync(userId, Endpoint.TRANSFER, PLAYBACK_TIMEOUT_MILLIS, client -> {
+            JsonArray deviceIds = new JsonArray();
+            deviceIds.add(deviceId);
+            client.transferUsersPlayback(deviceIds)
                     .build()
                     .execute();
-            return true;
-        } catch (IOException | SpotifyWebApiException | ParseException e) {
-            System.out.println("Error skipping to next track: " + e.getMessage());
-            return false;
-        }
+            deviceCache.select(userId, deviceId);
+            return null;
+        });
     }
 
     /**
-     * Get information about the currently playing track
-     * 
-     * @return The currently playing track or null if nothing is playing
+     * Tell the device cache the user's playback changed, e.g. seen by the
+     * now-playing poller.
+     *
+     * @param activeDeviceId The device now playing, if known
+     */
+    public void onPlaybackChanged(long userId, String activeDeviceId) {
+        deviceCache.invalidate(userId, activeDeviceId);
+    }
+
+    public String getDeviceStats() {
+        return deviceCache.getStats();
+    }
+
+    /**
+     * Run a playback command on the user's target device (or the active one
+     * if none is known). If Spotify answers 404 because that device is gone
+     * or none is active, fetch the device list, the only time a command does,
+     * and retry once on a device from it.
      */
-    public CurrentlyPlaying getCurrentlyPlaying() {
+    private Void onDevice(long userId, SpotifyApi client, DeviceCommand command) throws Exception {
+        String deviceId = deviceCache.target(userId);
         try {
-            return spotifyApi.getUsersCurrentlyPlayingTrack()
-                    .build()
-                    .execute();
-        } catch (IOException | SpotifyWebApiException | ParseException e) {
-            System.out.println("Error getting currently playing track: " + e.getMessage());
+            command.execute(deviceId);
+            return null;
+        } catch (NotFoundException e) {
+            String fallback = deviceCache.fallback(userId, fetchDevices(client));
+            if (fallback == null || fallback.equals(deviceId)) {
+                throw e;
+            }
+            log.debug("No active device for user {}, retrying on {}", userId, fallback);
+            command.execute(fallback);
+            deviceCache.setActive(userId, fallback);
             return null;
         }
     }
-    
+
+    private static List<DeviceSummary> fetchDevices(SpotifyApi client)
+            throws IOException, SpotifyWebApiException, ParseException {
+        Device[] found = client.getUsersAvailableDevices().build().execute();
+        List<DeviceSummary> devices = new ArrayList<>(found.length);
+        for (Device device : found) {
+            devices.add(DeviceSummary.of(device));
+        }
+        return devices;
+    }
+
     /**
-     * Refreshes the Spotify access token using the stored refresh token
+     * Get information about the currently playing track
      * 
-     * @return True if the token was successfully refreshed, false otherwise
+     * @param userId The Telegram chat ID of the user
+     * @return The currently playing track or null if nothing is playing
      */
-    public boolean refreshAccessToken() {
-        try {
-            // Get the current refresh token from the API instance
-            String refreshToken = spotifyApi.getRefreshToken();
+    public CurrentlyPlaying getCurrentlyPlaying(long userId) {
+        return await(getCurrentlyPlayingAsync(userId), null);
+    }
 
-            if (refreshToken == null || refreshToken.isEmpty()) {
-                System.err.println("Cannot refresh token: No refresh token available");
-                return false;
-            }
+    public CompletableFuture<CurrentlyPlaying> getCurrentlyPlayingAsync(long userId) {
+        return callAsync(userId, Endpoint.CURRENTLY_PLAYING, READ_TIMEOUT_MILLIS,
+                client -> client.getUsersCurrentlyPlayingTrack()
+                        .build()
+                        .execute());
+    }
 
-            // Create the refresh request
-            AuthorizationCodeRefreshRequest refreshRequest = spotifyApi.authorizationCodeRefresh()
-                    .build();
+    /**
+     * Get the user's full playback state (track, progress, device) as
+     * background work. Concurrent requests for the same user share one call.
+     *
+     * @return The playback state, or null when nothing is playing
+     */
+    public CompletableFuture<CurrentlyPlayingContext> getPlaybackStateAsync(long userId) {
+        CompletableFuture<CurrentlyPlayingContext> existing = playbackStatePolls.get(userId);
+        if (existing != null) {
+            return existing;
+        }
+
+        CompletableFuture<CurrentlyPlayingContext> poll = new CompletableFuture<>();
+        existing = playbackStatePolls.putIfAbsent(userId, poll);
+        if (existing != null) {
+            return existing;
+        }
 
-            // Execute the refresh request
-            AuthorizationCodeCredentials credentials = refreshRequest.execute();
+        callAsync(userId, Endpoint.PLAYBACK_STATE, READ_TIMEOUT_MILLIS, SpotifyRequestScheduler.Priority.BACKGROUND,
+                client -> {
+                    GetInformationAboutUsersCurrentPlaybackRequest request = client.getInformationAboutUsersCurrentPlayback()
+                            .build();
+                    return request.execute();
+                })
+                .whenComplete((state, error) -> {
+                    playbackStatePolls.remove(userId, poll);
+                    if (error != null) {
+                        poll.completeExceptionally(error);
+                    } else {
+                        poll.complete(state);
+                    }
+                });
+        return poll;
+    }
 
-            // Update the access token in the API instance
-            spotifyApi.setAccessToken(credentials.getAccessToken());
+    // A Spotify request made with a user's client
+    @FunctionalInterface
+    private interface SpotifyCall<T> {
+        T execute(SpotifyApi client) throws Exception;
+    }
 
-            // Update the refresh token if a new one was provided
-            if (credentials.getRefreshToken() != null && !credentials.getRefreshToken().isEmpty()) {
-                spotifyApi.setRefreshToken(credentials.getRefreshToken());
-            }
+    // Picks the client a call runs with; null if there is none for the user
+    @FunctionalInterface
+    private interface ClientSource {
+        SpotifyApi clientFor(long userId) throws Exception;
+    }
 
-            // Log token refresh (server-side only)
-            System.out.println("Access token refreshed. New token expires in: " +
-                    credentials.getExpiresIn() + " seconds");
+    // A playback request aimed at a device; a null device ID means the active one
+    @FunctionalInterface
+    private interface DeviceCommand {
+        void execute(String deviceId) throws Exception;
+    }
 
-            return true;
-        } catch (IOException e) {
-            System.err.println("Network error refreshing access token: " + e.getMessage());
-            return false;
-        } catch (SpotifyWebApiException e) {
-            System.err.println("Spotify API error refreshing access token: " + e.getMessage());
-            return false;
-        } catch (ParseException e) {
-            System.err.println("Parse error refreshing access token: " + e.getMessage());
-            return false;
-        } catch (Exception e) {
-            System.err.println("Unexpected error refreshing access token: " + e.getMessage());
-            e.printStackTrace();
-            return false;
+    // The Web API endpoints called through callAsync, each with its own latency, error and 429 series
+    private enum Endpoint {
+        SEARCH("search", "searching tracks"),
+        PLAY("play", "playing track"),
+        QUEUE("queue", "adding track to queue"),
+        PAUSE("pause", "pausing playback"),
+        RESUME("resume", "resuming playback"),
+        NEXT("next", "skipping to next track"),
+        CURRENTLY_PLAYING("currently_playing", "getting currently playing track"),
+        PLAYBACK_STATE("playback_state", "getting playback state"),
+        TRACKS("tracks", "getting track details"),
+        DEVICES("devices", "getting devices"),
+        TRANSFER("transfer", "transferring playback");
+
+        private final String action;
+        private final MetricsRegistry.Timer latency;
+        private final MetricsRegistry.Counter errors;
+        private final MetricsRegistry.Counter rateLimited;
+
+        Endpoint(String name, String action) {
+            MetricsRegistry metrics = MetricsRegistry.getInstance();
+            this.action = action;
+            this.latency = metrics.timer("spotify_request_seconds",
+                    "Time for a Spotify Web API request, excluding time queued in the scheduler", "endpoint", name);
+            this.errors = metrics.counter("spotify_request_errors_total",
+                    "Spotify calls that failed, timed out or were rejected", "endpoint", name);
+            this.rateLimited = metrics.counter("spotify_rate_limited_total",
+                    "Spotify requests answered with 429 Too Many Requests", "endpoint", name);
         }
     }
 
     /**
-     * Refreshes the access token for a specific user using their stored refresh
-     * token
-     * 
-     * @param userRefreshToken The user's refresh token
-     * @return The new access token if successful, null otherwise
+     * Run a call with the user's client through the request scheduler,
+     * interactive unless a priority is given. The returned future fails if the user isn't authenticated,
+     * the call fails or it doesn't finish within the timeout. Cancelling it,
+     * or timing out, drops or interrupts the request.
      */
-    public String refreshAccessToken(String userRefreshToken) {
-        try {
-            // Create a temporary SpotifyApi instance with just the client credentials and
-            // refresh token
-            SpotifyApi tempApi = new SpotifyApi.Builder()
-                    .setClientId(spotifyApi.getClientId())
-                    .setClientSecret(spotifyApi.getClientSecret())
-                    .setRefreshToken(userRefreshToken)
-                    .build();
+    private <T> CompletableFuture<T> callAsync(long userId, Endpoint endpoint, long timeoutMillis, SpotifyCall<T> call) {
+        return callAsync(userId, endpoint, timeoutMillis, SpotifyRequestScheduler.Priority.INTERACTIVE, call);
+    }
 
-            // Create the refresh request
-            AuthorizationCodeRefreshRequest refreshRequest = tempApi.authorizationCodeRefresh()
-                    .build();
+    private <T> CompletableFuture<T> callAsync(long userId, Endpoint endpoint, long timeoutMillis,
+                                               SpotifyRequestScheduler.Priority priority, SpotifyCall<T> call) {
+        return callAsync(userId, endpoint, timeoutMillis, priority, this::clientFor, call);
+    }
 
-            // Execute the refresh request
-            AuthorizationCodeCredentials credentials = refreshRequest.execute();
+    private <T> CompletableFuture<T> callAsync(long userId, Endpoint endpoint, long timeoutMillis,
+                                               SpotifyRequestScheduler.Priority priority, ClientSource clients,
+                                               SpotifyCall<T> call) {
+        CompletableFuture<T> result;
+        try {
+            // A token refresh needed by clientFor runs inline in this job, so it never waits on another queued job
+            result = scheduler.submit(userId, priority, () -> {
+                SpotifyApi client = clients.clientFor(userId);
+                if (client == null) {
+                    throw new IllegalStateException("User " + userId + " is not authenticated");
+                }
+                long started = System.nanoTime();
+                try {
+                    return call.execute(client);
+                } catch (TooManyRequestsException e) {
+                    endpoint.rateLimited.increment();
+                    throw e;
+                } finally {
+                    endpoint.latency.recordSince(started);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            endpoint.errors.increment();
+            log.warn("Error {} for user {}: {}", endpoint.action, userId, e.getMessage());
+            return CompletableFuture.failedFuture(e);
+        }
 
-            // Return the new access token
-            return credentials.getAccessToken();
-        } catch (Exception e) {
-            System.err.println("Error refreshing user token: " + e.getMessage());
-            return null;
+        result.whenComplete((value, error) -> {
+            if (error != null) {
+                endpoint.errors.increment();
+                log.warn("Error {} for user {}: {}", endpoint.action, userId, describe(error));
+            }
+        });
+        return result.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Block for an async result; failures have already been logged by callAsync
+    private static <T> T await(CompletableFuture<T> future, T fallback) {
+        try {
+            return future.join();
+        } catch (CompletionException | CancellationException e) {
+            return fallback;
         }
     }
-    
+
+    private static String describe(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        return cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName();
+    }
+
+
     /**
      * Exchanges the authorization code from Spotify for access and refresh tokens
      * 
@@ -343,22 +753,19 @@ public boolean refreshAccessToken(long userId) {
             AuthorizationCodeRequest authorizationCodeRequest = spotifyApi.authorizationCode(code)
                     .build();
 
-            // Execute the request to exchange the code for tokens
+            // Execute the request to exchange the code for tokens. They belong to one user, so the
+            // caller stores them in that user's session rather than on the shared API instance.
             AuthorizationCodeCredentials credentials = authorizationCodeRequest.execute();
 
-            // Update the API instance with the new tokens
-            spotifyApi.setAccessToken(credentials.getAccessToken());
-            spotifyApi.setRefreshToken(credentials.getRefreshToken());
-
             // Log token expiration (server-side only)
-            System.out.println("Access token expires in: " + credentials.getExpiresIn() + " seconds");
+            log.debug("Access token expires in: {} seconds", credentials.getExpiresIn());
 
             return credentials;
         } catch (IOException | SpotifyWebApiException | ParseException e) {
-            System.err.println("Error exchanging authorization code: " + e.getMessage());
+            log.error("Error exchanging authorization code: {}", e.getMessage());
             throw e; // Rethrow to handle in the calling method
         } catch (Exception e) {
-            System.err.println("Unexpected error exchanging authorization code: " + e.getMessage());
+            log.error("Unexpected error exchanging authorization code: {}", e.getMessage());
             throw new IOException("Unexpected error: " + e.getMessage(), e);
         }
     }
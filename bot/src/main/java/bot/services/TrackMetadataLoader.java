@@ -0,0 +1,241 @@
+package bot.services;
+
+import bot.shared.MetricsRegistry;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looks up track details by URI for any number of chats, batching and
+ * caching the lookups.
+ *
+ * A lookup is answered from a bounded LRU cache if possible. Otherwise it
+ * joins a lookup already in flight for the same track, or waits up to
+ * windowMillis to be sent together with other lookups as one "several
+ * tracks" request of up to maxBatch IDs. Tracks seen in search results are
+ * put into the cache with {@link #prime(TrackSummary)}, so a track picked
+ * from a result list usually needs no request at all.
+ *
+ * Track details don't depend on who asks, so the fetcher should send a
+ * batch with a client that doesn't belong to any one chat (the app token);
+ * one user's expired or revoked login must not fail everyone's lookups.
+ * The chat whose lookup opened a batch is still passed along, so the
+ * request is queued and rate limited under that chat.
+ */
+public class TrackMetadataLoader {
+    private static final String TRACK_URI_PREFIX = "spotify:track:";
+    private static final long DEFAULT_WINDOW_MILLIS = 5;
+    // Spotify's limit for GET /v1/tracks
+    private static final int DEFAULT_MAX_BATCH = 50;
+    private static final int DEFAULT_MAX_CACHED = 10_000;
+
+    /**
+     * Fetches several tracks at once. The result may leave out or hold null
+     * for IDs Spotify doesn't know.
+     */
+    public interface BatchFetcher {
+        CompletableFuture<List<TrackSummary>> fetch(long userId, List<String> trackIds);
+    }
+
+    private final BatchFetcher fetcher;
+    private final long windowMillis;
+    private final int maxBatch;
+
+    // Keyed by track ID; access-ordered and bounded, guarded by itself
+    private final LinkedHashMap<String, TrackSummary> cache;
+    private final Map<String, CompletableFuture<TrackSummary>> inFlight = new ConcurrentHashMap<>();
+
+    // The batch being collected, guarded by this
+    private List<String> pending = new ArrayList<>();
+    private long pendingUserId;
+    private ScheduledFuture<?> pendingFlush;
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "track-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final MetricsRegistry.Counter cacheHits;
+    private final MetricsRegistry.Counter coalesced;
+    private final MetricsRegistry.Counter batched;
+    private final MetricsRegistry.Counter batches;
+
+    public TrackMetadataLoader(BatchFetcher fetcher) {
+        this(fetcher, DEFAULT_WINDOW_MILLIS, DEFAULT_MAX_BATCH, DEFAULT_MAX_CACHED);
+    }
+
+    public TrackMetadataLoader(BatchFetcher fetcher, long windowMillis, int maxBatch, int maxCached) {
+        this.fetcher = fetcher;
+        this.windowMillis = windowMillis;
+        this.maxBatch = maxBatch;
+        this.cache = new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, TrackSummary> eldest) {
+                return size() > maxCached;
+            }
+        };
+
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        String help = "Track detail lookups by how they were answered";
+        this.cacheHits = metrics.counter("spotify_track_lookups_total", help, "result", "cache_hit");
+        this.coalesced = metrics.counter("spotify_track_lookups_total", help, "result", "coalesced");
+        this.batched = metrics.counter("spotify_track_lookups_total", help, "result", "batched");
+        this.batches = metrics.counter("spotify_track_batches_total", "Several-tracks requests sent to Spotify");
+    }
+
+    /**
+     * Look up a track.
+     *
+     * @param userId   The chat asking; a batch it opens is queued under it
+     * @param trackUri A spotify:track: URI or a bare track ID
+     * @return The track, or null if Spotify doesn't know it or the URI isn't a track.
+     *         Fails if the batch request failed.
+     */
+    public CompletableFuture<TrackSummary> load(long userId, String trackUri) {
+        String id = trackId(trackUri);
+        if (id == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        TrackSummary cached;
+        synchronized (cache) {
+            cached = cache.get(id);
+        }
+        if (cached != null) {
+            cacheHits.increment();
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        CompletableFuture<TrackSummary> created = new CompletableFuture<>();
+        CompletableFuture<TrackSummary> existing = inFlight.putIfAbsent(id, created);
+        if (existing != null) {
+            coalesced.increment();
+            // A copy, so a caller's timeout or cancel doesn't complete the lookup for everyone
+            return existing.copy();
+        }
+        batched.increment();
+        enqueue(userId, id);
+        return created.copy();
+    }
+
+    // Remember a track fetched some other way, e.g. in search results
+    public void prime(TrackSummary track) {
+        String id = trackId(track.getUri());
+        if (id != null) {
+            synchronized (cache) {
+                cache.put(id, track);
+            }
+        }
+    }
+
+    private void enqueue(long userId, String id) {
+        List<String> full = null;
+        long batchUserId;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                pendingUserId = userId;
+                pendingFlush = timer.schedule(this::flushPending, windowMillis, TimeUnit.MILLISECONDS);
+            }
+            pending.add(id);
+            batchUserId = pendingUserId;
+            if (pending.size() >= maxBatch) {
+                pendingFlush.cancel(false);
+                full = takePending();
+            }
+        }
+        if (full != null) {
+            dispatch(batchUserId, full);
+        }
+    }
+
+    private void flushPending() {
+        List<String> ids;
+        long userId;
+        synchronized (this) {
+            // A full batch may have been sent since this was scheduled
+            if (pending.isEmpty()) {
+                return;
+            }
+            userId = pendingUserId;
+            ids = takePending();
+        }
+        dispatch(userId, ids);
+    }
+
+    // Caller holds the lock
+    private List<String> takePending() {
+        List<String> ids = pending;
+        pending = new ArrayList<>();
+        pendingFlush = null;
+        return ids;
+    }
+
+    private void dispatch(long userId, List<String> ids) {
+        batches.increment();
+        CompletableFuture<List<TrackSummary>> result;
+        try {
+            result = fetcher.fetch(userId, ids);
+        } catch (RuntimeException e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+
+        result.whenComplete((tracks, error) -> {
+            Map<String, TrackSummary> byId = new HashMap<>();
+            if (tracks != null) {
+                synchronized (cache) {
+                    for (TrackSummary track : tracks) {
+                        String id = track != null ? trackId(track.getUri()) : null;
+                        if (id != null) {
+                            byId.put(id, track);
+                            cache.put(id, track);
+                        }
+                    }
+                }
+            }
+            for (String id : ids) {
+                CompletableFuture<TrackSummary> waiting = inFlight.remove(id);
+                if (waiting == null) {
+                    continue;
+                }
+                if (error != null) {
+                    waiting.completeExceptionally(error);
+                } else {
+                    waiting.complete(byId.get(id));
+                }
+            }
+        });
+    }
+
+    // The ID part of a spotify:track: URI; other URIs (episodes, local files) give null
+    static String trackId(String uri) {
+        if (uri == null || uri.isEmpty()) {
+            return null;
+        }
+        if (uri.startsWith(TRACK_URI_PREFIX)) {
+            return uri.substring(TRACK_URI_PREFIX.length());
+        }
+        return uri.indexOf(':') < 0 ? uri : null;
+    }
+
+    public String getStats() {
+        int cached;
+        synchronized (cache) {
+            cached = cache.size();
+        }
+        return "Track details:\n" +
+                "  Cached: " + cached + "\n" +
+                "  Cache hits: " + cacheHits.get() + "\n" +
+                "  Joined in-flight: " + coalesced.get() + "\n" +
+                "  Fetched: " + batched.get() + " in " + batches.get() + " requests";
+    }
+}
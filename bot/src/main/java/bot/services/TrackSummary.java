@@ -0,0 +1,61 @@
+package bot.services;
+
+import se.michaelthelin.spotify.model_objects.IPlaylistItem;
+import se.michaelthelin.spotify.model_objects.specification.ArtistSimplified;
+import se.michaelthelin.spotify.model_objects.specification.Track;
+
+/**
+ * The few fields of a Spotify Track the bot actually shows or plays. Kept
+ * instead of the full model object so cached results stay small.
+ */
+public final class TrackSummary {
+    private final String uri;
+    private final String name;
+    private final String artist;
+    private final int durationMs;
+
+    public TrackSummary(String uri, String name, String artist, int durationMs) {
+        this.uri = uri;
+        this.name = name;
+        this.artist = artist;
+        this.durationMs = durationMs;
+    }
+
+    public static TrackSummary of(Track track) {
+        ArtistSimplified[] artists = track.getArtists();
+        String artist = artists != null && artists.length > 0 ? artists[0].getName() : "Unknown artist";
+        Integer duration = track.getDurationMs();
+        return new TrackSummary(track.getUri(), track.getName(), artist, duration != null ? duration : 0);
+    }
+
+    // Tracks and podcast episodes; episodes have no artist
+    public static TrackSummary of(IPlaylistItem item) {
+        if (item instanceof Track) {
+            return of((Track) item);
+        }
+        Integer duration = item.getDurationMs();
+        return new TrackSummary(item.getUri(), item.getName(), "Podcast", duration != null ? duration : 0);
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // First listed artist only
+    public String getArtist() {
+        return artist;
+    }
+
+    public int getDurationMs() {
+        return durationMs;
+    }
+
+    // Rough heap footprint, used for the search cache's memory budget
+    int estimatedBytes() {
+        return 48 + 2 * (uri.length() + name.length() + artist.length()) + 3 * 40;
+    }
+}
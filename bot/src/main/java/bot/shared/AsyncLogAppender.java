@@ -0,0 +1,102 @@
+package bot.shared;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes log events to stdout from a single background thread.
+ *
+ * Callers only put the event into a fixed-size ring buffer; formatting and
+ * the console write happen on the "log-appender" thread, which drains events
+ * in batches and flushes once per batch. When the buffer is full new events
+ * are dropped and counted rather than making a request thread wait.
+ */
+public final class AsyncLogAppender {
+    private static final int CAPACITY = 8192;
+    private static final int MAX_BATCH = 256;
+
+    private final ArrayBlockingQueue<LogEvent> ring = new ArrayBlockingQueue<>(CAPACITY);
+    private final Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 16 * 1024);
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread thread;
+
+    private AsyncLogAppender() {
+        thread = new Thread(this::run, "log-appender");
+        thread.setDaemon(true);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "log-appender-shutdown"));
+    }
+
+    private static class InstanceHolder {
+        private static final AsyncLogAppender INSTANCE = new AsyncLogAppender();
+    }
+
+    public static AsyncLogAppender getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    void append(LogEvent event) {
+        if (!ring.offer(event)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void run() {
+        List<LogEvent> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            while (true) {
+                LogEvent first = ring.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                ring.drainTo(batch, MAX_BATCH - 1);
+                write(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Writes whatever is still buffered, e.g. on shutdown
+    public void flush() {
+        List<LogEvent> rest = new ArrayList<>();
+        ring.drainTo(rest);
+        write(rest);
+    }
+
+    private synchronized void write(List<LogEvent> batch) {
+        try {
+            long lost = dropped.getAndSet(0);
+            if (lost > 0) {
+                out.write("... " + lost + " log lines dropped (buffer full)" + System.lineSeparator());
+            }
+            for (LogEvent event : batch) {
+                String line;
+                try {
+                    line = event.format();
+                } catch (RuntimeException e) {
+                    line = "Failed to format log line: " + e;
+                }
+                out.write(line);
+                out.write(System.lineSeparator());
+            }
+            out.flush();
+        } catch (IOException e) {
+            // Nowhere left to report it
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package bot.shared;
+
+import java.util.function.LongFunction;
+
+/**
+ * Concurrent map keyed by primitive longs (chat IDs) without boxing.
+ *
+ * Keys are spread over a fixed set of stripes. Each stripe holds an immutable
+ * open-addressing table behind a volatile reference: reads never lock, and
+ * writes lock only their stripe, copy its table and publish the copy. Writes
+ * are expected to be rare compared with reads (sessions are created and
+ * removed far less often than they are looked up).
+ */
+public class ConcurrentLongMap<V> {
+    private static final int STRIPES = 32;
+    private static final int INITIAL_CAPACITY = 8;
+
+    private final Stripe<V>[] stripes;
+
+    @SuppressWarnings("unchecked")
+    public ConcurrentLongMap() {
+        stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe<>();
+        }
+    }
+
+    public V get(long key) {
+        long hash = mix(key);
+        return stripes[stripeIndex(hash)].table.get(key, hash);
+    }
+
+    /**
+     * Return the value for a key, creating it atomically if absent. The
+     * factory runs at most once per key and only under the stripe lock.
+     */
+    public V computeIfAbsent(long key, LongFunction<? extends V> factory) {
+        long hash = mix(key);
+        Stripe<V> stripe = stripes[stripeIndex(hash)];
+
+        V existing = stripe.table.get(key, hash);
+        if (existing != null) {
+            return existing;
+        }
+
+        synchronized (stripe) {
+            existing = stripe.table.get(key, hash);
+            if (existing != null) {
+                return existing;
+            }
+            V created = factory.apply(key);
+            stripe.table = stripe.table.with(key, hash, created);
+            return created;
+        }
+    }
+
+    public V put(long key, V value) {
+        long hash = mix(key);
+        Stripe<V> stripe = stripes[stripeIndex(hash)];
+
+        synchronized (stripe) {
+            V previous = stripe.table.get(key, hash);
+            stripe.table = stripe.table.with(key, hash, value);
+            return previous;
+        }
+    }
+
+    public V remove(long key) {
+        long hash = mix(key);
+        Stripe<V> stripe = stripes[stripeIndex(hash)];
+
+        synchronized (stripe) {
+            V previous = stripe.table.get(key, hash);
+            if (previous != null) {
+                stripe.table = stripe.table.without(key);
+            }
+            return previous;
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe<V> stripe : stripes) {
+            size += stripe.table.size;
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Visit every entry. The scan is weakly consistent: each stripe is read
+     * from its current snapshot, so concurrent writers are never blocked and
+     * may or may not be reflected.
+     */
+    public void forEach(EntryVisitor<? super V> visitor) {
+        for (Stripe<V> stripe : stripes) {
+            Table<V> table = stripe.table;
+            for (int i = 0; i < table.values.length; i++) {
+                Object value = table.values[i];
+                if (value != null) {
+                    visitor.visit(table.keys[i], table.valueAt(i));
+                }
+            }
+        }
+    }
+
+    public interface EntryVisitor<V> {
+        void visit(long key, V value);
+    }
+
+    // Finalizer from MurmurHash3; chat IDs are often sequential or share high bits
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    // Stripe from the high bits, slot from the low bits, so the two stay independent
+    private static int stripeIndex(long hash) {
+        return (int) (hash >>> 59) & (STRIPES - 1);
+    }
+
+    private static class Stripe<V> {
+        private volatile Table<V> table = new Table<>(INITIAL_CAPACITY);
+    }
+
+    // Immutable once published; a slot is empty when its value is null
+    private static class Table<V> {
+        private final long[] keys;
+        private final Object[] values;
+        private final int size;
+
+        private Table(int capacity) {
+            this(new long[capacity], new Object[capacity], 0);
+        }
+
+        private Table(long[] keys, Object[] values, int size) {
+            this.keys = keys;
+            this.values = values;
+            this.size = size;
+        }
+
+        private V get(long key, long hash) {
+            int mask = values.length - 1;
+            for (int i = (int) hash & mask; ; i = (i + 1) & mask) {
+                Object value = values[i];
+                if (value == null) {
+                    return null;
+                }
+                if (keys[i] == key) {
+                    return valueAt(i);
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private V valueAt(int index) {
+            return (V) values[index];
+        }
+
+        private Table<V> with(long key, long hash, V value) {
+            boolean replacing = get(key, hash) != null;
+            int newSize = replacing ? size : size + 1;
+            // Keep the load factor at or below one half so probe chains stay short
+            int capacity = newSize * 2 > values.length ? values.length * 2 : values.length;
+
+            Table<V> copy = capacity == values.length
+                    ? new Table<>(keys.clone(), values.clone(), newSize)
+                    : rehash(capacity, newSize, Long.MIN_VALUE, false);
+            copy.place(key, hash, value);
+            return copy;
+        }
+
+        private Table<V> without(long key) {
+            return rehash(values.length, size - 1, key, true);
+        }
+
+        private Table<V> rehash(int capacity, int newSize, long skipKey, boolean skip) {
+            Table<V> copy = new Table<>(new long[capacity], new Object[capacity], newSize);
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null && !(skip && keys[i] == skipKey)) {
+                    copy.place(keys[i], mix(keys[i]), valueAt(i));
+                }
+            }
+            return copy;
+        }
+
+        // Only used while building a table that has not been published yet
+        private void place(long key, long hash, V value) {
+            int mask = values.length - 1;
+            int i = (int) hash & mask;
+            while (values[i] != null && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+    }
+}
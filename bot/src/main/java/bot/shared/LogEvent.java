@@ -0,0 +1,127 @@
+package bot.shared;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.function.Supplier;
+
+/**
+ * One log line being built: level, structured key=value fields and the
+ * message. Created by {@link Logger}; a disabled level hands out a shared
+ * event that ignores everything, so building one costs nothing.
+ *
+ * Fields whose name mentions a token, secret or password are always
+ * written as [redacted].
+ */
+public class LogEvent {
+    static final Object[] NO_ARGS = new Object[0];
+    static final LogEvent DISABLED = new LogEvent(null, null);
+
+    private static final int MAX_FIELDS = 8;
+
+    private final Logger.Level level;
+    private final String logger;
+    private final long timestamp;
+    private final String thread;
+
+    private final String[] keys = new String[MAX_FIELDS];
+    private final Object[] values = new Object[MAX_FIELDS];
+    private int fieldCount;
+
+    private String template;
+    private Object[] args;
+    private Throwable error;
+
+    LogEvent(Logger.Level level, String logger) {
+        this.level = level;
+        this.logger = logger;
+        this.timestamp = level != null ? System.currentTimeMillis() : 0;
+        this.thread = level != null ? Thread.currentThread().getName() : null;
+    }
+
+    public LogEvent with(String key, long value) {
+        return this == DISABLED ? this : with(key, (Object) value);
+    }
+
+    public LogEvent with(String key, Object value) {
+        if (this != DISABLED && fieldCount < MAX_FIELDS) {
+            keys[fieldCount] = key;
+            values[fieldCount] = value;
+            fieldCount++;
+        }
+        return this;
+    }
+
+    public LogEvent error(Throwable error) {
+        if (this != DISABLED) {
+            this.error = error;
+        }
+        return this;
+    }
+
+    public void log(String template) {
+        log(template, NO_ARGS);
+    }
+
+    public void log(String template, Object... args) {
+        if (this == DISABLED) {
+            return;
+        }
+        this.template = template;
+        this.args = args;
+        if (error == null && args.length > 0 && args[args.length - 1] instanceof Throwable) {
+            error = (Throwable) args[args.length - 1];
+        }
+        AsyncLogAppender.getInstance().append(this);
+    }
+
+    /**
+     * Render the line. Runs on the appender thread, which is also where
+     * Supplier arguments are evaluated.
+     */
+    String format() {
+        StringBuilder sb = new StringBuilder(128);
+        sb.append(Instant.ofEpochMilli(timestamp)).append(' ');
+        sb.append(String.format(Locale.ROOT, "%-5s", level)).append(" [").append(thread).append("] ");
+        sb.append(logger).append(" - ");
+
+        int argIndex = 0;
+        int start = 0;
+        int placeholder;
+        while ((placeholder = template.indexOf("{}", start)) >= 0) {
+            sb.append(template, start, placeholder);
+            if (argIndex < args.length) {
+                sb.append(render(args[argIndex++]));
+            } else {
+                sb.append("{}");
+            }
+            start = placeholder + 2;
+        }
+        sb.append(template, start, template.length());
+
+        for (int i = 0; i < fieldCount; i++) {
+            sb.append(' ').append(keys[i]).append('=');
+            sb.append(isSensitive(keys[i]) ? "[redacted]" : render(values[i]));
+        }
+
+        if (error != null) {
+            StringWriter trace = new StringWriter();
+            error.printStackTrace(new PrintWriter(trace));
+            sb.append(System.lineSeparator()).append(trace.toString().stripTrailing());
+        }
+        return sb.toString();
+    }
+
+    private static Object render(Object value) {
+        if (value instanceof Supplier) {
+            return ((Supplier<?>) value).get();
+        }
+        return value;
+    }
+
+    private static boolean isSensitive(String key) {
+        String lower = key.toLowerCase(Locale.ROOT);
+        return lower.contains("token") || lower.contains("secret") || lower.contains("password");
+    }
+}
@@ -0,0 +1,153 @@
+package bot.shared;
+
+import java.util.Locale;
+
+/**
+ * Leveled logger that hands events to the {@link AsyncLogAppender}, so a log
+ * call never blocks on the console.
+ *
+ * Messages are templates with "{}" placeholders. Nothing is formatted and no
+ * {@link java.util.function.Supplier} argument is evaluated unless the level
+ * is enabled, and formatting happens on the appender thread. Structured
+ * fields go through {@link #atInfo()} and friends:
+ *
+ * <pre>
+ * log.atInfo().with("chatId", chatId).with("latencyMs", millis).log("Command handled");
+ * </pre>
+ *
+ * The level comes from LOG_LEVEL (DEBUG, INFO, WARN, ERROR) and defaults to
+ * INFO, so per-call debug lines cost only a level check in production.
+ */
+public final class Logger {
+    public enum Level {
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR
+    }
+
+    private static final Level THRESHOLD = levelFromEnvironment();
+
+    private final String name;
+
+    private Logger(String name) {
+        this.name = name;
+    }
+
+    public static Logger get(Class<?> type) {
+        return new Logger(type.getSimpleName());
+    }
+
+    private static Level levelFromEnvironment() {
+        String level = System.getenv("LOG_LEVEL");
+        if (level == null || level.isEmpty()) {
+            return Level.INFO;
+        }
+        try {
+            return Level.valueOf(level.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.compareTo(THRESHOLD) >= 0;
+    }
+
+    public boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    public void debug(String template) {
+        log(Level.DEBUG, template, LogEvent.NO_ARGS);
+    }
+
+    public void debug(String template, Object arg) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, template, new Object[] { arg });
+        }
+    }
+
+    public void debug(String template, Object arg1, Object arg2) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, template, new Object[] { arg1, arg2 });
+        }
+    }
+
+    public void debug(String template, Object... args) {
+        log(Level.DEBUG, template, args);
+    }
+
+    public void info(String template) {
+        log(Level.INFO, template, LogEvent.NO_ARGS);
+    }
+
+    public void info(String template, Object arg) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, template, new Object[] { arg });
+        }
+    }
+
+    public void info(String template, Object arg1, Object arg2) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, template, new Object[] { arg1, arg2 });
+        }
+    }
+
+    public void info(String template, Object... args) {
+        log(Level.INFO, template, args);
+    }
+
+    public void warn(String template) {
+        log(Level.WARN, template, LogEvent.NO_ARGS);
+    }
+
+    public void warn(String template, Object arg) {
+        if (isEnabled(Level.WARN)) {
+            log(Level.WARN, template, new Object[] { arg });
+        }
+    }
+
+    public void warn(String template, Object... args) {
+        log(Level.WARN, template, args);
+    }
+
+    public void error(String template) {
+        log(Level.ERROR, template, LogEvent.NO_ARGS);
+    }
+
+    public void error(String template, Object arg) {
+        log(Level.ERROR, template, new Object[] { arg });
+    }
+
+    // A trailing Throwable argument is printed with its stack trace
+    public void error(String template, Object... args) {
+        log(Level.ERROR, template, args);
+    }
+
+    public LogEvent atDebug() {
+        return at(Level.DEBUG);
+    }
+
+    public LogEvent atInfo() {
+        return at(Level.INFO);
+    }
+
+    public LogEvent atWarn() {
+        return at(Level.WARN);
+    }
+
+    public LogEvent atError() {
+        return at(Level.ERROR);
+    }
+
+    private LogEvent at(Level level) {
+        return isEnabled(level) ? new LogEvent(level, name) : LogEvent.DISABLED;
+    }
+
+    private void log(Level level, String template, Object[] args) {
+        if (isEnabled(level)) {
+            new LogEvent(level, name).log(template, args);
+        }
+    }
+}
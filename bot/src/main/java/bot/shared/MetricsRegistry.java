@@ -0,0 +1,219 @@
+package bot.shared;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide metrics, rendered in the Prometheus text format by
+ * {@link #scrape()}.
+ *
+ * Three kinds of series:
+ * - counters, either owned here ({@link Counter}) or read from a counter a
+ *   component already keeps, so existing AtomicLongs are exported as-is
+ * - gauges, read from a supplier at scrape time
+ * - timers, backed by an HdrHistogram and exported as a summary with
+ *   p50/p90/p99/p999, _sum and _count
+ *
+ * Labels are given as name/value pairs. Asking for the same name and labels
+ * again returns the same series, so callers on hot paths should keep the
+ * returned handle rather than look it up per event. Recording never locks.
+ */
+public final class MetricsRegistry {
+    // Timers track microseconds up to this; slower events are recorded as this value
+    private static final long MAX_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(2);
+    // Two significant digits keeps a timer around 40 KB while quantiles stay within 1%
+    private static final int SIGNIFICANT_DIGITS = 2;
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private final Map<String, Family> families = new ConcurrentHashMap<>();
+
+    private MetricsRegistry() {
+    }
+
+    private static class InstanceHolder {
+        private static final MetricsRegistry INSTANCE = new MetricsRegistry();
+    }
+
+    public static MetricsRegistry getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, Type.COUNTER).series(labels, Counter::new);
+    }
+
+    // Export a counter a component already maintains
+    public void counter(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, Type.COUNTER).series(labels, () -> value);
+    }
+
+    public void gauge(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, Type.GAUGE).series(labels, () -> value);
+    }
+
+    public Timer timer(String name, String help, String... labels) {
+        return (Timer) family(name, help, Type.SUMMARY).series(labels, Timer::new);
+    }
+
+    private Family family(String name, String help, Type type) {
+        Family family = families.computeIfAbsent(name, n -> new Family(n, help, type));
+        if (family.type != type) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as a " + family.type.text);
+        }
+        return family;
+    }
+
+    /**
+     * Render every series in the Prometheus text exposition format, version 0.0.4.
+     */
+    public String scrape() {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Family family : new TreeMap<>(families).values()) {
+            sb.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            sb.append("# TYPE ").append(family.name).append(' ').append(family.type.text).append('\n');
+            for (Map.Entry<String, Object> series : new TreeMap<>(family.series).entrySet()) {
+                write(sb, family.name, series.getKey(), series.getValue());
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void write(StringBuilder sb, String name, String labels, Object series) {
+        if (series instanceof Timer) {
+            Timer timer = (Timer) series;
+            Histogram snapshot = timer.histogram.copy();
+            for (double quantile : QUANTILES) {
+                String quantileLabel = "quantile=\"" + quantile + "\"";
+                String withQuantile = labels.isEmpty() ? quantileLabel : labels + "," + quantileLabel;
+                sample(sb, name, withQuantile, seconds(snapshot.getValueAtPercentile(quantile * 100)));
+            }
+            sample(sb, name + "_sum", labels, timer.sumNanos.sum() / 1e9);
+            sample(sb, name + "_count", labels, String.valueOf(timer.count.sum()));
+        } else if (series instanceof Counter) {
+            sample(sb, name, labels, String.valueOf(((Counter) series).get()));
+        } else {
+            sample(sb, name, labels, String.valueOf(((LongSupplier) series).getAsLong()));
+        }
+    }
+
+    private static double seconds(long micros) {
+        return micros / 1e6;
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, double value) {
+        sample(sb, name, labels, String.format(Locale.ROOT, "%.6f", value));
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, String value) {
+        sb.append(name);
+        if (!labels.isEmpty()) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ').append(value).append('\n');
+    }
+
+    private static String labelText(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name/value pairs");
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append("=\"");
+            String value = labels[i + 1];
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                if (c == '\\' || c == '"') {
+                    sb.append('\\').append(c);
+                } else if (c == '\n') {
+                    sb.append("\\n");
+                } else {
+                    sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+        return sb.toString();
+    }
+
+    private enum Type {
+        COUNTER("counter"),
+        GAUGE("gauge"),
+        SUMMARY("summary");
+
+        private final String text;
+
+        Type(String text) {
+            this.text = text;
+        }
+    }
+
+    private static final class Family {
+        private final String name;
+        private final String help;
+        private final Type type;
+        // Keyed by the rendered label text; values are Counter, Timer or LongSupplier
+        private final Map<String, Object> series = new ConcurrentHashMap<>();
+
+        private Family(String name, String help, Type type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+
+        private Object series(String[] labels, Supplier<Object> create) {
+            return series.computeIfAbsent(labelText(labels), key -> create.get());
+        }
+    }
+
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        private Counter() {
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    public static final class Timer {
+        private final ConcurrentHistogram histogram = new ConcurrentHistogram(MAX_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+        private final LongAdder sumNanos = new LongAdder();
+        private final LongAdder count = new LongAdder();
+
+        private Timer() {
+        }
+
+        public void record(long nanos) {
+            long micros = Math.max(0, Math.min(MAX_TRACKABLE_MICROS, TimeUnit.NANOSECONDS.toMicros(nanos)));
+            histogram.recordValue(micros);
+            sumNanos.add(nanos);
+            count.increment();
+        }
+
+        // Record the time since a System.nanoTime() reading
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+    }
+}
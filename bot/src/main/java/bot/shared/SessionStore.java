@@ -0,0 +1,335 @@
+package bot.shared;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only, memory-mapped log of session tokens so a restart does not log
+ * every user out.
+ *
+ * Each record is [int length][long chatId][byte type][payload], where the
+ * payload of a PUT is the AES-GCM encrypted access token, refresh token and
+ * expiry. Writes land in the mapped file immediately and are forced to disk
+ * in batches. At startup only the record headers are scanned, to build an
+ * offset index; a record is only decrypted when its chat is first looked up.
+ * {@link #contains(long)} reads the index without the store's lock, so chats
+ * with nothing stored never wait on it. Superseded records are dropped by
+ * compaction.
+ */
+public class SessionStore {
+    private static final Logger log = Logger.get(SessionStore.class);
+
+    private static final int INITIAL_CAPACITY = 1024 * 1024;
+    private static final int MIN_COMPACT_BYTES = 256 * 1024;
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+    private static final long COMPACT_INTERVAL_MINUTES = 10;
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final int HEADER_BYTES = 4 + 8 + 1;
+    private static final int IV_BYTES = 12;
+    private static final int TAG_BITS = 128;
+
+    private final Path path;
+    private final SecretKeySpec key;
+    private final SecureRandom random = new SecureRandom();
+    private final ScheduledExecutorService maintenance;
+
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int writePosition;
+    private boolean dirty;
+
+    // Chat ID -> offset of its latest PUT record; read without the lock, changed and replaced under it
+    private volatile Map<Long, Integer> index;
+    private long liveBytes;
+
+    public SessionStore(Path path, byte[] key) throws IOException {
+        this.path = path;
+        this.key = new SecretKeySpec(key, "AES");
+        map(Math.max(INITIAL_CAPACITY, roundUp(Files.exists(path) ? Files.size(path) : 0)));
+        buildIndex();
+
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-store");
+            thread.setDaemon(true);
+            return thread;
+        });
+        maintenance.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        maintenance.scheduleWithFixedDelay(this::compactIfNeeded, COMPACT_INTERVAL_MINUTES, COMPACT_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Open the store configured by SESSION_STORE_PATH and SESSION_STORE_KEY
+     * (a base64 AES key of 16, 24 or 32 bytes).
+     *
+     * @return The store, or null if no key is configured or the file can't be opened
+     */
+    public static SessionStore fromEnvironment() {
+        String encodedKey = System.getenv("SESSION_STORE_KEY");
+        if (encodedKey == null || encodedKey.isEmpty()) {
+            log.info("Session persistence disabled: SESSION_STORE_KEY is not set");
+            return null;
+        }
+
+        String location = System.getenv("SESSION_STORE_PATH");
+        Path path = Paths.get(location != null && !location.isEmpty() ? location : "sessions.log");
+        try {
+            SessionStore store = new SessionStore(path, Base64.getDecoder().decode(encodedKey));
+            log.info("Session persistence enabled at {}", path.toAbsolutePath());
+            return store;
+        } catch (IOException | IllegalArgumentException e) {
+            log.error("Session persistence disabled: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Check whether tokens are stored for a chat, without taking the store's
+     * lock. A chat that has never logged in is answered from here alone.
+     */
+    public boolean contains(long chatId) {
+        return index.containsKey(chatId);
+    }
+
+    /**
+     * Read the latest tokens stored for a chat.
+     *
+     * @param chatId The Telegram chat ID
+     * @return The stored tokens, or null if none are stored or the record can't be decrypted
+     */
+    public synchronized UserSessionManager.Tokens load(long chatId) {
+        Integer offset = index.get(chatId);
+        if (offset == null) {
+            return null;
+        }
+
+        int length = buffer.getInt(offset);
+        byte[] payload = new byte[length - (HEADER_BYTES - 4)];
+        buffer.get(offset + HEADER_BYTES, payload);
+
+        try {
+            return decode(decrypt(chatId, payload));
+        } catch (GeneralSecurityException | IOException e) {
+            log.warn("Discarding unreadable stored session for user {}: {}", chatId, e.getMessage());
+            return null;
+        }
+    }
+
+    public synchronized void save(long chatId, UserSessionManager.Tokens tokens) {
+        try {
+            byte[] payload = encrypt(chatId, encode(tokens));
+            Integer previous = index.get(chatId);
+            if (previous != null) {
+                liveBytes -= recordSize(previous);
+            }
+            int offset = append(chatId, PUT, payload);
+            index.put(chatId, offset);
+            liveBytes += recordSize(offset);
+        } catch (GeneralSecurityException | IOException e) {
+            log.error("Failed to persist session for user {}: {}", chatId, e.getMessage());
+        }
+    }
+
+    public synchronized void delete(long chatId) {
+        Integer previous = index.remove(chatId);
+        if (previous == null) {
+            return;
+        }
+        liveBytes -= recordSize(previous);
+
+        try {
+            append(chatId, DELETE, new byte[0]);
+        } catch (IOException e) {
+            log.error("Failed to persist logout for user {}: {}", chatId, e.getMessage());
+        }
+    }
+
+    // Force batched writes to disk; runs on the maintenance thread
+    public synchronized void flush() {
+        if (dirty) {
+            buffer.force();
+            dirty = false;
+        }
+    }
+
+    public synchronized void close() {
+        maintenance.shutdown();
+        flush();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Error closing session store: {}", e.getMessage());
+        }
+    }
+
+    // Rewrite the log with only the latest record per chat once most of it is superseded;
+    // package-private so tests can run it without waiting for the maintenance thread
+    synchronized void compactIfNeeded() {
+        if (writePosition < MIN_COMPACT_BYTES || liveBytes * 2 > writePosition) {
+            return;
+        }
+
+        Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+        Map<Long, Integer> compactedIndex = new ConcurrentHashMap<>();
+        int position = 0;
+
+        try {
+            try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                for (Map.Entry<Long, Integer> entry : index.entrySet()) {
+                    int offset = entry.getValue();
+                    int size = recordSize(offset);
+                    // Records are copied still encrypted
+                    ByteBuffer record = buffer.duplicate();
+                    record.limit(offset + size).position(offset);
+                    while (record.hasRemaining()) {
+                        out.write(record);
+                    }
+                    compactedIndex.put(entry.getKey(), position);
+                    position += size;
+                }
+                out.force(true);
+            }
+
+            flush();
+            channel.close();
+            Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            map(Math.max(INITIAL_CAPACITY, roundUp(position * 2L)));
+
+            log.info("Compacted session store from {} to {} bytes", writePosition, position);
+            index = compactedIndex;
+            writePosition = position;
+            liveBytes = position;
+        } catch (IOException e) {
+            log.error("Session store compaction failed: {}", e.getMessage());
+        }
+    }
+
+    // Scan record headers only; payloads are decrypted lazily in load()
+    private void buildIndex() {
+        Map<Long, Integer> index = new ConcurrentHashMap<>();
+        liveBytes = 0;
+        int position = 0;
+
+        while (position + HEADER_BYTES <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            // Unwritten space is zero-filled; a bad length means a torn tail write
+            if (length < HEADER_BYTES - 4 || position + 4 + length > buffer.capacity()) {
+                break;
+            }
+
+            long chatId = buffer.getLong(position + 4);
+            byte type = buffer.get(position + 12);
+            Integer previous = type == PUT ? index.put(chatId, position) : index.remove(chatId);
+            if (previous != null) {
+                liveBytes -= recordSize(previous);
+            }
+            if (type == PUT) {
+                liveBytes += 4 + length;
+            }
+            position += 4 + length;
+        }
+
+        writePosition = position;
+        this.index = index;
+        log.info("Session store index built: {} stored sessions", index.size());
+    }
+
+    private int append(long chatId, byte type, byte[] payload) throws IOException {
+        int size = HEADER_BYTES + payload.length;
+        if (writePosition + size > buffer.capacity()) {
+            map(roundUp(((long) buffer.capacity() + size) * 2));
+        }
+
+        int offset = writePosition;
+        buffer.putLong(offset + 4, chatId);
+        buffer.put(offset + 12, type);
+        buffer.put(offset + HEADER_BYTES, payload);
+        // Length goes last so a torn write is seen as the end of the log
+        buffer.putInt(offset, size - 4);
+
+        writePosition += size;
+        dirty = true;
+        return offset;
+    }
+
+    private int recordSize(int offset) {
+        return 4 + buffer.getInt(offset);
+    }
+
+    private void map(long capacity) throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private static long roundUp(long bytes) {
+        return ((bytes + INITIAL_CAPACITY - 1) / INITIAL_CAPACITY) * INITIAL_CAPACITY;
+    }
+
+    // IV first, then ciphertext with the GCM tag; the chat ID is bound in as associated data
+    private byte[] encrypt(long chatId, byte[] plaintext) throws GeneralSecurityException {
+        byte[] iv = new byte[IV_BYTES];
+        random.nextBytes(iv);
+
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+        cipher.updateAAD(ByteBuffer.allocate(8).putLong(chatId).array());
+        byte[] ciphertext = cipher.doFinal(plaintext);
+
+        return ByteBuffer.allocate(IV_BYTES + ciphertext.length).put(iv).put(ciphertext).array();
+    }
+
+    private byte[] decrypt(long chatId, byte[] payload) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, payload, 0, IV_BYTES));
+        cipher.updateAAD(ByteBuffer.allocate(8).putLong(chatId).array());
+        return cipher.doFinal(payload, IV_BYTES, payload.length - IV_BYTES);
+    }
+
+    private static byte[] encode(UserSessionManager.Tokens tokens) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(tokens.getAccessToken() != null ? tokens.getAccessToken() : "");
+            out.writeUTF(tokens.getRefreshToken() != null ? tokens.getRefreshToken() : "");
+            out.writeLong(tokens.getTokenExpiry());
+        }
+        return bytes.toByteArray();
+    }
+
+    private static UserSessionManager.Tokens decode(byte[] plaintext) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(plaintext))) {
+            String accessToken = in.readUTF();
+            String refreshToken = in.readUTF();
+            long tokenExpiry = in.readLong();
+            return UserSessionManager.Tokens.restore(
+                    accessToken.isEmpty() ? null : accessToken,
+                    refreshToken.isEmpty() ? null : refreshToken,
+                    tokenExpiry);
+        }
+    }
+}
@@ -1,40 +1,183 @@
 package bot.shared;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import bot.services.SpotifyService;
 
-public class TokenRefreshScheduler {
+/**
+ * Refreshes each user's token shortly before it expires, so commands don't
+ * pay for a token round trip.
+ *
+ * Every session with a refresh token gets one deadline in a DelayQueue,
+ * set a few minutes before its expiry with random jitter so sessions created
+ * together don't all refresh together. Due refreshes run on a small bounded
+ * pool and failed ones are retried with exponential backoff.
+ */
+public class TokenRefreshScheduler implements UserSessionManager.SessionListener {
+    private static final Logger log = Logger.get(TokenRefreshScheduler.class);
+
+    private static final long REFRESH_LEAD_MILLIS = 5 * 60 * 1000;
+    private static final long REFRESH_JITTER_MILLIS = 2 * 60 * 1000;
+    private static final long RETRY_BASE_MILLIS = 15 * 1000;
+    private static final long RETRY_MAX_MILLIS = 5 * 60 * 1000;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final int REFRESH_THREADS = 4;
+    private static final int MAX_PENDING_REFRESHES = 256;
+
     private final SpotifyService spotifyService;
-    private final ScheduledExecutorService executorService;
+    private final ExecutorService refreshPool;
+    private final DelayQueue<RefreshTask> deadlines = new DelayQueue<>();
+
+    // The current task per chat. Replaced tasks stay in the queue (removing them is O(n))
+    // and are skipped when they come due because they are no longer current.
+    private final Map<Long, RefreshTask> scheduled = new ConcurrentHashMap<>();
+
+    private final AtomicLong refreshed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+
+    private Thread deadlineThread;
 
     public TokenRefreshScheduler(SpotifyService spotifyService) {
         this.spotifyService = spotifyService;
-        this.executorService = Executors.newSingleThreadScheduledExecutor();
+        this.refreshPool = new ThreadPoolExecutor(REFRESH_THREADS, REFRESH_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(MAX_PENDING_REFRESHES), runnable -> {
+                    Thread thread = new Thread(runnable, "token-refresh");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        metrics.counter("bot_token_refreshes_total", "Proactive token refreshes", refreshed::get, "result", "success");
+        metrics.counter("bot_token_refreshes_total", "Proactive token refreshes", failed::get, "result", "failure");
+        metrics.counter("bot_token_refresh_retries_total", "Failed proactive refreshes scheduled for another attempt", retried::get);
+        metrics.gauge("bot_token_refreshes_scheduled", "Sessions with a proactive refresh scheduled", scheduled::size);
     }
 
     public void startScheduler() {
-        // Refresh token every 50 minutes (Spotify tokens expire after 60 minutes)
-        executorService.scheduleAtFixedRate(
-                this::refreshToken,
-                50,
-                50,
-                TimeUnit.MINUTES
-        );
+        // Per-user refreshes are driven by session token changes
+        UserSessionManager.getInstance().addListener(this);
+        deadlineThread = new Thread(this::runDeadlines, "token-refresh-deadlines");
+        deadlineThread.setDaemon(true);
+        deadlineThread.start();
+    }
+
+    @Override
+    public void onTokensChanged(long chatId, UserSessionManager.Tokens tokens) {
+        if (tokens.getRefreshToken() == null || tokens.getTokenExpiry() <= 0) {
+            return;
+        }
+
+        long jitter = ThreadLocalRandom.current().nextLong(REFRESH_JITTER_MILLIS);
+        long deadline = tokens.getTokenExpiry() - REFRESH_LEAD_MILLIS - jitter;
+        schedule(new RefreshTask(chatId, Math.max(deadline, System.currentTimeMillis() + jitter / 10), 0));
     }
 
-    private void refreshToken() {
-        try {
-            spotifyService.refreshAccessToken();
-            System.out.println("Access token refreshed successfully.");
-        } catch (Exception e) {
-            System.out.println("Failed to refresh access token: " + e.getMessage());
+    @Override
+    public void onSessionRemoved(long chatId) {
+        scheduled.remove(chatId);
+    }
+
+    private void schedule(RefreshTask task) {
+        scheduled.put(task.chatId, task);
+        deadlines.add(task);
+    }
+
+    // Hand due deadlines to the refresh pool; a full pool pushes the deadline back briefly
+    private void runDeadlines() {
+        while (!Thread.currentThread().isInterrupted()) {
+            RefreshTask task;
+            try {
+                task = deadlines.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            if (!scheduled.remove(task.chatId, task)) {
+                continue;
+            }
+
+            try {
+                refreshPool.execute(() -> refreshUser(task));
+            } catch (RejectedExecutionException e) {
+                schedule(new RefreshTask(task.chatId, System.currentTimeMillis() + RETRY_BASE_MILLIS, task.attempt));
+            }
         }
     }
 
+    private void refreshUser(RefreshTask task) {
+        if (UserSessionManager.getInstance().getSession(task.chatId) == null) {
+            return;
+        }
+
+        // On success the session publishes new tokens and onTokensChanged schedules the next refresh
+        if (spotifyService.refreshAccessTokenInBackground(task.chatId)) {
+            refreshed.incrementAndGet();
+            return;
+        }
+
+        failed.incrementAndGet();
+        int attempt = task.attempt + 1;
+        if (attempt >= MAX_ATTEMPTS) {
+            log.warn("Giving up proactive token refresh for user {} after {} attempts", task.chatId, attempt);
+            return;
+        }
+
+        retried.incrementAndGet();
+        long backoff = Math.min(RETRY_BASE_MILLIS << task.attempt, RETRY_MAX_MILLIS);
+        long jitter = ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        schedule(new RefreshTask(task.chatId, System.currentTimeMillis() + backoff + jitter, attempt));
+    }
+
+    public long getRefreshed() {
+        return refreshed.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getRetried() {
+        return retried.get();
+    }
+
     public void shutdown() {
-        executorService.shutdown();
+        refreshPool.shutdown();
+        if (deadlineThread != null) {
+            deadlineThread.interrupt();
+        }
+    }
+
+    private static class RefreshTask implements Delayed {
+        private final long chatId;
+        private final long deadline;
+        private final int attempt;
+
+        private RefreshTask(long chatId, long deadline, int attempt) {
+            this.chatId = chatId;
+            this.deadline = deadline;
+            this.attempt = attempt;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(deadline, ((RefreshTask) other).deadline);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,168 @@
+package bot.telegramBot;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+import bot.shared.Logger;
+import bot.shared.MetricsRegistry;
+import bot.shared.UserSessionManager;
+
+/**
+ * The bot's command table and the path every command takes before its
+ * handler does any I/O: route the text, check the login of commands that
+ * need one, then time and log the handler.
+ *
+ * The handlers come in through {@link Handlers}, so the benchmarks run this
+ * exact table and path with stub handlers; adding a command here fails their
+ * build until the stub handles it too.
+ */
+public class BotCommands {
+    private static final Logger log = Logger.get(BotCommands.class);
+
+    private static final long ADMIN_CHAT_ID = 7143567186L;
+
+    /**
+     * What each command does, plus the replies the command path itself sends.
+     */
+    public interface Handlers {
+        void start(long chatId);
+
+        void help(long chatId);
+
+        void login(long chatId);
+
+        void setCode(long chatId, String code);
+
+        void logout(long chatId);
+
+        void status(long chatId);
+
+        void play(long chatId, String query);
+
+        void search(long chatId, String query);
+
+        void pause(long chatId);
+
+        void resume(long chatId);
+
+        void skip(long chatId);
+
+        void current(long chatId);
+
+        void devices(long chatId);
+
+        void follow(long chatId);
+
+        void unfollow(long chatId);
+
+        void resetSession(long chatId);
+
+        void authDebug(long chatId);
+
+        void stats(long chatId);
+
+        void sessions(long chatId);
+
+        void printSessions(long chatId);
+
+        void unknownCommand(long chatId);
+
+        void notAuthenticated(long chatId);
+
+        void notAdmin(long chatId);
+    }
+
+    private final CommandRouter router;
+    private final UserSessionManager sessions;
+    private final Handlers handlers;
+    // Latency per command name, created on first use
+    private final Map<String, MetricsRegistry.Timer> latency = new ConcurrentHashMap<>();
+
+    public BotCommands(String botUsername, UserSessionManager sessions, Handlers handlers) {
+        this.router = buildRouter(botUsername, handlers);
+        this.sessions = sessions;
+        this.handlers = handlers;
+    }
+
+    // Every command the bot understands; adding a command means adding a line here and a Handlers method
+    private static CommandRouter buildRouter(String botUsername, Handlers handlers) {
+        return new CommandRouter(botUsername)
+                .register("/start", false, (chatId, argument) -> handlers.start(chatId))
+                .register("/help", false, (chatId, argument) -> handlers.help(chatId))
+                .register("/login", false, (chatId, argument) -> handlers.login(chatId))
+                .register("/spotify_login", false, (chatId, argument) -> handlers.login(chatId))
+                .register("/setcode", false, handlers::setCode)
+                .register("/logout", false, (chatId, argument) -> handlers.logout(chatId))
+                .register("/status", false, (chatId, argument) -> handlers.status(chatId))
+                .register("/play", true, handlers::play)
+                .register("/search", true, handlers::search)
+                .register("/pause", true, (chatId, argument) -> handlers.pause(chatId))
+                .register("/resume", true, (chatId, argument) -> handlers.resume(chatId))
+                .register("/skip", true, (chatId, argument) -> handlers.skip(chatId))
+                .register("/next", true, (chatId, argument) -> handlers.skip(chatId))
+                .register("/current", true, (chatId, argument) -> handlers.current(chatId))
+                .register("/devices", true, (chatId, argument) -> handlers.devices(chatId))
+                .register("/follow", true, (chatId, argument) -> handlers.follow(chatId))
+                .register("/unfollow", false, (chatId, argument) -> handlers.unfollow(chatId))
+                .register("/reset_session", false, (chatId, argument) -> handlers.resetSession(chatId))
+                .register("/auth_debug", false, (chatId, argument) -> handlers.authDebug(chatId))
+                .register("/stats", false, adminOnly(handlers, handlers::stats))
+                .register("/sessions", false, adminOnly(handlers, handlers::sessions))
+                .register("/print_sessions", false, adminOnly(handlers, handlers::printSessions));
+    }
+
+    private static CommandRouter.CommandHandler adminOnly(Handlers handlers, LongConsumer handler) {
+        return (chatId, argument) -> {
+            if (chatId == ADMIN_CHAT_ID) {
+                handler.accept(chatId);
+            } else {
+                handlers.notAdmin(chatId);
+            }
+        };
+    }
+
+    public CommandRouter getRouter() {
+        return router;
+    }
+
+    /**
+     * Run a "/command" message: route it, check the login if the command
+     * needs one, then call its handler, recording its latency.
+     */
+    public void handle(String text, long chatId) {
+        CommandRouter.Command command = router.route(text);
+
+        if (command == CommandRouter.IGNORED) {
+            return;
+        }
+        if (command == null) {
+            handlers.unknownCommand(chatId);
+            return;
+        }
+
+        long started = System.nanoTime();
+        boolean authorized = true;
+        try {
+            // Check authentication for commands that require it
+            if (command.requiresAuth() && !sessions.isUserAuthenticated(chatId)) {
+                authorized = false;
+                handlers.notAuthenticated(chatId);
+                return;
+            }
+
+            command.getHandler().handle(chatId, CommandRouter.argument(text));
+        } finally {
+            long elapsed = System.nanoTime() - started;
+            latency.computeIfAbsent(command.getName(), name -> MetricsRegistry.getInstance().timer(
+                    "bot_command_seconds", "Time to handle a bot command", "command", name)).record(elapsed);
+            log.atDebug()
+                    .with("chatId", chatId)
+                    .with("command", command.getName())
+                    .with("authorized", authorized)
+                    .with("latencyMs", TimeUnit.NANOSECONDS.toMillis(elapsed))
+                    .log("Handled command");
+        }
+    }
+}
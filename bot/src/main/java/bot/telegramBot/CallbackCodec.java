@@ -0,0 +1,93 @@
+package bot.telegramBot;
+
+import java.util.Arrays;
+
+/**
+ * Packs inline-button callback data into 11 base64url characters.
+ *
+ * The 64-bit payload is laid out as [version:4][action:4][arg:24][handle:32],
+ * where the handle points into a {@link CallbackRefTable} and arg is an
+ * action-specific number (e.g. a page). Decoding returns the payload as a
+ * primitive long, so the callback path allocates nothing until a handler
+ * resolves the handle.
+ */
+public final class CallbackCodec {
+    public static final int VERSION = 1;
+
+    public static final int ACTION_PLAY = 1;
+    public static final int ACTION_QUEUE = 2;
+    // The handle points at a device ID rather than a track URI
+    public static final int ACTION_DEVICE = 3;
+    // The handle points at a search query and arg is the page to show, as /play or /search results
+    public static final int ACTION_PLAY_PAGE = 4;
+    public static final int ACTION_SEARCH_PAGE = 5;
+
+    // Returned by decode() for data that isn't in this format (or is from another version)
+    public static final long INVALID = -1;
+
+    private static final int ENCODED_LENGTH = 11;
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+    private static final byte[] DECODE_TABLE = new byte[128];
+
+    static {
+        Arrays.fill(DECODE_TABLE, (byte) -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            DECODE_TABLE[ALPHABET[i]] = (byte) i;
+        }
+    }
+
+    private CallbackCodec() {
+    }
+
+    public static String encode(int action, int handle, int arg) {
+        long payload = ((long) VERSION << 60)
+                | ((long) (action & 0xF) << 56)
+                | ((long) (arg & 0xFFFFFF) << 32)
+                | (handle & 0xFFFFFFFFL);
+
+        // The first character carries the top 4 bits, the other ten carry 6 bits each
+        char[] out = new char[ENCODED_LENGTH];
+        out[0] = ALPHABET[(int) (payload >>> 60)];
+        for (int i = 1; i < ENCODED_LENGTH; i++) {
+            out[i] = ALPHABET[(int) (payload >>> (60 - 6 * i)) & 0x3F];
+        }
+        return new String(out);
+    }
+
+    /**
+     * Decode callback data without allocating.
+     *
+     * @param data The callback data from Telegram
+     * @return The packed payload, or {@link #INVALID}
+     */
+    public static long decode(String data) {
+        if (data == null || data.length() != ENCODED_LENGTH) {
+            return INVALID;
+        }
+
+        long payload = 0;
+        for (int i = 0; i < ENCODED_LENGTH; i++) {
+            char c = data.charAt(i);
+            int value = c < 128 ? DECODE_TABLE[c] : -1;
+            if (value < 0 || (i == 0 && value > 0xF)) {
+                return INVALID;
+            }
+            payload = i == 0 ? value : (payload << 6) | value;
+        }
+
+        return (int) (payload >>> 60) == VERSION ? payload : INVALID;
+    }
+
+    public static int action(long payload) {
+        return (int) (payload >>> 56) & 0xF;
+    }
+
+    public static int arg(long payload) {
+        return (int) (payload >>> 32) & 0xFFFFFF;
+    }
+
+    public static int handle(long payload) {
+        return (int) payload;
+    }
+}
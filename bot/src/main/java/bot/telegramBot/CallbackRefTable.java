@@ -0,0 +1,85 @@
+package bot.telegramBot;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bounded table of strings (track URIs, device IDs) referenced from inline
+ * buttons by a short integer handle, since they don't fit alongside other
+ * data in Telegram's 64-byte callback data.
+ *
+ * Slots are reused in ring order, so once the table is full the oldest
+ * entry is evicted. A handle carries its slot's generation, so a handle to
+ * an evicted or expired entry resolves to null rather than to whatever
+ * reused the slot. Interning the same string again returns its live handle.
+ */
+public class CallbackRefTable {
+    private static final int SLOT_BITS = 12;
+    private static final int CAPACITY = 1 << SLOT_BITS;
+    private static final int MASK = CAPACITY - 1;
+    private static final long DEFAULT_TTL_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private final long ttlMillis;
+    private final String[] values = new String[CAPACITY];
+    private final long[] expiresAt = new long[CAPACITY];
+    private final int[] generations = new int[CAPACITY];
+    private final Map<String, Integer> handles = new HashMap<>();
+    private int next;
+
+    public CallbackRefTable() {
+        this(DEFAULT_TTL_MILLIS);
+    }
+
+    public CallbackRefTable(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Get a handle for a string, reusing the existing handle if the string is
+     * still in the table.
+     *
+     * @param value The string to reference
+     * @return A non-negative handle
+     */
+    public synchronized int intern(String value) {
+        long now = System.currentTimeMillis();
+        Integer existing = handles.get(value);
+        if (existing != null && resolve(existing, now) != null) {
+            expiresAt[existing & MASK] = now + ttlMillis;
+            return existing;
+        }
+
+        int slot = next;
+        next = (next + 1) & MASK;
+        if (values[slot] != null) {
+            handles.remove(values[slot]);
+        }
+
+        // Generations wrap within 19 bits so handles stay non-negative ints
+        generations[slot] = (generations[slot] + 1) & 0x7FFFF;
+        values[slot] = value;
+        expiresAt[slot] = now + ttlMillis;
+
+        int handle = (generations[slot] << SLOT_BITS) | slot;
+        handles.put(value, handle);
+        return handle;
+    }
+
+    /**
+     * Look up the string for a handle without allocating.
+     *
+     * @param handle A handle returned by {@link #intern(String)}
+     * @return The string, or null if the handle was evicted or has expired
+     */
+    public synchronized String resolve(int handle) {
+        return resolve(handle, System.currentTimeMillis());
+    }
+
+    private String resolve(int handle, long now) {
+        int slot = handle & MASK;
+        if (handle < 0 || generations[slot] != handle >>> SLOT_BITS || now >= expiresAt[slot]) {
+            return null;
+        }
+        return values[slot];
+    }
+}
@@ -0,0 +1,157 @@
+package bot.telegramBot;
+
+/**
+ * Maps "/command" messages to their handlers.
+ *
+ * Commands are registered once up front into an open-addressing table keyed
+ * by a case-insensitive hash of the name. Routing hashes the command token in
+ * place and confirms it with regionMatches, so it needs no regex, split,
+ * lowercase copy or substring. A "/command@botname" suffix is accepted for
+ * this bot; a command addressed to another bot routes to {@link #IGNORED}.
+ */
+public class CommandRouter {
+    public interface CommandHandler {
+        void handle(long chatId, String argument);
+    }
+
+    public static final class Command {
+        private final String name;
+        private final boolean requiresAuth;
+        private final CommandHandler handler;
+
+        private Command(String name, boolean requiresAuth, CommandHandler handler) {
+            this.name = name;
+            this.requiresAuth = requiresAuth;
+            this.handler = handler;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean requiresAuth() {
+            return requiresAuth;
+        }
+
+        public CommandHandler getHandler() {
+            return handler;
+        }
+    }
+
+    // Returned for commands addressed to a different bot (e.g. "/start@otherbot" in a group)
+    public static final Command IGNORED = new Command("", false, (chatId, argument) -> { });
+
+    private final String botUsername;
+    private Command[] table = new Command[32];
+    private int size;
+
+    public CommandRouter(String botUsername) {
+        this.botUsername = botUsername;
+    }
+
+    /**
+     * Register a command. Not thread-safe; register everything before routing.
+     *
+     * @param name         The command including the leading slash, e.g. "/play"
+     * @param requiresAuth Whether the user must be logged in to Spotify
+     * @param handler      Called with the chat ID and the trimmed argument text
+     * @return This router, for chaining
+     */
+    public CommandRouter register(String name, boolean requiresAuth, CommandHandler handler) {
+        if ((size + 1) * 2 > table.length) {
+            Command[] old = table;
+            table = new Command[old.length * 2];
+            for (Command command : old) {
+                if (command != null) {
+                    insert(command);
+                }
+            }
+        }
+        insert(new Command(name, requiresAuth, handler));
+        size++;
+        return this;
+    }
+
+    private void insert(Command command) {
+        int mask = table.length - 1;
+        int i = hash(command.name, 0, command.name.length()) & mask;
+        while (table[i] != null) {
+            i = (i + 1) & mask;
+        }
+        table[i] = command;
+    }
+
+    /**
+     * Find the command a message starts with.
+     *
+     * @param text The message text, starting with '/'
+     * @return The command, {@link #IGNORED} if it is for another bot, or null if unknown
+     */
+    public Command route(String text) {
+        int end = 0;
+        int length = text.length();
+        while (end < length && !isWhitespace(text.charAt(end)) && text.charAt(end) != '@') {
+            end++;
+        }
+
+        if (end < length && text.charAt(end) == '@') {
+            int mentionStart = end + 1;
+            int mentionEnd = tokenEnd(text, mentionStart);
+            int mentionLength = mentionEnd - mentionStart;
+            if (mentionLength != botUsername.length()
+                    || !text.regionMatches(true, mentionStart, botUsername, 0, mentionLength)) {
+                return IGNORED;
+            }
+        }
+
+        int mask = table.length - 1;
+        for (int i = hash(text, 0, end) & mask; table[i] != null; i = (i + 1) & mask) {
+            Command command = table[i];
+            if (command.name.length() == end && text.regionMatches(true, 0, command.name, 0, end)) {
+                return command;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The text after the command token, trimmed; "" when there is none. Only
+     * allocates when there is an argument.
+     */
+    public static String argument(String text) {
+        int start = tokenEnd(text, 0);
+        int end = text.length();
+        while (start < end && isWhitespace(text.charAt(start))) {
+            start++;
+        }
+        while (end > start && isWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+        return start == end ? "" : text.substring(start, end);
+    }
+
+    private static int tokenEnd(String text, int start) {
+        int end = start;
+        while (end < text.length() && !isWhitespace(text.charAt(end))) {
+            end++;
+        }
+        return end;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\n' || c == '\t' || c == '\r';
+    }
+
+    // FNV-1a over ASCII-lowercased chars, so routing is case-insensitive without a lowercase copy
+    private static int hash(String text, int start, int end) {
+        int hash = 0x811c9dc5;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            hash = (hash ^ c) * 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+}
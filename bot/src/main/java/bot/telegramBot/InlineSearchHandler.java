@@ -0,0 +1,249 @@
+package bot.telegramBot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.telegram.telegrambots.meta.api.methods.AnswerInlineQuery;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.InlineQuery;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.inputmessagecontent.InputTextMessageContent;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.result.InlineQueryResult;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.result.InlineQueryResultArticle;
+import org.telegram.telegrambots.meta.bots.AbsSender;
+
+import bot.services.SpotifyService;
+import bot.services.TrackSummary;
+import bot.shared.Logger;
+import bot.shared.MetricsRegistry;
+
+/**
+ * Answers inline queries ("@mierzvoj_bot daft punk" typed in any chat) with
+ * track search results.
+ *
+ * Telegram sends a query for nearly every keystroke. Each user has at most
+ * one pending query: a new one cancels the last one's debounce timer and its
+ * Spotify call if still queued or running, so only the query the user
+ * settles on is searched, with one Spotify call. A page already in the
+ * search cache is answered at once, and while the user is still typing the
+ * cached results of a longer query starting with the same text are shown
+ * instead of searching. Results are paged with next_offset, and the next
+ * page is prefetched as soon as one is answered. Telegram shares its cache
+ * of an answer across users, so only results Spotify actually returned are
+ * cached for long; failed searches and empty pages are not.
+ */
+public class InlineSearchHandler {
+    private static final Logger log = Logger.get(InlineSearchHandler.class);
+
+    private static final long DEBOUNCE_MILLIS = 300;
+    private static final int PAGE_SIZE = 10;
+    // Spotify doesn't page search results past this offset
+    private static final int MAX_OFFSET = 1000;
+    // Telegram caches an answer per query text for this long, for all users
+    private static final int CACHE_SECONDS = 300;
+    // Answers from a longer query's results are only a stand-in, so Telegram should ask again soon
+    private static final int PREFIX_CACHE_SECONDS = 5;
+    // "No results" is cheap to ask again, and shouldn't stick for everyone if Spotify misbehaved
+    private static final int EMPTY_CACHE_SECONDS = 5;
+
+    private final SpotifyService spotifyService;
+    private final AbsSender sender;
+    private final Map<Long, Pending> pending = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "inline-search-debounce");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final MetricsRegistry.Counter fromCache;
+    private final MetricsRegistry.Counter fromPrefix;
+    private final MetricsRegistry.Counter searched;
+    private final MetricsRegistry.Counter superseded;
+
+    public InlineSearchHandler(SpotifyService spotifyService, AbsSender sender) {
+        this.spotifyService = spotifyService;
+        this.sender = sender;
+
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        String help = "Inline queries by how they were answered";
+        this.fromCache = metrics.counter("telegram_inline_queries_total", help, "result", "cache_hit");
+        this.fromPrefix = metrics.counter("telegram_inline_queries_total", help, "result", "prefix_hit");
+        this.searched = metrics.counter("telegram_inline_queries_total", help, "result", "searched");
+        this.superseded = metrics.counter("telegram_inline_queries_total", help, "result", "superseded");
+        metrics.gauge("telegram_inline_queries_pending", "Inline queries waiting on debounce or search",
+                pending::size);
+    }
+
+    // Called on the polling or webhook thread; never blocks
+    public void handle(InlineQuery query) {
+        long userId = query.getFrom().getId();
+        String text = query.getQuery() != null ? query.getQuery().trim() : "";
+        int offset = parseOffset(query.getOffset());
+
+        Pending previous = pending.remove(userId);
+        if (previous != null) {
+            previous.cancel();
+            superseded.increment();
+        }
+
+        if (text.isEmpty()) {
+            answer(query.getId(), new ArrayList<>(), CACHE_SECONDS, null);
+            return;
+        }
+
+        List<TrackSummary> cached = spotifyService.cachedSearch(text, offset, PAGE_SIZE);
+        if (cached != null) {
+            fromCache.increment();
+            answerPage(userId, query.getId(), text, offset, cached);
+            return;
+        }
+        if (offset == 0) {
+            List<TrackSummary> longer = spotifyService.cachedSearchByPrefix(text, PAGE_SIZE);
+            if (longer != null) {
+                // No next_offset: later pages would come from a different query
+                fromPrefix.increment();
+                answer(query.getId(), longer, PREFIX_CACHE_SECONDS, null);
+                return;
+            }
+        }
+
+        // Scrolling to the next page isn't typing, so it needn't wait
+        Pending entry = new Pending();
+        pending.put(userId, entry);
+        entry.timer = timer.schedule(() -> search(userId, query.getId(), text, offset, entry),
+                offset == 0 ? DEBOUNCE_MILLIS : 0, TimeUnit.MILLISECONDS);
+    }
+
+    private void search(long userId, String queryId, String text, int offset, Pending entry) {
+        CompletableFuture<List<TrackSummary>> search;
+        synchronized (entry) {
+            if (entry.cancelled) {
+                return;
+            }
+            searched.increment();
+            search = spotifyService.searchTracksAsync(userId, text, offset, PAGE_SIZE);
+            entry.search = search;
+        }
+
+        search.whenComplete((tracks, error) -> {
+            pending.remove(userId, entry);
+            if (error instanceof CancellationException || entry.cancelled) {
+                return;
+            }
+            if (error != null) {
+                // Timeouts, 429s and API errors; already logged by the service. An empty answer
+                // that isn't cached stops the spinner without telling other users "no results".
+                answer(queryId, new ArrayList<>(), 0, null);
+                return;
+            }
+            answerPage(userId, queryId, text, offset, tracks);
+        });
+    }
+
+    private void answerPage(long userId, String queryId, String text, int offset, List<TrackSummary> tracks) {
+        int next = offset + tracks.size();
+        boolean more = tracks.size() == PAGE_SIZE && next < MAX_OFFSET;
+        answer(queryId, tracks, tracks.isEmpty() ? EMPTY_CACHE_SECONDS : CACHE_SECONDS,
+                more ? Integer.toString(next) : "");
+        if (more) {
+            spotifyService.prefetchSearchPage(userId, text, next, PAGE_SIZE);
+        }
+    }
+
+    private void answer(String queryId, List<TrackSummary> tracks, int cacheSeconds, String nextOffset) {
+        List<InlineQueryResult> results = new ArrayList<>(tracks.size());
+        for (TrackSummary track : tracks) {
+            results.add(article(track));
+        }
+
+        AnswerInlineQuery answer = new AnswerInlineQuery();
+        answer.setInlineQueryId(queryId);
+        answer.setResults(results);
+        answer.setCacheTime(cacheSeconds);
+        // Results don't depend on who searched, so Telegram may share its cache across users
+        answer.setIsPersonal(false);
+        answer.setNextOffset(nextOffset);
+
+        try {
+            sender.executeAsync(answer).whenComplete((ok, error) -> {
+                if (error != null) {
+                    log.warn("Failed to answer inline query {}: {}", queryId, error.getMessage());
+                }
+            });
+        } catch (Exception e) {
+            log.warn("Failed to answer inline query {}: {}", queryId, e.getMessage());
+        }
+    }
+
+    private static InlineQueryResultArticle article(TrackSummary track) {
+        String url = TrackListFormatter.openUrl(track);
+
+        InputTextMessageContent content = new InputTextMessageContent();
+        content.setMessageText("🎵 " + TrackListFormatter.label(track) + (url != null ? "\n" + url : ""));
+
+        InlineQueryResultArticle article = new InlineQueryResultArticle();
+        article.setId(track.getUri());
+        article.setTitle(track.getName());
+        article.setDescription(track.getArtist());
+        article.setInputMessageContent(content);
+        if (url != null) {
+            article.setUrl(url);
+            article.setHideUrl(true);
+        }
+        return article;
+    }
+
+    // Telegram echoes back our next_offset; anything else starts from the top
+    private static int parseOffset(String offset) {
+        if (offset == null || offset.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Math.min(Integer.parseInt(offset), MAX_OFFSET));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    public String getStats() {
+        return "Inline queries:\n" +
+                "  Pending: " + pending.size() + "\n" +
+                "  From cache: " + fromCache.get() + "\n" +
+                "  From a longer cached query: " + fromPrefix.get() + "\n" +
+                "  Searched: " + searched.get() + "\n" +
+                "  Superseded: " + superseded.get();
+    }
+
+    // A user's latest query, until it is answered or superseded
+    private static final class Pending {
+        private volatile boolean cancelled;
+        private volatile ScheduledFuture<?> timer;
+        // Guarded by this
+        private CompletableFuture<List<TrackSummary>> search;
+
+        void cancel() {
+            CompletableFuture<List<TrackSummary>> running;
+            synchronized (this) {
+                cancelled = true;
+                running = search;
+            }
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            if (running != null) {
+                running.cancel(true);
+            }
+        }
+    }
+}
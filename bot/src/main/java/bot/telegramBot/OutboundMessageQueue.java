@@ -0,0 +1,455 @@
+package bot.telegramBot;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
+import org.telegram.telegrambots.meta.bots.AbsSender;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+
+import bot.shared.Logger;
+import bot.shared.MetricsRegistry;
+
+/**
+ * Queues outgoing messages per chat and sends them within Telegram's limits
+ * of about 30 messages a second overall and one a second per chat.
+ *
+ * Consecutive plain texts waiting for the same chat are merged into a single
+ * message while they fit in Telegram's 4096-character limit. A placeholder
+ * ("Processing...") can later be edited into the final result instead of
+ * sending a second message, and a message with a keyboard can be edited in
+ * place (e.g. paging through results); of several edits of one message
+ * waiting to be sent only the latest goes out. Messages to one chat are sent one at a time and
+ * in order; a 429 puts the message back and holds the chat for retry_after.
+ */
+public class OutboundMessageQueue {
+    private static final Logger log = Logger.get(OutboundMessageQueue.class);
+
+    private static final int MAX_MESSAGE_LENGTH = 4096;
+    private static final String COALESCE_SEPARATOR = "\n\n";
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final AbsSender sender;
+    private final long globalIntervalNanos;
+    private final long perChatIntervalNanos;
+    private final int maxPendingPerChat;
+
+    // Guarded by lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Map<Long, ChatQueue> chats = new HashMap<>();
+    // Chats with pending messages and nothing in flight, in round-robin order
+    private final ArrayDeque<ChatQueue> ready = new ArrayDeque<>();
+    private long nextGlobalSend = System.nanoTime();
+    private long nextSweep = System.nanoTime();
+    private boolean stopped;
+
+    private final Thread senderThread;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong edited = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public OutboundMessageQueue(AbsSender sender) {
+        this(sender, 30, 1, 100);
+    }
+
+    /**
+     * @param sender            Sends the messages, normally the bot itself
+     * @param globalPerSecond   Messages per second across all chats
+     * @param perChatPerSecond  Messages per second to a single chat
+     * @param maxPendingPerChat Messages that may wait for one chat before new ones are dropped
+     */
+    public OutboundMessageQueue(AbsSender sender, int globalPerSecond, int perChatPerSecond, int maxPendingPerChat) {
+        this.sender = sender;
+        this.globalIntervalNanos = TimeUnit.SECONDS.toNanos(1) / globalPerSecond;
+        this.perChatIntervalNanos = TimeUnit.SECONDS.toNanos(1) / perChatPerSecond;
+        this.maxPendingPerChat = maxPendingPerChat;
+
+        this.senderThread = new Thread(this::sendLoop, "telegram-outbound");
+        this.senderThread.setDaemon(true);
+        this.senderThread.start();
+
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        metrics.counter("telegram_sent_total", "Telegram messages sent or edited", sent::get);
+        metrics.counter("telegram_coalesced_total", "Texts merged into a message already queued", coalesced::get);
+        metrics.counter("telegram_rate_limited_total", "Telegram sends answered with 429 and retried", rateLimited::get);
+        metrics.counter("telegram_dropped_total", "Telegram messages dropped", dropped::get);
+    }
+
+    /**
+     * Queue a plain text message. It may be merged with other texts queued
+     * for the same chat.
+     */
+    public void sendText(long chatId, String text) {
+        enqueue(chatId, Outgoing.text(text));
+    }
+
+    /**
+     * Queue a prepared message, e.g. one with an inline keyboard. It is sent
+     * as is and never merged.
+     */
+    public void send(SendMessage message) {
+        enqueue(Long.parseLong(message.getChatId()), Outgoing.message(message));
+    }
+
+    /**
+     * Queue a message that will later be replaced with {@link #edit}.
+     */
+    public Placeholder sendPlaceholder(long chatId, String text) {
+        Placeholder placeholder = new Placeholder(chatId);
+        enqueue(chatId, Outgoing.placeholder(text, placeholder));
+        return placeholder;
+    }
+
+    /**
+     * Replace a placeholder's text. If the placeholder couldn't be sent the
+     * text is sent as a new message instead. When several edits of the same
+     * placeholder are waiting only the latest is sent.
+     */
+    public void edit(Placeholder placeholder, String text) {
+        enqueue(placeholder.chatId, Outgoing.edit(text, placeholder));
+    }
+
+    /**
+     * Queue a prepared edit of a message already sent, e.g. a new page of
+     * results with its keyboard. A newer edit of the same message replaces
+     * this one if it hasn't been sent yet.
+     */
+    public void edit(EditMessageText edit) {
+        enqueue(Long.parseLong(edit.getChatId()), Outgoing.editMessage(edit));
+    }
+
+    private void enqueue(long chatId, Outgoing outgoing) {
+        lock.lock();
+        try {
+            if (stopped) {
+                dropped.incrementAndGet();
+                return;
+            }
+
+            ChatQueue chat = chats.get(chatId);
+            if (chat == null) {
+                chat = new ChatQueue(chatId);
+                chats.put(chatId, chat);
+            }
+
+            Outgoing last = chat.pending.peekLast();
+            if (last != null && last.absorb(outgoing)) {
+                coalesced.incrementAndGet();
+                return;
+            }
+            if (chat.pending.size() >= maxPendingPerChat) {
+                dropped.incrementAndGet();
+                log.warn("Outbound queue full for chat {}; dropping message", chatId);
+                return;
+            }
+
+            chat.pending.addLast(outgoing);
+            if (chat.pending.size() == 1 && !chat.inFlight) {
+                ready.addLast(chat);
+                changed.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void sendLoop() {
+        while (true) {
+            ChatQueue chat;
+            Outgoing outgoing;
+
+            lock.lock();
+            try {
+                chat = awaitSendableChat();
+                if (chat == null) {
+                    return;
+                }
+                outgoing = chat.pending.pollFirst();
+                chat.inFlight = true;
+                long now = System.nanoTime();
+                chat.nextSend = now + perChatIntervalNanos;
+                nextGlobalSend = now + globalIntervalNanos;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            ChatQueue target = chat;
+            long started = System.nanoTime();
+            execute(chat.chatId, outgoing).whenComplete((result, error) -> {
+                outgoing.kind.latency.recordSince(started);
+                complete(target, outgoing, error);
+            });
+        }
+    }
+
+    // Blocks until a chat may be sent to under both limits; null once stopped
+    private ChatQueue awaitSendableChat() throws InterruptedException {
+        while (!stopped) {
+            long now = System.nanoTime();
+            if (now - nextSweep >= 0) {
+                removeIdleChats(now);
+                nextSweep = now + SWEEP_INTERVAL_NANOS;
+            }
+
+            long wait = nextGlobalSend - now;
+
+            if (wait <= 0) {
+                long earliest = Long.MAX_VALUE;
+                for (Iterator<ChatQueue> it = ready.iterator(); it.hasNext(); ) {
+                    ChatQueue chat = it.next();
+                    if (chat.nextSend - now <= 0) {
+                        it.remove();
+                        return chat;
+                    }
+                    earliest = Math.min(earliest, chat.nextSend - now);
+                }
+                wait = earliest;
+            }
+
+            changed.awaitNanos(Math.min(wait, SWEEP_INTERVAL_NANOS));
+        }
+        return null;
+    }
+
+    private void removeIdleChats(long now) {
+        chats.values().removeIf(chat -> chat.pending.isEmpty() && !chat.inFlight && chat.nextSend - now <= 0);
+    }
+
+    private CompletableFuture<? extends Serializable> execute(long chatId, Outgoing outgoing) {
+        try {
+            switch (outgoing.kind) {
+                case EDIT: {
+                    Integer messageId = outgoing.placeholder.messageId();
+                    if (messageId != null) {
+                        EditMessageText edit = new EditMessageText();
+                        edit.setChatId(chatId);
+                        edit.setMessageId(messageId);
+                        edit.setText(outgoing.text.toString());
+                        return sender.executeAsync(edit);
+                    }
+                    // The placeholder never made it, so send the result on its own
+                    return sender.executeAsync(newMessage(chatId, outgoing.text.toString()));
+                }
+                case PLACEHOLDER:
+                    return sender.executeAsync(newMessage(chatId, outgoing.text.toString()))
+                            .thenApply(message -> {
+                                outgoing.placeholder.sent(message.getMessageId());
+                                return message;
+                            });
+                case MESSAGE:
+                    return sender.executeAsync(outgoing.message);
+                case EDIT_MESSAGE:
+                    return sender.executeAsync(outgoing.edit);
+                default:
+                    return sender.executeAsync(newMessage(chatId, outgoing.text.toString()));
+            }
+        } catch (TelegramApiException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private static SendMessage newMessage(long chatId, String text) {
+        SendMessage message = new SendMessage();
+        message.setChatId(chatId);
+        message.setText(text);
+        return message;
+    }
+
+    private void complete(ChatQueue chat, Outgoing outgoing, Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        Integer retryAfter = retryAfterSeconds(cause);
+
+        lock.lock();
+        try {
+            chat.inFlight = false;
+
+            if (cause == null) {
+                sent.incrementAndGet();
+                if (outgoing.kind == Kind.EDIT_MESSAGE
+                        || (outgoing.kind == Kind.EDIT && outgoing.placeholder.messageId() != null)) {
+                    edited.incrementAndGet();
+                }
+            } else if (retryAfter != null && !stopped) {
+                rateLimited.incrementAndGet();
+                chat.pending.addFirst(outgoing);
+                chat.nextSend = System.nanoTime() + TimeUnit.SECONDS.toNanos(retryAfter);
+            } else {
+                dropped.incrementAndGet();
+                log.warn("Failed to send message to chat {}: {}", chat.chatId, cause.getMessage());
+            }
+
+            // Idle chats stay until their interval has passed, so the per-chat limit holds across bursts
+            if (!chat.pending.isEmpty()) {
+                ready.addLast(chat);
+                changed.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static Integer retryAfterSeconds(Throwable error) {
+        if (error instanceof TelegramApiRequestException) {
+            TelegramApiRequestException requestError = (TelegramApiRequestException) error;
+            if (requestError.getErrorCode() != null && requestError.getErrorCode() == 429) {
+                Integer retryAfter = requestError.getParameters() != null ? requestError.getParameters().getRetryAfter() : null;
+                return retryAfter != null ? retryAfter : 1;
+            }
+        }
+        return null;
+    }
+
+    public String getStats() {
+        int activeChats;
+        lock.lock();
+        try {
+            activeChats = chats.size();
+        } finally {
+            lock.unlock();
+        }
+        return "Outbound messages:\n" +
+                "  Active chats: " + activeChats + "\n" +
+                "  Sent: " + sent.get() + " (edits " + edited.get() + ")\n" +
+                "  Coalesced: " + coalesced.get() + "\n" +
+                "  Rate limited (429): " + rateLimited.get() + "\n" +
+                "  Dropped: " + dropped.get();
+    }
+
+    /**
+     * Stop sending. Messages still queued are dropped.
+     */
+    public void shutdown() {
+        lock.lock();
+        try {
+            stopped = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        senderThread.interrupt();
+    }
+
+    /**
+     * A message sent with {@link #sendPlaceholder} that can be edited later.
+     */
+    public static final class Placeholder {
+        private final long chatId;
+        // Set once the message is sent (or has failed); read by the sender thread for a later edit
+        private volatile Integer messageId;
+
+        private Placeholder(long chatId) {
+            this.chatId = chatId;
+        }
+
+        private void sent(Integer messageId) {
+            this.messageId = messageId;
+        }
+
+        private Integer messageId() {
+            return messageId;
+        }
+    }
+
+    private enum Kind {
+        TEXT,
+        MESSAGE,
+        PLACEHOLDER,
+        EDIT,
+        EDIT_MESSAGE;
+
+        private final MetricsRegistry.Timer latency = MetricsRegistry.getInstance().timer("telegram_send_seconds",
+                "Time for a Telegram send or edit to complete, excluding time queued for pacing",
+                "kind", name().toLowerCase(Locale.ROOT));
+    }
+
+    private static final class Outgoing {
+        private final Kind kind;
+        private final StringBuilder text;
+        private final SendMessage message;
+        private final Placeholder placeholder;
+        // Replaced by a newer edit of the same message while waiting
+        private EditMessageText edit;
+
+        private Outgoing(Kind kind, String text, SendMessage message, Placeholder placeholder) {
+            this.kind = kind;
+            this.text = text != null ? new StringBuilder(text) : null;
+            this.message = message;
+            this.placeholder = placeholder;
+        }
+
+        static Outgoing text(String text) {
+            return new Outgoing(Kind.TEXT, text, null, null);
+        }
+
+        static Outgoing message(SendMessage message) {
+            return new Outgoing(Kind.MESSAGE, null, message, null);
+        }
+
+        static Outgoing placeholder(String text, Placeholder placeholder) {
+            return new Outgoing(Kind.PLACEHOLDER, text, null, placeholder);
+        }
+
+        static Outgoing edit(String text, Placeholder placeholder) {
+            return new Outgoing(Kind.EDIT, text, null, placeholder);
+        }
+
+        static Outgoing editMessage(EditMessageText edit) {
+            Outgoing outgoing = new Outgoing(Kind.EDIT_MESSAGE, null, null, null);
+            outgoing.edit = edit;
+            return outgoing;
+        }
+
+        /**
+         * Fold a newer message into this one while it is still waiting:
+         * consecutive texts are joined and a newer edit of the same
+         * placeholder or message replaces this one.
+         */
+        boolean absorb(Outgoing next) {
+            if (kind == Kind.TEXT && next.kind == Kind.TEXT
+                    && text.length() + COALESCE_SEPARATOR.length() + next.text.length() <= MAX_MESSAGE_LENGTH) {
+                text.append(COALESCE_SEPARATOR).append(next.text);
+                return true;
+            }
+            if (kind == Kind.EDIT && next.kind == Kind.EDIT && placeholder == next.placeholder) {
+                text.setLength(0);
+                text.append(next.text);
+                return true;
+            }
+            if (kind == Kind.EDIT_MESSAGE && next.kind == Kind.EDIT_MESSAGE
+                    && edit.getMessageId().equals(next.edit.getMessageId())) {
+                edit = next.edit;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private static final class ChatQueue {
+        private final long chatId;
+        private final ArrayDeque<Outgoing> pending = new ArrayDeque<>();
+        private boolean inFlight;
+        private long nextSend = System.nanoTime();
+
+        private ChatQueue(long chatId) {
+            this.chatId = chatId;
+        }
+    }
+}
@@ -4,40 +4,97 @@ import java.io.IOException;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import bot.shared.UserSessionManager;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
 import org.telegram.telegrambots.bots.TelegramLongPollingBot;
+import org.telegram.telegrambots.meta.api.methods.ActionType;
 import org.telegram.telegrambots.meta.api.methods.AnswerCallbackQuery;
+import org.telegram.telegrambots.meta.api.methods.send.SendChatAction;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
 import org.telegram.telegrambots.meta.api.objects.CallbackQuery;
 import org.telegram.telegrambots.meta.api.objects.Update;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
 
+import bot.server.WebhookServer;
+import bot.services.DeviceSummary;
+import bot.services.NowPlayingPoller;
 import bot.services.SpotifyService;
+import bot.services.TrackSummary;
+import bot.shared.Logger;
 import se.michaelthelin.spotify.exceptions.SpotifyWebApiException;
 import se.michaelthelin.spotify.model_objects.credentials.AuthorizationCodeCredentials;
 import se.michaelthelin.spotify.model_objects.miscellaneous.CurrentlyPlaying;
 import se.michaelthelin.spotify.model_objects.specification.Track;
 
 public class SpotifyTelegramBot extends TelegramLongPollingBot {
+    private static final Logger log = Logger.get(SpotifyTelegramBot.class);
+
+    // How long a Spotify call may take before the user sees a "typing..." indicator
+    private static final long TYPING_DELAY_MILLIS = 300;
+    // Threads for executeAsync, so paced sends to different chats can overlap
+    private static final int SEND_THREADS = 8;
+    // Results per /play or /search page
+    private static final int SEARCH_PAGE_SIZE = 5;
+    // Spotify doesn't page search results past this offset
+    private static final int MAX_SEARCH_OFFSET = 1000;
+    private static final String BOT_TOKEN = ":";
 
     private final SpotifyService spotifyService;
     private final UserSessionManager userSessionManager;
+    private final UpdateDispatcher dispatcher;
+    private final OutboundMessageQueue outbox;
+    private final NowPlayingPoller nowPlaying;
+    private final InlineSearchHandler inlineSearch;
+
+    // Track URIs, device IDs and search queries referenced by compact inline-button callback data
+    private final CallbackRefTable callbackRefs = new CallbackRefTable();
+    private final BotCommands commands;
+    // Set in webhook mode, so /stats covers ingestion too
+    private volatile WebhookServer webhook;
 
     public SpotifyTelegramBot(SpotifyService spotifyService) {
+        super(botOptions(), BOT_TOKEN);
         this.spotifyService = spotifyService;
+        this.dispatcher = UpdateDispatcher.fromSystemProperties();
+        this.outbox = new OutboundMessageQueue(this);
+        this.nowPlaying = new NowPlayingPoller(spotifyService, this::onNowPlayingChanged);
+        this.inlineSearch = new InlineSearchHandler(spotifyService, this);
         // Always get the singleton instance
         this.userSessionManager = UserSessionManager.getInstance();
-        System.out.println("SpotifyTelegramBot initialized with UserSessionManager: " + this.userSessionManager);
-
+        this.commands = new BotCommands(getBotUsername(), userSessionManager, new CommandHandlers());
 
         if (this.userSessionManager == null) {
-            System.err.println("CRITICAL ERROR: Failed to initialize UserSessionManager in bot constructor!");
+            log.error("CRITICAL ERROR: Failed to initialize UserSessionManager in bot constructor!");
         } else {
-            System.out.println("SpotifyTelegramBot initialized with UserSessionManager: " + this.userSessionManager);
+            log.debug("SpotifyTelegramBot initialized with UserSessionManager: {}", this.userSessionManager);
+        }
+    }
+
+    private static DefaultBotOptions botOptions() {
+        DefaultBotOptions options = new DefaultBotOptions();
+        options.setMaxThreads(SEND_THREADS);
+
+        // e.g. http://localhost:8090/bot to talk to a local stand-in Telegram server
+        String apiUrl = System.getenv("TELEGRAM_API_URL");
+        if (apiUrl != null && !apiUrl.isBlank()) {
+            options.setBaseUrl(apiUrl);
         }
+        return options;
+    }
+
+    // Include this webhook server's request counts in /stats
+    public void setWebhookServer(WebhookServer webhook) {
+        this.webhook = webhook;
     }
 
     @Override
@@ -45,25 +102,59 @@ public class SpotifyTelegramBot extends TelegramLongPollingBot {
         return "mierzvoj_bot";
     }
 
-    @Override
-    public String getBotToken() {
-        return ":";
+    // Queued and paced; consecutive texts to the same chat may be merged into one message
+    private void sendTextMessage(long chatId, String text) {
+        outbox.sendText(chatId, text);
     }
 
-    private void sendTextMessage(long chatId, String text) {
-        SendMessage message = new SendMessage();
-        message.setChatId(chatId);
-        message.setText(text);
+    /**
+     * Wait for a Spotify call started by the caller. If it hasn't finished
+     * shortly, show a "typing..." indicator while it completes.
+     *
+     * @return The result, or fallback if the call failed or timed out
+     */
+    private <T> T awaitReply(long chatId, CompletableFuture<T> call, T fallback) {
+        try {
+            return call.get(TYPING_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            sendChatAction(chatId, ActionType.TYPING);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            call.cancel(true);
+            return fallback;
+        } catch (ExecutionException | CancellationException e) {
+            return fallback;
+        }
+
+        try {
+            return call.join();
+        } catch (CompletionException | CancellationException e) {
+            return fallback;
+        }
+    }
+
+    private void sendChatAction(long chatId, ActionType action) {
+        SendChatAction chatAction = new SendChatAction();
+        chatAction.setChatId(chatId);
+        chatAction.setAction(action);
 
         try {
-            execute(message);
+            execute(chatAction);
         } catch (TelegramApiException e) {
-            e.printStackTrace();
+            log.warn("Failed to send chat action to chat {}: {}", chatId, e.getMessage());
         }
     }
 
+    /**
+     * Tell a user their Spotify login went through, once the OAuth callback
+     * has stored their tokens.
+     */
+    public void onSpotifyLogin(long chatId) {
+        sendTextMessage(chatId, "✅ Authentication successful! You can now use Spotify commands.");
+    }
+
     private void sendLoginMessage(long chatId) {
-        String authUrl = spotifyService.getAuthorizationUrl();
+        String authUrl = spotifyService.getAuthorizationUrl(chatId);
 
         InlineKeyboardMarkup markupInline = new InlineKeyboardMarkup();
         List<List<InlineKeyboardButton>> rowsInline = new ArrayList<>();
@@ -77,11 +168,7 @@ public class SpotifyTelegramBot extends TelegramLongPollingBot {
         message.setText("Please login to your Spotify account:");
         message.setReplyMarkup(markupInline);
 
-        try {
-            execute(message);
-        } catch (TelegramApiException e) {
-            e.printStackTrace();
-        }
+        outbox.send(message);
     }
 
     private InlineKeyboardButton createInlineButton(String text, String url) {
@@ -91,15 +178,65 @@ public class SpotifyTelegramBot extends TelegramLongPollingBot {
         return button;
     }
 
-    // Add to your onUpdateReceived method in SpotifyTelegramBot.java
+    private InlineKeyboardButton createCallbackButton(String text, String callbackData) {
+        InlineKeyboardButton button = new InlineKeyboardButton();
+        button.setText(text);
+        button.setCallbackData(callbackData);
+        return button;
+    }
+
+    // Handlers block on Spotify and Telegram, so run them off the polling thread, one lane per chat
     @Override
     public void onUpdateReceived(Update update) {
+        submitUpdate(update);
+    }
+
+    /**
+     * Hand an update to the dispatcher. Used directly in webhook mode, where
+     * a rejected update can be answered with an error so Telegram redelivers it.
+     * Inline queries skip the dispatcher: they belong to no chat, and their
+     * handler never blocks.
+     *
+     * @return False if the dispatcher is saturated and the update was dropped
+     */
+    public boolean submitUpdate(Update update) {
+        if (update.hasInlineQuery()) {
+            inlineSearch.handle(update.getInlineQuery());
+            return true;
+        }
+        long chatId = chatIdOf(update);
+        if (!dispatcher.dispatch(chatId, () -> handleUpdate(update))) {
+            log.warn("Dispatcher saturated, dropping update {} for chat {}", update.getUpdateId(), chatId);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void onClosing() {
+        dispatcher.shutdown();
+        nowPlaying.shutdown();
+        inlineSearch.shutdown();
+        outbox.shutdown();
+        super.onClosing();
+    }
+
+    private long chatIdOf(Update update) {
+        if (update.hasMessage()) {
+            return update.getMessage().getChatId();
+        } else if (update.hasCallbackQuery() && update.getCallbackQuery().getMessage() != null) {
+            return update.getCallbackQuery().getMessage().getChatId();
+        }
+        return 0;
+    }
+
+    private void handleUpdate(Update update) {
         if (update.hasMessage() && update.getMessage().hasText()) {
             String messageText = update.getMessage().getText();
             long chatId = update.getMessage().getChatId();
 
             if (messageText.startsWith("/")) {
-                handleCommand(messageText, chatId);
+                commands.handle(messageText, chatId);
             } else {
                 // Handle non-command messages if needed
             }
@@ -109,183 +246,220 @@ public class SpotifyTelegramBot extends TelegramLongPollingBot {
         }
     }
 
-    private void handleCommand(String command, long chatId) {
-        // Split command into the command name and arguments
-        String[] parts = command.split("\\s+", 2);
-        String cmd = parts[0].toLowerCase();
-        String argument = parts.length > 1 ? parts[1].trim() : "";
+    // The bot's side of each command; routing, the login check and timing live in BotCommands
+    private class CommandHandlers implements BotCommands.Handlers {
+        @Override
+        public void start(long chatId) {
+            sendTextMessage(chatId, "Welcome to Spotify Telegram Bot! Use /help to see available commands.");
+        }
 
-        // Debug log
-        System.out.println("Handling command: " + cmd + " from user: " + chatId);
+        @Override
+        public void help(long chatId) {
+            sendHelpMessage(chatId);
+        }
 
-        // Check authentication for commands that require it
-        boolean isAuthenticated = userSessionManager.isUserAuthenticated(chatId);
-        System.out.println("User authenticated: " + isAuthenticated);
+        @Override
+        public void login(long chatId) {
+            sendLoginMessage(chatId);
+        }
 
-        switch (cmd) {
-            case "/start":
-                sendTextMessage(chatId, "Welcome to Spotify Telegram Bot! Use /help to see available commands.");
-                break;
+        @Override
+        public void setCode(long chatId, String code) {
+            handleSetCodeCommand(chatId, code);
+        }
 
-            case "/help":
-                sendHelpMessage(chatId);
-                break;
+        @Override
+        public void logout(long chatId) {
+            handleLogoutCommand(chatId);
+        }
 
-            case "/login":
-                sendLoginMessage(chatId);
-                break;
+        @Override
+        public void status(long chatId) {
+            handleStatusCommand(chatId);
+        }
 
-            case "/setcode":
-                if (!argument.isEmpty()) {
-                    handleAuthorizationCode(chatId, argument);
-                } else {
-                    sendTextMessage(chatId, "Please provide the authorization code: /setcode YOUR_CODE_HERE");
-                }
-                break;
+        @Override
+        public void play(long chatId, String query) {
+            handlePlayCommand(chatId, query);
+        }
 
-            case "/logout":
-                userSessionManager.logoutUser(chatId);
-                sendTextMessage(chatId, "You have been logged out of Spotify.");
-                break;
+        @Override
+        public void search(long chatId, String query) {
+            handleSearchCommand(chatId, query);
+        }
 
-            case "/play":
-                if (!isAuthenticated) {
-                    sendNotAuthenticatedMessage(chatId);
-                    return;
-                }
+        @Override
+        public void pause(long chatId) {
+            handlePauseCommand(chatId);
+        }
 
-                // Add this case to your handleCommand method
-            case "/status":
-                boolean auth = userSessionManager.isUserAuthenticated(chatId);
-                UserSessionManager.UserSession session = userSessionManager.getSession(chatId);
+        @Override
+        public void resume(long chatId) {
+            handleResumeCommand(chatId);
+        }
 
-                StringBuilder status = new StringBuilder();
-                status.append("🔍 Bot Status:\n\n");
-                status.append("Authenticated: ").append(auth ? "✅ Yes" : "❌ No").append("\n");
+        @Override
+        public void skip(long chatId) {
+            handleSkipCommand(chatId);
+        }
 
-                if (session != null) {
-                    status.append("Access Token: ").append(session.getAccessToken() != null ? "✅ Present" : "❌ Missing")
-                            .append("\n");
-                    status.append("Refresh Token: ")
-                            .append(session.getRefreshToken() != null ? "✅ Present" : "❌ Missing").append("\n");
-
-                    if (session.isTokenExpired()) {
-                        status.append("Token Status: ⚠️ Expired\n");
-                    } else if (session.isAuthenticated()) {
-                        status.append("Token Status: ✅ Valid\n");
-                    }
-                } else {
-                    status.append("No session found for your account.\n");
-                }
+        @Override
+        public void current(long chatId) {
+            handleCurrentTrackCommand(chatId);
+        }
 
-                status.append("\nUse /spotify_login to connect your Spotify account.");
+        @Override
+        public void devices(long chatId) {
+            handleDevicesCommand(chatId);
+        }
 
-                sendTextMessage(chatId, status.toString());
-                break;
+        @Override
+        public void follow(long chatId) {
+            handleFollowCommand(chatId);
+        }
 
-            // Other commands that require authentication
-            case "/pause":
-            case "/resume":
-            case "/skip":
-            case "/current":
-                if (!isAuthenticated) {
-                    sendNotAuthenticatedMessage(chatId);
-                    return;
-                }
+        @Override
+        public void unfollow(long chatId) {
+            handleUnfollowCommand(chatId);
+        }
 
-                // Handle the specific command...
-                if (cmd.equals("/pause"))
-                    handlePauseCommand(chatId);
-                else if (cmd.equals("/resume"))
-                    handleResumeCommand(chatId);
-                else if (cmd.equals("/skip"))
-                    handleSkipCommand(chatId);
-                else if (cmd.equals("/current"))
-                    handleCurrentTrackCommand(chatId);
-                break;
-            case "/sessions":
-                if (chatId == 7143567186l) { // Your user ID for admin commands
-                    String diagnostics = userSessionManager.getDiagnostics();
-                    sendTextMessage(chatId, diagnostics);
-                } else {
-                    sendTextMessage(chatId, "This command is restricted to administrators.");
-                }
-                break;
+        @Override
+        public void resetSession(long chatId) {
+            handleResetSessionCommand(chatId);
+        }
 
-            case "/reset_session":
-                // Force create a new session
-                userSessionManager.getOrCreateSession(chatId);
-                sendTextMessage(chatId, "Your session has been reset. Use /spotify_login to authenticate.");
-                break;
+        @Override
+        public void authDebug(long chatId) {
+            handleAuthDebugCommand(chatId);
+        }
 
-            // Add these cases to your handleCommand method
-            case "/auth_debug":
-                StringBuilder debug = new StringBuilder();
-                debug.append("🔍 Authentication Debug:\n\n");
+        @Override
+        public void stats(long chatId) {
+            WebhookServer webhookServer = webhook;
+            sendTextMessage(chatId, (webhookServer != null ? webhookServer.getStats() + "\n\n" : "") +
+                    dispatcher.getStats() + "\n\n" + outbox.getStats() + "\n\n" +
+                    nowPlaying.getStats() + "\n\n" + spotifyService.getSchedulerStats() + "\n\n" +
+                    spotifyService.getConnectionStats() + "\n\n" + spotifyService.getRefreshStats() + "\n\n" +
+                    spotifyService.getSearchCacheStats() + "\n\n" + inlineSearch.getStats() + "\n\n" +
+                    spotifyService.getTrackLoaderStats() + "\n\n" + spotifyService.getDeviceStats());
+        }
 
-                // Check if userSessionManager exists
-                debug.append("UserSessionManager instance: ")
-                        .append(userSessionManager != null ? "✅ Exists" : "❌ NULL!")
-                        .append("\n");
+        @Override
+        public void sessions(long chatId) {
+            sendTextMessage(chatId, userSessionManager.getDiagnostics());
+        }
 
-                // If it exists, check if this user has a session
-                if (userSessionManager != null) {
-                    UserSessionManager.UserSession session_1 = userSessionManager.getSession(chatId);
-                    debug.append("User session: ")
-                            .append(session_1 != null ? "✅ Exists" : "❌ Not found")
-                            .append("\n");
-
-                    // If session exists, check its state
-                    if (session_1 != null) {
-                        debug.append("Access token: ")
-                                .append(session_1.getAccessToken() != null ? "✅ Present" : "❌ Missing")
-                                .append("\n");
-
-                        debug.append("Refresh token: ")
-                                .append(session_1.getRefreshToken() != null ? "✅ Present" : "❌ Missing")
-                                .append("\n");
-
-                        // Check if the session thinks it's authenticated
-                        debug.append("Session.isAuthenticated(): ")
-                                .append(session_1.isAuthenticated() ? "✅ True" : "❌ False")
-                                .append("\n");
-
-                        // Check if manager thinks user is authenticated
-                        debug.append("UserSessionManager.isUserAuthenticated(): ")
-                                .append(userSessionManager.isUserAuthenticated(chatId) ? "✅ True" : "❌ False")
-                                .append("\n");
-                    }
-                }
+        @Override
+        public void printSessions(long chatId) {
+            sendTextMessage(chatId, "📋 All Sessions:\n\n" + userSessionManager.getDiagnostics());
+        }
 
-                sendTextMessage(chatId, debug.toString());
-                break;
+        @Override
+        public void unknownCommand(long chatId) {
+            sendTextMessage(chatId, "Unknown command. Use /help to see available commands.");
+        }
 
-            case "/print_sessions":
-                // Print all sessions (admin only)
-                if (chatId == 7143567186l) { // Your user ID
-                    StringBuilder sessions = new StringBuilder("📋 All Sessions:\n\n");
-
-                    // Get all sessions if possible
-                    if (userSessionManager != null) {
-                        // Implement a method to get all sessions
-                        String sessionsInfo = userSessionManager.getDiagnostics();
-                        sessions.append(sessionsInfo);
-                    } else {
-                        sessions.append("❌ UserSessionManager is null!");
-                    }
-
-                    sendTextMessage(chatId, sessions.toString());
-                } else {
-                    sendTextMessage(chatId, "This command is restricted to administrators.");
-                }
-                break;
+        @Override
+        public void notAuthenticated(long chatId) {
+            sendNotAuthenticatedMessage(chatId);
+        }
 
-            default:
-                sendTextMessage(chatId, "Unknown command. Use /help to see available commands.");
-                break;
+        @Override
+        public void notAdmin(long chatId) {
+            sendTextMessage(chatId, "This command is restricted to administrators.");
+        }
+    }
+
+    private void handleSetCodeCommand(long chatId, String argument) {
+        if (!argument.isEmpty()) {
+            handleAuthorizationCode(chatId, argument);
+        } else {
+            sendTextMessage(chatId, "Please provide the authorization code: /setcode YOUR_CODE_HERE");
         }
     }
 
+    private void handleLogoutCommand(long chatId) {
+        userSessionManager.logoutUser(chatId);
+        spotifyService.releaseClient(chatId);
+        nowPlaying.unfollow(chatId);
+        sendTextMessage(chatId, "You have been logged out of Spotify.");
+    }
+
+    private void handleStatusCommand(long chatId) {
+        boolean auth = userSessionManager.isUserAuthenticated(chatId);
+        UserSessionManager.UserSession session = userSessionManager.getSession(chatId);
+
+        StringBuilder status = new StringBuilder();
+        status.append("🔍 Bot Status:\n\n");
+        status.append("Authenticated: ").append(auth ? "✅ Yes" : "❌ No").append("\n");
+
+        if (session != null) {
+            status.append("Access Token: ").append(session.getAccessToken() != null ? "✅ Present" : "❌ Missing")
+                    .append("\n");
+            status.append("Refresh Token: ")
+                    .append(session.getRefreshToken() != null ? "✅ Present" : "❌ Missing").append("\n");
+
+            if (session.isTokenExpired()) {
+                status.append("Token Status: ⚠️ Expired\n");
+            } else if (session.isAuthenticated()) {
+                status.append("Token Status: ✅ Valid\n");
+            }
+        } else {
+            status.append("No session found for your account.\n");
+        }
+
+        status.append("\nUse /spotify_login to connect your Spotify account.");
+
+        sendTextMessage(chatId, status.toString());
+    }
+
+    private void handleResetSessionCommand(long chatId) {
+        // Force create a new session
+        userSessionManager.getOrCreateSession(chatId);
+        sendTextMessage(chatId, "Your session has been reset. Use /spotify_login to authenticate.");
+    }
+
+    private void handleAuthDebugCommand(long chatId) {
+        StringBuilder debug = new StringBuilder();
+        debug.append("🔍 Authentication Debug:\n\n");
+
+        // Check if userSessionManager exists
+        debug.append("UserSessionManager instance: ")
+                .append(userSessionManager != null ? "✅ Exists" : "❌ NULL!")
+                .append("\n");
+
+        // If it exists, check if this user has a session
+        if (userSessionManager != null) {
+            UserSessionManager.UserSession session = userSessionManager.getSession(chatId);
+            debug.append("User session: ")
+                    .append(session != null ? "✅ Exists" : "❌ Not found")
+                    .append("\n");
+
+            // If session exists, check its state
+            if (session != null) {
+                debug.append("Access token: ")
+                        .append(session.getAccessToken() != null ? "✅ Present" : "❌ Missing")
+                        .append("\n");
+
+                debug.append("Refresh token: ")
+                        .append(session.getRefreshToken() != null ? "✅ Present" : "❌ Missing")
+                        .append("\n");
+
+                // Check if the session thinks it's authenticated
+                debug.append("Session.isAuthenticated(): ")
+                        .append(session.isAuthenticated() ? "✅ True" : "❌ False")
+                        .append("\n");
+
+                // Check if manager thinks user is authenticated
+                debug.append("UserSessionManager.isUserAuthenticated(): ")
+                        .append(userSessionManager.isUserAuthenticated(chatId) ? "✅ True" : "❌ False")
+                        .append("\n");
+            }
+        }
+
+        sendTextMessage(chatId, debug.toString());
+    }
+
     private void sendNotAuthenticatedMessage(long chatId) {
         sendTextMessage(chatId, "⚠️ You need to connect your Spotify account first.\n\n" +
                 "Use /spotify_login to authorize this bot with your Spotify account.");
@@ -300,6 +474,9 @@ public class SpotifyTelegramBot extends TelegramLongPollingBot {
                 "/resume - Resume playback\n" +
                 "/skip or /next - Skip to next track\n" +
                 "/current - Show current playing track\n" +
+                "/devices - Choose the device to play on\n" +
+                "/follow - Get a message whenever your track changes\n" +
+                "/unfollow - Stop track change messages\n" +
                 "/search [query] - Search for tracks\n" +
                 "/help - Show this help message";
 
@@ -308,77 +485,206 @@ public class SpotifyTelegramBot extends TelegramLongPollingBot {
     // Add these methods to your SpotifyTelegramBot.java file
 
     private void handlePlayCommand(long chatId, String query) {
-        // First, search for tracks
-        List<Track> tracks = spotifyService.searchTracks(query);
+        if (query.isEmpty()) {
+            sendTextMessage(chatId, "Please provide a track name: /play [track name]");
+            return;
+        }
+
+        showResultsPage(chatId, null, query, 0, true);
+    }
+
+    /**
+     * Show one page of /play or /search results, with buttons to the
+     * previous and next pages. The next page is fetched into the search cache
+     * in the background while this one is on screen, so paging forward
+     * usually doesn't wait on Spotify.
+     *
+     * @param messageId The results message to edit in place, or null to send a new one
+     * @param picker    True for /play's track buttons, false for /search's text list
+     * @return False if the search failed (timed out, rate limited or an API
+     *         error). An existing message is then left as it was, buttons
+     *         and all, so the user can tap again; for a new one the failure
+     *         has been reported.
+     */
+    private boolean showResultsPage(long chatId, Integer messageId, String query, int page, boolean picker) {
+        return showResultsPage(chatId, messageId, query, page, picker, false);
+    }
+
+    /**
+     * @param lastPage True to show the page without a Next button, because
+     *                 the page after it turned out to be empty
+     */
+    private boolean showResultsPage(long chatId, Integer messageId, String query, int page, boolean picker,
+                                    boolean lastPage) {
+        int offset = page * SEARCH_PAGE_SIZE;
+        List<TrackSummary> tracks = awaitReply(chatId,
+                spotifyService.searchTracksAsync(chatId, query, offset, SEARCH_PAGE_SIZE), null);
+
+        if (tracks == null) {
+            if (messageId == null) {
+                sendTextMessage(chatId, "Failed to search for tracks. Please try again.");
+            }
+            return false;
+        }
 
         if (tracks.isEmpty()) {
-            sendTextMessage(chatId, "No tracks found for your query: " + query);
+            if (messageId != null && page > 0 && !lastPage) {
+                // Next was offered after a full page that was really the last; redraw it in place without Next
+                return showResultsPage(chatId, messageId, query, page - 1, picker, true);
+            }
+            String text = "No tracks found for your query: " + query;
+            if (messageId != null) {
+                EditMessageText edit = new EditMessageText();
+                edit.setChatId(chatId);
+                edit.setMessageId(messageId);
+                edit.setText(text);
+                outbox.edit(edit);
+            } else {
+                sendTextMessage(chatId, text);
+            }
+            return true;
+        }
+
+        boolean hasNext = !lastPage && tracks.size() == SEARCH_PAGE_SIZE
+                && offset + SEARCH_PAGE_SIZE < MAX_SEARCH_OFFSET;
+        if (hasNext) {
+            spotifyService.prefetchSearchPage(chatId, query, offset + SEARCH_PAGE_SIZE, SEARCH_PAGE_SIZE);
+        }
+
+        List<List<InlineKeyboardButton>> rowsInline = new ArrayList<>();
+        String text;
+        if (picker) {
+            for (TrackSummary track : tracks) {
+                String trackInfo = TrackListFormatter.label(track);
+                int handle = callbackRefs.intern(track.getUri());
+
+                List<InlineKeyboardButton> rowInline = new ArrayList<>();
+                rowInline.add(createCallbackButton(trackInfo, CallbackCodec.encode(CallbackCodec.ACTION_PLAY, handle, 0)));
+                rowInline.add(createCallbackButton("➕ Queue", CallbackCodec.encode(CallbackCodec.ACTION_QUEUE, handle, 0)));
+                rowsInline.add(rowInline);
+            }
+            text = page == 0 ? "Select a track to play:" : "Select a track to play (page " + (page + 1) + "):";
+        } else {
+            text = TrackListFormatter.searchResults(query, tracks);
+        }
+        if (lastPage) {
+            text += picker ? "\n\nNo more results." : "\nNo more results.";
+        }
+
+        if (page > 0 || hasNext) {
+            int queryHandle = callbackRefs.intern(query);
+            int action = picker ? CallbackCodec.ACTION_PLAY_PAGE : CallbackCodec.ACTION_SEARCH_PAGE;
+            List<InlineKeyboardButton> navigation = new ArrayList<>();
+            if (page > 0) {
+                navigation.add(createCallbackButton("◀ Previous", CallbackCodec.encode(action, queryHandle, page - 1)));
+            }
+            if (hasNext) {
+                navigation.add(createCallbackButton("Next ▶", CallbackCodec.encode(action, queryHandle, page + 1)));
+            }
+            rowsInline.add(navigation);
+        }
+
+        InlineKeyboardMarkup markupInline = new InlineKeyboardMarkup();
+        markupInline.setKeyboard(rowsInline);
+
+        if (messageId != null) {
+            EditMessageText edit = new EditMessageText();
+            edit.setChatId(chatId);
+            edit.setMessageId(messageId);
+            edit.setText(text);
+            // Without a markup the edit drops the buttons
+            if (!rowsInline.isEmpty()) {
+                edit.setReplyMarkup(markupInline);
+            }
+            outbox.edit(edit);
+            return true;
+        }
+
+        if (rowsInline.isEmpty()) {
+            // A single page of /search results stays plain text, which may be merged with other replies
+            sendTextMessage(chatId, text);
+            return true;
+        }
+
+        SendMessage message = new SendMessage();
+        message.setChatId(chatId);
+        message.setText(text);
+        message.setReplyMarkup(markupInline);
+
+        outbox.send(message);
+        return true;
+    }
+
+    private void handleDevicesCommand(long chatId) {
+        List<DeviceSummary> devices = awaitReply(chatId, spotifyService.getDevicesAsync(chatId, true), null);
+
+        if (devices == null) {
+            sendTextMessage(chatId, "Failed to load your Spotify devices. Please try again.");
             return;
         }
 
-        // Create an inline keyboard with track options
         InlineKeyboardMarkup markupInline = new InlineKeyboardMarkup();
         List<List<InlineKeyboardButton>> rowsInline = new ArrayList<>();
 
-        for (Track track : tracks) {
-            String artists = track.getArtists()[0].getName();
-            String trackInfo = String.format("%s - %s", track.getName(), artists);
-            String callbackData = "play:" + track.getUri();
+        for (DeviceSummary device : devices) {
+            // Devices without an ID or that refuse remote control can't be picked
+            if (device.getId() == null || device.isRestricted()) {
+                continue;
+            }
+            String label = (device.isActive() ? "🔊 " : "") + device.getName() + " (" + device.getType() + ")";
+            int handle = callbackRefs.intern(device.getId());
+            rowsInline.add(List.of(
+                    createCallbackButton(label, CallbackCodec.encode(CallbackCodec.ACTION_DEVICE, handle, 0))));
+        }
 
-            List<InlineKeyboardButton> rowInline = new ArrayList<>();
-            InlineKeyboardButton button = new InlineKeyboardButton();
-            button.setText(trackInfo);
-            button.setCallbackData(callbackData);
-            rowInline.add(button);
-            rowsInline.add(rowInline);
+        if (rowsInline.isEmpty()) {
+            sendTextMessage(chatId, "No Spotify devices found. " +
+                    "Open Spotify on your phone, computer or speaker, then try /devices again.");
+            return;
         }
 
         markupInline.setKeyboard(rowsInline);
 
         SendMessage message = new SendMessage();
         message.setChatId(chatId);
-        message.setText("Select a track to play:");
+        message.setText("Choose a device to play on:");
         message.setReplyMarkup(markupInline);
 
-        try {
-            execute(message);
-        } catch (TelegramApiException e) {
-            e.printStackTrace();
-        }
+        outbox.send(message);
     }
 
     private void handlePauseCommand(long chatId) {
-        boolean success = spotifyService.pausePlayback();
+        boolean success = awaitReply(chatId, spotifyService.pausePlaybackAsync(chatId).thenApply(done -> true), false);
 
         if (success) {
             sendTextMessage(chatId, "Playback paused.");
         } else {
-            sendTextMessage(chatId, "Failed to pause playback. Make sure Spotify is running on an active device.");
+            sendTextMessage(chatId, "Failed to pause playback. Make sure Spotify is open on a device, or pick one with /devices.");
         }
     }
 
     private void handleResumeCommand(long chatId) {
-        boolean success = spotifyService.resumePlayback();
+        boolean success = awaitReply(chatId, spotifyService.resumePlaybackAsync(chatId).thenApply(done -> true), false);
 
         if (success) {
             sendTextMessage(chatId, "Playback resumed.");
         } else {
-            sendTextMessage(chatId, "Failed to resume playback. Make sure Spotify is running on an active device.");
+            sendTextMessage(chatId, "Failed to resume playback. Make sure Spotify is open on a device, or pick one with /devices.");
         }
     }
 
     private void handleSkipCommand(long chatId) {
-        boolean success = spotifyService.skipToNextTrack();
+        boolean success = awaitReply(chatId, spotifyService.skipToNextTrackAsync(chatId).thenApply(done -> true), false);
 
         if (success) {
             sendTextMessage(chatId, "Skipped to next track.");
         } else {
-            sendTextMessage(chatId, "Failed to skip track. Make sure Spotify is running on an active device.");
+            sendTextMessage(chatId, "Failed to skip track. Make sure Spotify is open on a device, or pick one with /devices.");
         }
     }
 
     private void handleCurrentTrackCommand(long chatId) {
-        CurrentlyPlaying currentlyPlaying = spotifyService.getCurrentlyPlaying();
+        CurrentlyPlaying currentlyPlaying = awaitReply(chatId, spotifyService.getCurrentlyPlayingAsync(chatId), null);
 
         if (currentlyPlaying != null && currentlyPlaying.getIs_playing()) {
             Track track = (Track) currentlyPlaying.getItem();
@@ -391,48 +697,146 @@ public class SpotifyTelegramBot extends TelegramLongPollingBot {
         }
     }
 
-    private void handleSearchCommand(long chatId, String query) {
-        // Similar to play command, but just displays results without playing
-        List<Track> tracks = spotifyService.searchTracks(query);
+    private void handleFollowCommand(long chatId) {
+        if (nowPlaying.follow(chatId)) {
+            sendTextMessage(chatId, "Following your playback. I'll message you when the track changes. Use /unfollow to stop.");
+        } else {
+            sendTextMessage(chatId, "Already following your playback. Use /unfollow to stop.");
+        }
+    }
 
-        if (tracks.isEmpty()) {
-            sendTextMessage(chatId, "No tracks found for your query: " + query);
-            return;
+    private void handleUnfollowCommand(long chatId) {
+        if (nowPlaying.unfollow(chatId)) {
+            sendTextMessage(chatId, "Stopped following your playback.");
+        } else {
+            sendTextMessage(chatId, "You're not following your playback. Use /follow to start.");
         }
+    }
 
-        StringBuilder response = new StringBuilder("Search results for: " + query + "\n\n");
+    private void onNowPlayingChanged(long chatId, NowPlayingPoller.Change change, TrackSummary track) {
+        String trackInfo = track != null ? TrackListFormatter.label(track) : "";
+        switch (change) {
+            case TRACK_CHANGED:
+                sendTextMessage(chatId, "🎵 Now playing: " + trackInfo);
+                break;
+            case PAUSED:
+                sendTextMessage(chatId, "⏸ Paused: " + trackInfo);
+                break;
+            case RESUMED:
+                sendTextMessage(chatId, "▶️ Resumed: " + trackInfo);
+                break;
+            case RESTARTED:
+                sendTextMessage(chatId, "🔁 Playing again: " + trackInfo);
+                break;
+            case STOPPED:
+                sendTextMessage(chatId, "⏹ Playback stopped.");
+                break;
+            case FOLLOW_ENDED:
+                sendTextMessage(chatId, "Stopped following your playback because Spotify couldn't be reached. Use /follow to try again.");
+                break;
+        }
+    }
 
-        for (Track track : tracks) {
-            String artists = track.getArtists()[0].getName();
-            response.append("• ").append(track.getName()).append(" - ").append(artists).append("\n");
+    private void handleSearchCommand(long chatId, String query) {
+        if (query.isEmpty()) {
+            sendTextMessage(chatId, "Please provide a search query: /search [query]");
+            return;
         }
 
-        sendTextMessage(chatId, response.toString());
+        // Similar to play command, but just displays results without playing
+        showResultsPage(chatId, null, query, 0, false);
     }
 
     private void handleCallbackQuery(CallbackQuery callbackQuery) {
         String callbackData = callbackQuery.getData();
         long chatId = callbackQuery.getMessage().getChatId();
+        String notice = null;
+        CompletableFuture<Void> playback = null;
+        String playingUri = null;
+        String transferTo = null;
+        String pageQuery = null;
+
+        long payload = CallbackCodec.decode(callbackData);
+        if (payload != CallbackCodec.INVALID) {
+            // A track URI, a device ID for ACTION_DEVICE, or a search query for the page actions
+            String ref = callbackRefs.resolve(CallbackCodec.handle(payload));
+
+            if (ref == null) {
+                notice = "This button has expired. Please search again.";
+            } else if (CallbackCodec.action(payload) == CallbackCodec.ACTION_PLAY) {
+                playingUri = ref;
+            } else if (CallbackCodec.action(payload) == CallbackCodec.ACTION_QUEUE) {
+                notice = spotifyService.addToQueue(chatId, ref)
+                        ? "Added to queue."
+                        : "Failed to add to queue. Make sure Spotify is open on a device, or pick one with /devices.";
+            } else if (CallbackCodec.action(payload) == CallbackCodec.ACTION_DEVICE) {
+                transferTo = ref;
+                playback = spotifyService.transferPlaybackAsync(chatId, ref);
+            } else if (CallbackCodec.action(payload) == CallbackCodec.ACTION_PLAY_PAGE
+                    || CallbackCodec.action(payload) == CallbackCodec.ACTION_SEARCH_PAGE) {
+                pageQuery = ref;
+            }
+        } else if (callbackData.startsWith("play:")) {
+            // Buttons sent before the compact format still carry the URI inline
+            playingUri = callbackData.substring("play:".length());
+        }
 
-        if (callbackData.startsWith("play:")) {
-            String trackUri = callbackData.substring("play:".length());
-            boolean success = spotifyService.playTrack(chatId, trackUri);
+        // Start playback first so the request to Spotify overlaps answering the callback
+        if (playingUri != null) {
+            playback = spotifyService.playTrackAsync(chatId, playingUri);
+        }
 
-            if (success) {
-                sendTextMessage(chatId, "Playing track now.");
-            } else {
-                sendTextMessage(chatId, "Failed to play track. Make sure Spotify is running on an active device.");
-            }
+        if (pageQuery != null) {
+            // Answered once the page is shown: the spinner stays meanwhile, and a failure can say so
+            boolean shown = showResultsPage(chatId, callbackQuery.getMessage().getMessageId(), pageQuery,
+                    CallbackCodec.arg(payload), CallbackCodec.action(payload) == CallbackCodec.ACTION_PLAY_PAGE);
+            answerCallback(callbackQuery, chatId, shown ? null : "Couldn't load that page. Please try again.");
+            return;
+        }
+
+        answerCallback(callbackQuery, chatId, notice);
+
+        if (playingUri != null) {
+            handlePlayCallback(chatId, playback, spotifyService.getTrackAsync(chatId, playingUri));
+        } else if (transferTo != null) {
+            handleDeviceCallback(chatId, transferTo, playback);
         }
+    }
 
-        // Answer callback query to remove loading state
+    // Answer a callback query to remove its loading state, with an optional notice for the user
+    private void answerCallback(CallbackQuery callbackQuery, long chatId, String notice) {
         AnswerCallbackQuery answer = new AnswerCallbackQuery();
         answer.setCallbackQueryId(callbackQuery.getId());
+        answer.setText(notice);
 
         try {
             execute(answer);
         } catch (TelegramApiException e) {
-            e.printStackTrace();
+            log.warn("Failed to answer callback query for chat {}: {}", chatId, e.getMessage());
+        }
+    }
+
+    private void handleDeviceCallback(long chatId, String deviceId, CompletableFuture<Void> transfer) {
+        boolean success = awaitReply(chatId, transfer.thenApply(done -> true), false);
+
+        if (success) {
+            DeviceSummary device = spotifyService.findDevice(chatId, deviceId);
+            String name = device != null ? device.getName() : "the selected device";
+            sendTextMessage(chatId, "Playback moved to " + name + ".");
+        } else {
+            sendTextMessage(chatId, "Failed to switch device. Check that it is online and try /devices again.");
+        }
+    }
+
+    private void handlePlayCallback(long chatId, CompletableFuture<Void> playback, CompletableFuture<TrackSummary> details) {
+        boolean success = awaitReply(chatId, playback.thenApply(done -> true), false);
+
+        if (success) {
+            // Usually cached from the search that showed the button, so this rarely waits
+            TrackSummary track = awaitReply(chatId, details, null);
+            sendTextMessage(chatId, track != null ? "Playing " + TrackListFormatter.label(track) : "Playing track now.");
+        } else {
+            sendTextMessage(chatId, "Failed to play track. Make sure Spotify is open on a device, or pick one with /devices.");
         }
     }
 
@@ -448,46 +852,41 @@ public class SpotifyTelegramBot extends TelegramLongPollingBot {
 
     // In SpotifyTelegramBot.java
     private void handleAuthorizationCode(long chatId, String code) {
+        // Edited into the outcome below rather than followed by a second message
+        OutboundMessageQueue.Placeholder status = outbox.sendPlaceholder(chatId, "🔄 Processing your authorization code...");
         try {
-            sendTextMessage(chatId, "🔄 Processing your authorization code...");
-            System.out.println("Processing authorization code for user: " + chatId);
+            log.info("Processing authorization code for user: {}", chatId);
 
             // Get UserSessionManager instance
             UserSessionManager sessionManager = UserSessionManager.getInstance();
-            System.out.println("Got UserSessionManager instance: " + sessionManager);
 
             // Exchange code for tokens
             AuthorizationCodeCredentials credentials = spotifyService.exchangeAuthorizationCode(code);
 
             if (credentials != null) {
-                System.out.println("Received credentials for user " + chatId);
+                log.debug("Received credentials for user {}", chatId);
 
                 // Get or create a session
                 UserSessionManager.UserSession session = sessionManager.getOrCreateSession(chatId);
-                System.out.println("Got session for user " + chatId + ": " + session);
 
                 if (session != null) {
                     // Store the credentials
-                    session.setAccessToken(credentials.getAccessToken());
-                    session.setRefreshToken(credentials.getRefreshToken());
-                    session.setAuthenticated(true);
+                    session.updateTokens(credentials.getAccessToken(), credentials.getRefreshToken());
 
-                    System.out.println("Stored credentials for user " + chatId +
-                            " - Authentication status: " + sessionManager.isUserAuthenticated(chatId));
+                    log.info("Stored credentials for user {} - Authentication status: {}", chatId, sessionManager.isUserAuthenticated(chatId));
 
-                    sendTextMessage(chatId, "✅ Authentication successful! You can now use Spotify commands.");
+                    outbox.edit(status, "✅ Authentication successful! You can now use Spotify commands.");
                 } else {
-                    System.err.println("Failed to get session for user " + chatId);
-                    sendTextMessage(chatId, "❌ Error: Failed to store authentication data.");
+                    log.error("Failed to get session for user {}", chatId);
+                    outbox.edit(status, "❌ Error: Failed to store authentication data.");
                 }
             } else {
-                System.err.println("No credentials received for user " + chatId);
-                sendTextMessage(chatId, "❌ Authentication failed: No credentials received.");
+                log.warn("No credentials received for user {}", chatId);
+                outbox.edit(status, "❌ Authentication failed: No credentials received.");
             }
         } catch (Exception e) {
-            System.err.println("Error during authentication: " + e.getMessage());
-            e.printStackTrace();
-            sendTextMessage(chatId, "❌ Error: " + e.getMessage());
+            log.error("Error during authentication for user {}: {}", chatId, e.getMessage(), e);
+            outbox.edit(status, "❌ Error: " + e.getMessage());
         }
     }
 }
\ No newline at end of file
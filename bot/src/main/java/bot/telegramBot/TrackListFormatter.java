@@ -0,0 +1,53 @@
+package bot.telegramBot;
+
+import java.util.List;
+
+import bot.services.TrackSummary;
+
+/**
+ * Renders tracks the way the bot shows them in messages and buttons.
+ *
+ * Builders are sized up front from the field lengths, so a result list is
+ * formatted with a single char array and no String.format parsing.
+ */
+public final class TrackListFormatter {
+    private static final String SEARCH_HEADER = "Search results for: ";
+    private static final String BULLET = "• ";
+    private static final String SEPARATOR = " - ";
+    private static final String TRACK_URI_PREFIX = "spotify:track:";
+    private static final String TRACK_URL_PREFIX = "https://open.spotify.com/track/";
+
+    private TrackListFormatter() {
+    }
+
+    // "Name - Artist", as shown on picker buttons and in replies
+    public static String label(TrackSummary track) {
+        return track.getName() + SEPARATOR + track.getArtist();
+    }
+
+    // The track's open.spotify.com link, or null if it isn't a track (e.g. a podcast episode)
+    public static String openUrl(TrackSummary track) {
+        String uri = track.getUri();
+        if (uri == null || !uri.startsWith(TRACK_URI_PREFIX)) {
+            return null;
+        }
+        return TRACK_URL_PREFIX + uri.substring(TRACK_URI_PREFIX.length());
+    }
+
+    /**
+     * The /search reply: a header with the query, then one bulleted line per track.
+     */
+    public static String searchResults(String query, List<TrackSummary> tracks) {
+        int length = SEARCH_HEADER.length() + query.length() + 2;
+        for (TrackSummary track : tracks) {
+            length += BULLET.length() + track.getName().length() + SEPARATOR.length() + track.getArtist().length() + 1;
+        }
+
+        StringBuilder response = new StringBuilder(length);
+        response.append(SEARCH_HEADER).append(query).append("\n\n");
+        for (TrackSummary track : tracks) {
+            response.append(BULLET).append(track.getName()).append(SEPARATOR).append(track.getArtist()).append('\n');
+        }
+        return response.toString();
+    }
+}
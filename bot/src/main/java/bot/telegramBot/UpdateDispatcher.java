@@ -0,0 +1,177 @@
+package bot.telegramBot;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bot.shared.Logger;
+import bot.shared.MetricsRegistry;
+
+/**
+ * Runs update handlers on a bounded worker pool, partitioned by chat ID.
+ *
+ * Updates for the same chat run one at a time in arrival order, while
+ * different chats run in parallel on up to maxInFlight workers. At most
+ * maxQueued updates may be waiting at once; anything beyond that is rejected
+ * so a burst cannot grow the backlog without bound.
+ */
+public class UpdateDispatcher {
+    private static final Logger log = Logger.get(UpdateDispatcher.class);
+
+    private static final int DEFAULT_MAX_IN_FLIGHT = 16;
+    private static final int DEFAULT_MAX_QUEUED = 1000;
+
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final ExecutorService workers;
+
+    // A chat has a lane only while it has queued or running updates
+    private final Map<Long, ConcurrentLinkedQueue<Runnable>> lanes = new ConcurrentHashMap<>();
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakQueued = new AtomicInteger();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public UpdateDispatcher(int maxInFlight, int maxQueued) {
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(maxInFlight, maxInFlight, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "update-worker-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        registerMetrics();
+    }
+
+    /**
+     * Create a dispatcher sized from the bot.dispatch.maxInFlight and
+     * bot.dispatch.maxQueued system properties.
+     */
+    public static UpdateDispatcher fromSystemProperties() {
+        return new UpdateDispatcher(
+                Integer.getInteger("bot.dispatch.maxInFlight", DEFAULT_MAX_IN_FLIGHT),
+                Integer.getInteger("bot.dispatch.maxQueued", DEFAULT_MAX_QUEUED));
+    }
+
+    private void registerMetrics() {
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        metrics.gauge("bot_updates_queued", "Updates waiting for a worker", queued::get);
+        metrics.gauge("bot_updates_in_flight", "Update handlers running", inFlight::get);
+        metrics.gauge("bot_update_lanes", "Chats with queued or running updates", lanes::size);
+        metrics.counter("bot_updates_accepted_total", "Updates accepted by the dispatcher", accepted::get);
+        metrics.counter("bot_updates_rejected_total", "Updates dropped because the dispatcher was saturated",
+                rejected::get);
+        metrics.counter("bot_updates_failed_total", "Update handlers that threw", failed::get);
+    }
+
+    /**
+     * Queue a handler for a chat.
+     *
+     * @param chatId  The chat the update belongs to
+     * @param handler The work to run for the update
+     * @return False if the dispatcher is saturated and the update was dropped
+     */
+    public boolean dispatch(long chatId, Runnable handler) {
+        int depth = queued.incrementAndGet();
+        if (depth > maxQueued) {
+            queued.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+        accepted.incrementAndGet();
+        peakQueued.accumulateAndGet(depth, Math::max);
+
+        boolean[] newLane = new boolean[1];
+        lanes.compute(chatId, (id, lane) -> {
+            if (lane == null) {
+                lane = new ConcurrentLinkedQueue<>();
+                newLane[0] = true;
+            }
+            lane.add(handler);
+            return lane;
+        });
+
+        // An existing lane is already scheduled and will pick the handler up
+        if (newLane[0]) {
+            workers.execute(() -> runNext(chatId));
+        }
+        return true;
+    }
+
+    // Run one handler from the chat's lane, then reschedule the lane so a busy chat can't hog a worker
+    private void runNext(long chatId) {
+        Runnable handler = lanes.get(chatId).peek();
+        queued.decrementAndGet();
+        inFlight.incrementAndGet();
+
+        try {
+            handler.run();
+        } catch (RuntimeException e) {
+            failed.incrementAndGet();
+            log.error("Error handling update for chat {}: {}", chatId, e.getMessage(), e);
+        } catch (Error e) {
+            // Let it reach the pool, but the finally below still moves the lane on
+            failed.incrementAndGet();
+            log.error("Error handling update for chat {}: {}", chatId, e.toString(), e);
+            throw e;
+        } finally {
+            inFlight.decrementAndGet();
+            completed.incrementAndGet();
+            advance(chatId);
+        }
+    }
+
+    // The handler stays at the head while it runs, so dispatch() never reschedules a running lane
+    private void advance(long chatId) {
+        boolean[] more = new boolean[1];
+        lanes.computeIfPresent(chatId, (id, lane) -> {
+            lane.poll();
+            more[0] = !lane.isEmpty();
+            return more[0] ? lane : null;
+        });
+
+        if (more[0]) {
+            workers.execute(() -> runNext(chatId));
+        }
+    }
+
+    public int getQueued() {
+        return queued.get();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    // Backpressure snapshot for the admin chat
+    public String getStats() {
+        return "Update dispatcher:\n" +
+                "  In flight: " + inFlight.get() + " / " + maxInFlight + "\n" +
+                "  Queued: " + queued.get() + " / " + maxQueued + " (peak " + peakQueued.get() + ")\n" +
+                "  Active chats: " + lanes.size() + "\n" +
+                "  Accepted: " + accepted.get() + "\n" +
+                "  Rejected: " + rejected.get() + "\n" +
+                "  Completed: " + completed.get() + " (failed " + failed.get() + ")";
+    }
+
+    public void shutdown() {
+        workers.shutdown();
+    }
+}
@@ -0,0 +1,67 @@
+package bot.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Base64;
+import java.util.OptionalLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LoginStateTokensTest {
+    private static final byte[] KEY = "0123456789abcdef0123456789abcdef".getBytes();
+
+    private final LoginStateTokens tokens = new LoginStateTokens(KEY);
+
+    @Test
+    void roundTripsPrivateChatId() {
+        assertEquals(OptionalLong.of(7143567186L), tokens.verify(tokens.issue(7143567186L)));
+    }
+
+    @Test
+    void roundTripsNegativeGroupChatIds() {
+        assertEquals(OptionalLong.of(-1001234567890L), tokens.verify(tokens.issue(-1001234567890L)));
+        assertEquals(OptionalLong.of(-1L), tokens.verify(tokens.issue(-1L)));
+    }
+
+    @Test
+    void rejectsReplayedToken() {
+        String state = tokens.issue(-42L);
+        assertEquals(OptionalLong.of(-42L), tokens.verify(state));
+        assertTrue(tokens.verify(state).isEmpty());
+    }
+
+    @Test
+    void rejectsExpiredToken() {
+        LoginStateTokens expiring = new LoginStateTokens(KEY, 0);
+        assertTrue(expiring.verify(expiring.issue(42L)).isEmpty());
+    }
+
+    @Test
+    void rejectsTamperedChatId() {
+        byte[] token = Base64.getUrlDecoder().decode(tokens.issue(42L));
+        token[7] ^= 1;
+        assertTrue(tokens.verify(Base64.getUrlEncoder().withoutPadding().encodeToString(token)).isEmpty());
+    }
+
+    @Test
+    void rejectsTamperedSignature() {
+        byte[] token = Base64.getUrlDecoder().decode(tokens.issue(42L));
+        token[token.length - 1] ^= 1;
+        assertTrue(tokens.verify(Base64.getUrlEncoder().withoutPadding().encodeToString(token)).isEmpty());
+    }
+
+    @Test
+    void rejectsTokenSignedWithAnotherKey() {
+        LoginStateTokens other = new LoginStateTokens("fedcba9876543210fedcba9876543210".getBytes());
+        assertTrue(tokens.verify(other.issue(42L)).isEmpty());
+    }
+
+    @Test
+    void rejectsMalformedTokens() {
+        assertTrue(tokens.verify(null).isEmpty());
+        assertTrue(tokens.verify("").isEmpty());
+        assertTrue(tokens.verify("not base64!").isEmpty());
+        assertTrue(tokens.verify(tokens.issue(42L).substring(4)).isEmpty());
+    }
+}
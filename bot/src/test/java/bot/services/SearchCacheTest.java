@@ -0,0 +1,139 @@
+package bot.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SearchCacheTest {
+    private static final List<TrackSummary> TRACKS = List.of(
+            new TrackSummary("spotify:track:1", "One More Time", "Daft Punk", 320000),
+            new TrackSummary("spotify:track:2", "Aerodynamic", "Daft Punk", 212000));
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @Test
+    void servesAHitWithoutLoading() {
+        SearchCache cache = new SearchCache();
+        String key = SearchCache.key(SearchCache.normalize("Daft Punk"), "PL", 0, 5);
+
+        assertEquals(TRACKS, cache.get(key, this::load).join());
+        assertEquals(TRACKS, cache.get(key, this::load).join());
+
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    void doesNotCacheAFailedLoad() {
+        SearchCache cache = new SearchCache();
+        String key = SearchCache.key("daft punk", "PL", 0, 5);
+
+        CompletableFuture<List<TrackSummary>> failed = cache.get(key, revalidating -> {
+            loads.incrementAndGet();
+            return CompletableFuture.failedFuture(new IllegalStateException("Spotify unavailable"));
+        });
+
+        CompletionException error = assertThrows(CompletionException.class, failed::join);
+        assertTrue(error.getCause() instanceof IllegalStateException);
+        assertNull(cache.peek(key));
+        assertEquals(TRACKS, cache.get(key, this::load).join());
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void servesAStaleEntryAndRevalidatesItInTheBackground() throws InterruptedException {
+        SearchCache cache = new SearchCache(1024 * 1024, 50, 10_000);
+        String key = SearchCache.key("daft punk", "PL", 0, 5);
+        cache.get(key, this::load).join();
+        Thread.sleep(100);
+        assertFalse(cache.contains(key));
+
+        AtomicInteger revalidations = new AtomicInteger();
+        CompletableFuture<List<TrackSummary>> reload = new CompletableFuture<>();
+        List<TrackSummary> served = cache.get(key, revalidating -> {
+            assertTrue(revalidating);
+            revalidations.incrementAndGet();
+            return reload;
+        }).join();
+
+        // A second stale read while the reload is running doesn't start another
+        cache.get(key, revalidating -> {
+            revalidations.incrementAndGet();
+            return reload;
+        }).join();
+
+        assertEquals(TRACKS, served);
+        assertEquals(1, revalidations.get());
+
+        List<TrackSummary> fresh = List.of(new TrackSummary("spotify:track:3", "Digital Love", "Daft Punk", 301000));
+        reload.complete(fresh);
+        assertTrue(cache.contains(key));
+        assertEquals(fresh, cache.peek(key));
+    }
+
+    @Test
+    void reloadsAnEntryPastItsStaleWindow() throws InterruptedException {
+        SearchCache cache = new SearchCache(1024 * 1024, 20, 20);
+        String key = SearchCache.key("daft punk", "PL", 0, 5);
+        cache.get(key, this::load).join();
+        Thread.sleep(100);
+
+        assertNull(cache.peek(key));
+        cache.get(key, revalidating -> {
+            assertFalse(revalidating);
+            return load(false);
+        }).join();
+        assertEquals(2, loads.get());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedEntriesOverTheByteBudget() {
+        // Room for about two entries of TRACKS
+        SearchCache cache = new SearchCache(1500, 60_000, 60_000);
+        String first = SearchCache.key("first", "PL", 0, 5);
+        String second = SearchCache.key("second", "PL", 0, 5);
+        String third = SearchCache.key("third", "PL", 0, 5);
+
+        cache.get(first, this::load).join();
+        cache.get(second, this::load).join();
+        // Touch the first entry so the second is now the eldest
+        cache.get(first, this::load).join();
+        cache.get(third, this::load).join();
+
+        assertNotNull(cache.peek(first));
+        assertNull(cache.peek(second));
+        assertNotNull(cache.peek(third));
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    void answersAPrefixFromALongerCachedQuery() {
+        SearchCache cache = new SearchCache();
+        String market = "PL";
+        cache.get(SearchCache.key("daft punk", market, 0, 5), this::load).join();
+        cache.get(SearchCache.key("daft punk", market, 5, 5), revalidating -> load(false)).join();
+
+        assertSame(cache.peek(SearchCache.key("daft punk", market, 0, 5)),
+                cache.peekPrefix(SearchCache.prefixKey("daft pu", market), 5));
+        assertNull(cache.peekPrefix(SearchCache.prefixKey("daft pu", market), 10));
+        assertNull(cache.peekPrefix(SearchCache.prefixKey("justice", market), 5));
+    }
+
+    private CompletableFuture<List<TrackSummary>> load(boolean revalidating) {
+        loads.incrementAndGet();
+        return CompletableFuture.completedFuture(TRACKS);
+    }
+}
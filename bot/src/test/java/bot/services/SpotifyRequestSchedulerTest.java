@@ -0,0 +1,102 @@
+package bot.services;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import se.michaelthelin.spotify.exceptions.detailed.TooManyRequestsException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static bot.services.SpotifyRequestScheduler.Priority.BACKGROUND;
+import static bot.services.SpotifyRequestScheduler.Priority.INTERACTIVE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SpotifyRequestSchedulerTest {
+    private SpotifyRequestScheduler scheduler;
+
+    @AfterEach
+    void shutdown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    void pausesForRetryAfterAndRetriesARateLimitedCall() {
+        scheduler = new SpotifyRequestScheduler(100, 10, 2, 10, 100);
+        AtomicInteger attempts = new AtomicInteger();
+        AtomicLong firstAttemptAt = new AtomicLong();
+        AtomicLong retryAt = new AtomicLong();
+
+        String result = scheduler.submit(1L, INTERACTIVE, () -> {
+            if (attempts.incrementAndGet() == 1) {
+                firstAttemptAt.set(System.nanoTime());
+                throw new TooManyRequestsException("API rate limit exceeded", 1);
+            }
+            retryAt.set(System.nanoTime());
+            return "ok";
+        }).join();
+
+        assertEquals("ok", result);
+        assertEquals(2, attempts.get());
+        assertEquals(1, scheduler.getRateLimited());
+        // Retry-After: 1 holds every call back for a second
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(retryAt.get() - firstAttemptAt.get()) >= 900);
+    }
+
+    @Test
+    void runsInteractiveCallsBeforeBackgroundOnesAndRotatesUsers() throws InterruptedException {
+        scheduler = new SpotifyRequestScheduler(1000, 10, 1, 10, 100);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        // Holds the only slot while the rest queue up
+        CompletableFuture<String> blocker = scheduler.submit(0L, INTERACTIVE, () -> {
+            started.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return "blocker";
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        List<CompletableFuture<Boolean>> calls = new ArrayList<>();
+        calls.add(scheduler.submit(1L, BACKGROUND, () -> order.add("poll-1")));
+        calls.add(scheduler.submit(1L, INTERACTIVE, () -> order.add("user-1-a")));
+        calls.add(scheduler.submit(1L, INTERACTIVE, () -> order.add("user-1-b")));
+        calls.add(scheduler.submit(1L, INTERACTIVE, () -> order.add("user-1-c")));
+        calls.add(scheduler.submit(2L, INTERACTIVE, () -> order.add("user-2-a")));
+        release.countDown();
+
+        blocker.join();
+        calls.forEach(CompletableFuture::join);
+        assertEquals(List.of("user-1-a", "user-2-a", "user-1-b", "user-1-c", "poll-1"), order);
+    }
+
+    @Test
+    void rejectsCallsBeyondAUsersQueueLimit() throws InterruptedException {
+        scheduler = new SpotifyRequestScheduler(1000, 10, 1, 2, 100);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        scheduler.submit(1L, INTERACTIVE, () -> {
+            started.countDown();
+            return release.await(5, TimeUnit.SECONDS);
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        scheduler.submit(1L, INTERACTIVE, () -> true);
+        scheduler.submit(1L, INTERACTIVE, () -> true);
+        assertThrows(RejectedExecutionException.class, () -> scheduler.submit(1L, INTERACTIVE, () -> true));
+        // Another user's queue is separate
+        scheduler.submit(2L, INTERACTIVE, () -> true);
+
+        release.countDown();
+    }
+}
@@ -0,0 +1,81 @@
+package bot.services;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bot.shared.MetricsRegistry;
+import bot.shared.UserSessionManager;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SpotifyServiceSearchTest {
+    // Searches with its own token; the app's client credentials are blank in this tree
+    private static final long USER_ID = 42L;
+    private static final String EMPTY_PAGE = "{\"tracks\":{\"href\":\"http://localhost/v1/search\",\"items\":[],"
+            + "\"limit\":5,\"next\":null,\"offset\":0,\"previous\":null,\"total\":0}}";
+
+    private HttpServer spotify;
+    private SpotifyService service;
+    private final AtomicInteger searches = new AtomicInteger();
+    // Searches to answer with 429 before answering normally
+    private final AtomicInteger rateLimitedSearches = new AtomicInteger();
+
+    @BeforeEach
+    void startFakeSpotify() throws IOException {
+        spotify = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        spotify.createContext("/v1/search", exchange -> {
+            searches.incrementAndGet();
+            if (rateLimitedSearches.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                respond(exchange, 429, "{\"error\":{\"status\":429,\"message\":\"API rate limit exceeded\"}}");
+            } else {
+                respond(exchange, 200, EMPTY_PAGE);
+            }
+        });
+        spotify.start();
+
+        URI uri = URI.create("http://localhost:" + spotify.getAddress().getPort());
+        service = new SpotifyService(new SpotifyEndpoints(uri, uri));
+        UserSessionManager.getInstance().getOrCreateSession(USER_ID).updateTokens("user-token", "refresh-token");
+    }
+
+    @AfterEach
+    void stopFakeSpotify() {
+        UserSessionManager.getInstance().logoutUser(USER_ID);
+        spotify.stop(0);
+    }
+
+    @Test
+    void rateLimitedSearchIsCountedAndRetried() {
+        MetricsRegistry.Counter rateLimited = MetricsRegistry.getInstance()
+                .counter("spotify_rate_limited_total", "", "endpoint", "search");
+        long before = rateLimited.get();
+        rateLimitedSearches.set(1);
+
+        List<TrackSummary> tracks = service.searchTracksAsync(USER_ID, "rate limited", 0, 5).join();
+
+        assertEquals(List.of(), tracks);
+        assertEquals(before + 1, rateLimited.get());
+        assertEquals(2, searches.get());
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
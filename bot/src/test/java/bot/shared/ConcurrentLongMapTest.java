@@ -0,0 +1,118 @@
+package bot.shared;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConcurrentLongMapTest {
+    private final ConcurrentLongMap<String> map = new ConcurrentLongMap<>();
+
+    @Test
+    void putsGetsAndRemoves() {
+        assertNull(map.put(42L, "a"));
+        assertEquals("a", map.put(42L, "b"));
+        assertEquals("b", map.get(42L));
+        assertEquals(1, map.size());
+
+        assertEquals("b", map.remove(42L));
+        assertNull(map.remove(42L));
+        assertNull(map.get(42L));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    void holdsEdgeCaseKeys() {
+        long[] keys = { 0L, -1L, 1L, Long.MIN_VALUE, Long.MAX_VALUE, -1001234567890L };
+        for (long key : keys) {
+            map.put(key, Long.toString(key));
+        }
+        for (long key : keys) {
+            assertEquals(Long.toString(key), map.get(key));
+        }
+        assertEquals(keys.length, map.size());
+    }
+
+    @Test
+    void growsAndKeepsKeysReachableAfterRemovals() {
+        Map<Long, String> expected = new HashMap<>();
+        for (long key = -5000; key < 5000; key++) {
+            map.put(key * 7919, "v" + key);
+            expected.put(key * 7919, "v" + key);
+        }
+        // Removing every third key breaks probe chains the remaining keys may sit on
+        for (long key = -5000; key < 5000; key += 3) {
+            map.remove(key * 7919);
+            expected.remove(key * 7919);
+        }
+
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, String> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+        for (long key = -5000; key < 5000; key += 3) {
+            assertNull(map.get(key * 7919));
+        }
+
+        Map<Long, String> visited = new HashMap<>();
+        map.forEach(visited::put);
+        assertEquals(expected, visited);
+    }
+
+    @Test
+    void computeIfAbsentCreatesEachValueOnceUnderContention() throws InterruptedException {
+        int threads = 8;
+        int keys = 500;
+        AtomicInteger created = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        List<List<String>> results = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++) {
+            List<String> result = new ArrayList<>();
+            results.add(result);
+            Thread worker = new Thread(() -> {
+                awaitQuietly(start);
+                for (long key = 0; key < keys; key++) {
+                    result.add(map.computeIfAbsent(key, id -> {
+                        created.incrementAndGet();
+                        return new String("session-" + id);
+                    }));
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join(TimeUnit.SECONDS.toMillis(10));
+        }
+
+        assertEquals(keys, created.get());
+        assertEquals(keys, map.size());
+        for (List<String> result : results) {
+            for (int key = 0; key < keys; key++) {
+                // Every caller got the one instance that was stored
+                assertSame(map.get(key), result.get(key));
+            }
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
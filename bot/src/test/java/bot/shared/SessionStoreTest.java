@@ -0,0 +1,128 @@
+package bot.shared;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SessionStoreTest {
+    private static final byte[] KEY = new byte[16];
+    private static final byte[] OTHER_KEY = new byte[16];
+
+    static {
+        Arrays.fill(KEY, (byte) 7);
+        Arrays.fill(OTHER_KEY, (byte) 9);
+    }
+
+    @TempDir
+    Path dir;
+
+    private SessionStore store;
+
+    @AfterEach
+    void close() {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    @Test
+    void replaysTheLatestTokensOnReopen() throws IOException {
+        Path path = dir.resolve("sessions.log");
+        store = new SessionStore(path, KEY);
+        store.save(1L, UserSessionManager.Tokens.restore("access-1", "refresh-1", 1000L));
+        store.save(1L, UserSessionManager.Tokens.restore("access-2", "refresh-2", 2000L));
+        store.save(-100123L, UserSessionManager.Tokens.restore("group-access", "group-refresh", 3000L));
+        store.close();
+
+        store = new SessionStore(path, KEY);
+        assertTokens("access-2", "refresh-2", 2000L, store.load(1L));
+        assertTokens("group-access", "group-refresh", 3000L, store.load(-100123L));
+        assertNull(store.load(2L));
+        assertFalse(store.contains(2L));
+    }
+
+    @Test
+    void forgetsDeletedSessionsOnReopen() throws IOException {
+        Path path = dir.resolve("sessions.log");
+        store = new SessionStore(path, KEY);
+        store.save(1L, UserSessionManager.Tokens.restore("access", "refresh", 1000L));
+        store.delete(1L);
+        assertFalse(store.contains(1L));
+        store.close();
+
+        store = new SessionStore(path, KEY);
+        assertFalse(store.contains(1L));
+        assertNull(store.load(1L));
+    }
+
+    @Test
+    void discardsRecordsItCannotDecrypt() throws IOException {
+        Path path = dir.resolve("sessions.log");
+        store = new SessionStore(path, KEY);
+        store.save(1L, UserSessionManager.Tokens.restore("access", "refresh", 1000L));
+        store.close();
+
+        store = new SessionStore(path, OTHER_KEY);
+        assertNull(store.load(1L));
+    }
+
+    @Test
+    void compactionKeepsOnlyTheLatestRecords() throws IOException {
+        Path path = dir.resolve("sessions.log");
+        store = new SessionStore(path, KEY);
+        long initialSize = Files.size(path);
+
+        // Overwrite a few sessions until the log has to grow past its initial mapping
+        int saves = 0;
+        while (Files.size(path) == initialSize) {
+            long chatId = saves % 4;
+            store.save(chatId, UserSessionManager.Tokens.restore("access-" + saves, "refresh-" + saves, saves));
+            saves++;
+        }
+        store.delete(3L);
+        long grownSize = Files.size(path);
+
+        store.compactIfNeeded();
+
+        assertTrue(Files.size(path) < grownSize);
+        for (long chatId = 0; chatId < 3; chatId++) {
+            int last = lastSaveFor(chatId, saves);
+            assertTokens("access-" + last, "refresh-" + last, last, store.load(chatId));
+        }
+
+        // Writes after compaction land in the new file and survive a reopen
+        store.save(5L, UserSessionManager.Tokens.restore("after", "compaction", 5L));
+        store.close();
+        store = new SessionStore(path, KEY);
+        for (long chatId = 0; chatId < 3; chatId++) {
+            int last = lastSaveFor(chatId, saves);
+            assertTokens("access-" + last, "refresh-" + last, last, store.load(chatId));
+        }
+        assertFalse(store.contains(3L));
+        assertTokens("after", "compaction", 5L, store.load(5L));
+    }
+
+    private static int lastSaveFor(long chatId, int saves) {
+        int last = saves - 1;
+        while (last % 4 != chatId) {
+            last--;
+        }
+        return last;
+    }
+
+    private static void assertTokens(String access, String refresh, long expiry, UserSessionManager.Tokens tokens) {
+        assertEquals(access, tokens.getAccessToken());
+        assertEquals(refresh, tokens.getRefreshToken());
+        assertEquals(expiry, tokens.getTokenExpiry());
+    }
+}
@@ -0,0 +1,67 @@
+package bot.telegramBot;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CallbackCodecTest {
+    @Test
+    void roundTripsActionHandleAndArg() {
+        int[] actions = { CallbackCodec.ACTION_PLAY, CallbackCodec.ACTION_QUEUE, CallbackCodec.ACTION_DEVICE,
+                CallbackCodec.ACTION_PLAY_PAGE, CallbackCodec.ACTION_SEARCH_PAGE };
+        int[] handles = { 0, 1, 4242, Integer.MAX_VALUE, -1, Integer.MIN_VALUE };
+        int[] args = { 0, 1, 199, 0xFFFFFF };
+
+        for (int action : actions) {
+            for (int handle : handles) {
+                for (int arg : args) {
+                    String data = CallbackCodec.encode(action, handle, arg);
+                    assertEquals(11, data.length());
+
+                    long payload = CallbackCodec.decode(data);
+                    assertEquals(action, CallbackCodec.action(payload), data);
+                    assertEquals(handle, CallbackCodec.handle(payload), data);
+                    assertEquals(arg, CallbackCodec.arg(payload), data);
+                }
+            }
+        }
+    }
+
+    @Test
+    void encodesToCallbackSafeCharacters() {
+        String data = CallbackCodec.encode(CallbackCodec.ACTION_SEARCH_PAGE, -1, 0xFFFFFF);
+        assertEquals(-1, indexOfUnsafe(data));
+    }
+
+    @Test
+    void rejectsDataInOtherFormats() {
+        assertEquals(CallbackCodec.INVALID, CallbackCodec.decode(null));
+        assertEquals(CallbackCodec.INVALID, CallbackCodec.decode(""));
+        assertEquals(CallbackCodec.INVALID, CallbackCodec.decode("play:spotify:track:4uLU6hMCjMI75M1A2tKUQC"));
+        // Right length, but not base64url
+        assertEquals(CallbackCodec.INVALID, CallbackCodec.decode("BAAAAAAAA=A"));
+        assertEquals(CallbackCodec.INVALID, CallbackCodec.decode("BAAAAAAAAÄA"));
+        // First character carries more than 4 bits
+        assertEquals(CallbackCodec.INVALID, CallbackCodec.decode("zAAAAAAAAAA"));
+    }
+
+    @Test
+    void rejectsOtherVersions() {
+        String data = CallbackCodec.encode(CallbackCodec.ACTION_PLAY, 7, 0);
+        // The first character is the version
+        String otherVersion = "C" + data.substring(1);
+        assertEquals(CallbackCodec.INVALID, CallbackCodec.decode(otherVersion));
+    }
+
+    private static int indexOfUnsafe(String data) {
+        for (int i = 0; i < data.length(); i++) {
+            char c = data.charAt(i);
+            boolean safe = (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_';
+            if (!safe) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
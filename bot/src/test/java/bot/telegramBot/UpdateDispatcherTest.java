@@ -0,0 +1,104 @@
+package bot.telegramBot;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UpdateDispatcherTest {
+    private UpdateDispatcher dispatcher;
+
+    @AfterEach
+    void shutdown() {
+        dispatcher.shutdown();
+    }
+
+    @Test
+    void runsEachChatsUpdatesOneAtATimeInArrivalOrder() throws InterruptedException {
+        int chats = 8;
+        int updatesPerChat = 200;
+        dispatcher = new UpdateDispatcher(4, chats * updatesPerChat);
+
+        Map<Long, List<Integer>> seen = new ConcurrentHashMap<>();
+        Map<Long, AtomicInteger> running = new ConcurrentHashMap<>();
+        AtomicInteger overlaps = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(chats * updatesPerChat);
+
+        for (int i = 0; i < updatesPerChat; i++) {
+            for (long chatId = 0; chatId < chats; chatId++) {
+                long chat = chatId - chats / 2;
+                int sequence = i;
+                assertTrue(dispatcher.dispatch(chat, () -> {
+                    if (running.computeIfAbsent(chat, id -> new AtomicInteger()).incrementAndGet() > 1) {
+                        overlaps.incrementAndGet();
+                    }
+                    // Only this chat's handler touches its list, so a plain list shows any overlap as disorder
+                    seen.computeIfAbsent(chat, id -> new ArrayList<>()).add(sequence);
+                    running.get(chat).decrementAndGet();
+                    done.countDown();
+                }));
+            }
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, overlaps.get());
+        for (List<Integer> sequences : seen.values()) {
+            for (int i = 0; i < updatesPerChat; i++) {
+                assertEquals(i, sequences.get(i));
+            }
+        }
+        assertEquals(chats, seen.size());
+    }
+
+    @Test
+    void rejectsUpdatesBeyondTheQueueLimit() throws InterruptedException {
+        dispatcher = new UpdateDispatcher(1, 2);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        assertTrue(dispatcher.dispatch(1, () -> {
+            started.countDown();
+            awaitQuietly(release);
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // The running update no longer counts as queued
+        assertTrue(dispatcher.dispatch(1, () -> { }));
+        assertTrue(dispatcher.dispatch(2, () -> { }));
+        assertFalse(dispatcher.dispatch(3, () -> { }));
+        assertEquals(1, dispatcher.getRejected());
+
+        release.countDown();
+    }
+
+    @Test
+    void keepsAChatMovingAfterAHandlerThrows() throws InterruptedException {
+        dispatcher = new UpdateDispatcher(2, 10);
+        CountDownLatch next = new CountDownLatch(1);
+
+        dispatcher.dispatch(1, () -> {
+            throw new IllegalStateException("handler failed");
+        });
+        dispatcher.dispatch(1, next::countDown);
+
+        assertTrue(next.await(5, TimeUnit.SECONDS));
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}